@@ -0,0 +1,149 @@
+package info.yasskin.droidmuni;
+
+/**
+ * Decodes the numbers and booleans in NextBus attributes straight from their
+ * characters. Unlike Double.parseDouble(), decoding a coordinate this way
+ * allocates nothing, which adds up over the thousands of stops in a route
+ * catalog.
+ *
+ * The fast paths only accept the plain forms NextBus sends, like "-122.4",
+ * "1300000000000" and "true". Anything else, like "+5" or "1e3", falls back
+ * to the java.lang parser, so results and NumberFormatExceptions match it.
+ */
+final class AttributeDecoder {
+  private AttributeDecoder() {
+  }
+
+  /**
+   * Coordinates are stored as degrees times this, so 7 decimal places (about
+   * 1cm) fit in an int.
+   */
+  public static final int E7 = 10000000;
+
+  public static int decodeInt(CharSequence value) {
+    final long result = decodeLong(value);
+    if (result < Integer.MIN_VALUE || result > Integer.MAX_VALUE) {
+      throw new NumberFormatException("Out of int range: " + value);
+    }
+    return (int) result;
+  }
+
+  public static long decodeLong(CharSequence value) {
+    if (value == null) {
+      throw new NumberFormatException("null");
+    }
+    final int length = value.length();
+    int i = 0;
+    final boolean negative = length > 0 && value.charAt(0) == '-';
+    if (negative) {
+      i++;
+    }
+    // 18 digits can't overflow a long.
+    if (i == length || length - i > 18) {
+      return Long.parseLong(value.toString(), 10);
+    }
+    long result = 0;
+    for (; i < length; i++) {
+      final int digit = value.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return Long.parseLong(value.toString(), 10);
+      }
+      result = result * 10 + digit;
+    }
+    return negative ? -result : result;
+  }
+
+  /**
+   * The largest coordinate decodeE7() accepts, in degrees either side of 0.
+   */
+  private static final int MAX_DEGREES = 180;
+
+  /**
+   * @return 'value', a decimal number of degrees, times E7 and rounded to the
+   *         nearest integer, with halves rounded up like Math.round().
+   * @throws NumberFormatException
+   *           if 'value' isn't a number, or is more than 180 degrees from 0.
+   */
+  public static int decodeE7(CharSequence value) {
+    if (value == null) {
+      throw new NumberFormatException("null");
+    }
+    final int length = value.length();
+    int i = 0;
+    final boolean negative = length > 0 && value.charAt(0) == '-';
+    if (negative) {
+      i++;
+    }
+    long whole = 0;
+    int whole_digits = 0;
+    for (; i < length && whole_digits <= 3; i++, whole_digits++) {
+      final int digit = value.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        break;
+      }
+      whole = whole * 10 + digit;
+    }
+    long fraction = 0;
+    int fraction_digits = 0;
+    // The first digit past the seventh place, and whether any after it are
+    // nonzero, decide the rounding.
+    int round_digit = 0;
+    boolean past_round_digit = false;
+    if (i < length && value.charAt(i) == '.') {
+      i++;
+      for (; i < length; i++, fraction_digits++) {
+        final int digit = value.charAt(i) - '0';
+        if (digit < 0 || digit > 9) {
+          return decodeE7Slowly(value);
+        }
+        if (fraction_digits < 7) {
+          fraction = fraction * 10 + digit;
+        } else if (fraction_digits == 7) {
+          round_digit = digit;
+        } else if (digit != 0) {
+          past_round_digit = true;
+        }
+      }
+    }
+    if (i != length || whole_digits > 3
+        || (whole_digits == 0 && fraction_digits == 0)) {
+      return decodeE7Slowly(value);
+    }
+    for (int d = Math.min(fraction_digits, 7); d < 7; d++) {
+      fraction *= 10;
+    }
+    if (whole > MAX_DEGREES
+        || (whole == MAX_DEGREES
+            && (fraction != 0 || round_digit != 0 || past_round_digit))) {
+      throw new NumberFormatException("Not a coordinate: " + value);
+    }
+    // Math.round() rounds halves toward positive infinity, so a negative
+    // number's magnitude only rounds up past the half.
+    final boolean round_up =
+        negative ? round_digit > 5 || (round_digit == 5 && past_round_digit)
+            : round_digit >= 5;
+    final long result = whole * E7 + fraction + (round_up ? 1 : 0);
+    return (int) (negative ? -result : result);
+  }
+
+  private static int decodeE7Slowly(CharSequence value) {
+    final double degrees = Double.parseDouble(value.toString());
+    if (Double.isNaN(degrees) || Math.abs(degrees) > MAX_DEGREES) {
+      throw new NumberFormatException("Not a coordinate: " + value);
+    }
+    return (int) Math.round(degrees * E7);
+  }
+
+  /**
+   * @return true iff 'value' is "true", ignoring case, like
+   *         Boolean.parseBoolean().
+   */
+  public static boolean decodeBoolean(CharSequence value) {
+    if (value == null || value.length() != 4) {
+      return false;
+    }
+    return (value.charAt(0) | 0x20) == 't' && (value.charAt(1) | 0x20) == 'r'
+           && (value.charAt(2) | 0x20) == 'u'
+           && (value.charAt(3) | 0x20) == 'e';
+  }
+}
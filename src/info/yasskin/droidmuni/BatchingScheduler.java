@@ -0,0 +1,92 @@
+package info.yasskin.droidmuni;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds background fetches that can wait, and releases them together right
+ * after the next foreground request, while the cellular radio is still awake
+ * from it. If no foreground request comes along within the maximum delay, the
+ * held fetches are released together anyway, so they at least share one
+ * wakeup.
+ *
+ * Released work runs on Globals.EXECUTOR. Thread-safe.
+ */
+public class BatchingScheduler {
+  private final long m_max_delay_ms;
+  /**
+   * Keyed so that deferring the same refresh twice only runs it once. Guarded
+   * by this.
+   */
+  private final Map<String, Runnable> m_pending =
+      new LinkedHashMap<String, Runnable>();
+  private ScheduledFuture<?> m_timeout = null; // Guarded by this.
+
+  /**
+   * @param max_delay_ms
+   *          The longest a deferred fetch waits for a foreground request.
+   */
+  public BatchingScheduler(long max_delay_ms) {
+    m_max_delay_ms = max_delay_ms;
+  }
+
+  /**
+   * Queues 'fetch' to run with the next batch. If a fetch with the same key is
+   * already queued, this one replaces it.
+   */
+  public synchronized void defer(String key, Runnable fetch) {
+    m_pending.put(key, fetch);
+    Stats.increment("batching.deferred");
+    if (m_timeout == null) {
+      m_timeout = Globals.SCHEDULER.schedule(new Runnable() {
+        public void run() {
+          release(false);
+        }
+      }, m_max_delay_ms, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Call right after a foreground request goes out, to piggyback the queued
+   * fetches on the radio wakeup it paid for.
+   */
+  public void onForegroundRequest() {
+    release(true);
+  }
+
+  /**
+   * @return How many fetches are waiting for a batch.
+   */
+  public synchronized int pendingCount() {
+    return m_pending.size();
+  }
+
+  private void release(boolean after_foreground) {
+    final List<Runnable> batch;
+    synchronized (this) {
+      if (m_pending.isEmpty()) {
+        return;
+      }
+      batch = new ArrayList<Runnable>(m_pending.values());
+      m_pending.clear();
+      if (m_timeout != null) {
+        m_timeout.cancel(false);
+        m_timeout = null;
+      }
+    }
+    // Run separately, every fetch would have woken the radio itself. A batch
+    // that goes out on its own still needs one wakeup.
+    final int avoided = after_foreground ? batch.size() : batch.size() - 1;
+    Stats.increment(after_foreground ? "batching.flushes.foreground"
+        : "batching.flushes.timeout");
+    Stats.add("batching.released", batch.size());
+    Stats.add("batching.wakeups_avoided", avoided);
+    for (Runnable fetch : batch) {
+      Globals.EXECUTOR.execute(fetch);
+    }
+  }
+}
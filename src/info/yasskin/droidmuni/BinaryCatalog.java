@@ -0,0 +1,590 @@
+package info.yasskin.droidmuni;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+/**
+ * A read-only copy of Db's route, direction, and stop tables in one
+ * memory-mapped file, saved from a CatalogSnapshot. Reading it takes no locks,
+ * cursors, or SQL, and opening it doesn't touch SQLite at all, so the provider
+ * loads its next snapshot from here at startup.
+ *
+ * The file holds, in order:
+ * <ul>
+ * <li>A header: magic, format version, the snapshot's generation,
+ * the routes' update time, and the count and offset of each section.
+ * <li>A string pool: count + 1 int offsets, then the UTF-8 bytes. Records
+ * refer to strings by index, with -1 for null.
+ * <li>Route records in NextBus's order, each owning a range of directions.
+ * <li>The route indices again, sorted by tag, for lookups.
+ * <li>Direction records, grouped by route and sorted by tag, each owning a
+ * range of the direction stop array.
+ * <li>Stop records sorted by id, with coordinates in AttributeDecoder.E7
+ * units.
+ * <li>The direction stop array: each direction's stop indices, in order.
+ * </ul>
+ * Bump VERSION whenever this layout changes; files of other versions are
+ * rebuilt.
+ *
+ * Thread-safe: only absolute reads touch the shared buffer.
+ */
+final class BinaryCatalog implements Catalog {
+  private static final String FILE_NAME = "catalog.bin";
+  private static final int MAGIC = 0x444d4354; // "DMCT"
+  static final int VERSION = 2;
+
+  private static final int HEADER_BYTES = 68;
+  private static final int ROUTE_BYTES = 40;
+  private static final int DIRECTION_BYTES = 28;
+  private static final int STOP_BYTES = 20;
+  private static final int NULL_STRING = -1;
+
+  private final ByteBuffer m_buffer;
+  private final long m_generation;
+  private final long m_routes_updated_ms;
+  private final int m_string_count;
+  private final int m_route_count;
+  private final int m_stop_count;
+  private final int m_strings_offset;
+  private final int m_string_data_offset;
+  private final int m_routes_offset;
+  private final int m_route_index_offset;
+  private final int m_directions_offset;
+  private final int m_stops_offset;
+  private final int m_direction_stops_offset;
+  /**
+   * Decoded strings, filled in as they're read. Racing threads decode the
+   * same value, so the race is harmless.
+   */
+  private final String[] m_strings;
+
+  private BinaryCatalog(File file, ByteBuffer buffer) throws IOException {
+    m_buffer = buffer;
+    if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a catalog: " + file);
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Catalog version " + buffer.getInt(4) + " != "
+                            + VERSION);
+    }
+    m_generation = buffer.getLong(8);
+    m_routes_updated_ms = buffer.getLong(16);
+    m_string_count = buffer.getInt(24);
+    m_route_count = buffer.getInt(28);
+    m_stop_count = buffer.getInt(36);
+    m_strings_offset = buffer.getInt(44);
+    m_routes_offset = buffer.getInt(48);
+    m_route_index_offset = buffer.getInt(52);
+    m_directions_offset = buffer.getInt(56);
+    m_stops_offset = buffer.getInt(60);
+    m_direction_stops_offset = buffer.getInt(64);
+    m_string_data_offset = m_strings_offset + 4 * (m_string_count + 1);
+    final int direction_stop_count = buffer.getInt(40);
+    if (m_direction_stops_offset + 4L * direction_stop_count
+        > buffer.capacity()) {
+      throw new IOException("Truncated catalog: " + file);
+    }
+    m_strings = new String[m_string_count];
+  }
+
+  public static File fileFor(Context context) {
+    return new File(context.getFilesDir(), FILE_NAME);
+  }
+
+  /**
+   * Deletes the catalog file for 'context'. Call this whenever Db is erased.
+   * Catalogs already open keep serving the old contents, so stop using them
+   * first.
+   */
+  public static void delete(Context context) {
+    fileFor(context).delete();
+  }
+
+  /**
+   * Maps 'file' into memory.
+   *
+   * @throws IOException
+   *           if the file is missing, unreadable, or from another VERSION.
+   */
+  public static BinaryCatalog open(File file) throws IOException {
+    final long start_ns = System.nanoTime();
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = input.getChannel();
+      // The mapping outlives the channel.
+      BinaryCatalog result =
+          new BinaryCatalog(file, channel.map(FileChannel.MapMode.READ_ONLY,
+              0, channel.size()));
+      Stats.recordLatency("catalog.open",
+          (System.nanoTime() - start_ns) / 1000000);
+      return result;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * @return The Db.getLastModifiedMs() that this catalog copied.
+   */
+  public long getGeneration() {
+    return m_generation;
+  }
+
+  public boolean hasRoutes() {
+    return m_route_count > 0;
+  }
+
+  public boolean routesNewerThan(long time_millis) {
+    // Long.MIN_VALUE means routes were never updated.
+    return m_routes_updated_ms != Long.MIN_VALUE
+           && m_routes_updated_ms >= time_millis;
+  }
+
+  public Db.Route getRoute(String route_tag) {
+    final int route = findRoute(route_tag);
+    if (route == -1) {
+      return null;
+    }
+    final int offset = m_routes_offset + route * ROUTE_BYTES;
+    return new Db.Route(m_buffer.getLong(offset),
+        m_buffer.getInt(offset + 16), symbol(m_buffer.getInt(offset + 20)),
+        symbol(m_buffer.getInt(offset + 24)), m_buffer.getLong(offset + 8));
+  }
+
+  public int getStopTag(String stop_id) {
+    final int stop;
+    try {
+      stop = findStop(Integer.parseInt(stop_id, 10));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+    if (stop == -1) {
+      return -1;
+    }
+    return m_buffer.getInt(m_stops_offset + stop * STOP_BYTES + 4);
+  }
+
+  public Cursor queryRoutes() {
+    if (m_route_count == 0) {
+      return null;
+    }
+    MatrixCursor result =
+        new MatrixCursor(new String[] { "_id", "tag", "description" },
+            m_route_count);
+    for (int route = 0; route < m_route_count; route++) {
+      final int offset = m_routes_offset + route * ROUTE_BYTES;
+      result.newRow().add(m_buffer.getLong(offset))
+          .add(symbol(m_buffer.getInt(offset + 20)))
+          .add(symbol(m_buffer.getInt(offset + 24)));
+    }
+    return result;
+  }
+
+  public Cursor queryDirections(String route_tag) {
+    final int route = findRoute(route_tag);
+    if (route == -1) {
+      return null;
+    }
+    final int route_offset = m_routes_offset + route * ROUTE_BYTES;
+    final int first = m_buffer.getInt(route_offset + 28);
+    final int count = m_buffer.getInt(route_offset + 32);
+    MatrixCursor result =
+        new MatrixCursor(new String[] { "_id", "route_tag", "tag", "title" },
+            count);
+    for (int direction = first; direction < first + count; direction++) {
+      final int offset = m_directions_offset + direction * DIRECTION_BYTES;
+      if (m_buffer.getInt(offset + 16) == 0) {
+        continue;
+      }
+      result.newRow().add(m_buffer.getLong(offset))
+          .add(symbol(m_buffer.getInt(route_offset + 20)))
+          .add(symbol(m_buffer.getInt(offset + 8)))
+          .add(symbol(m_buffer.getInt(offset + 12)));
+    }
+    return result.getCount() == 0 ? null : result;
+  }
+
+  public Cursor queryStops(String route_tag, String direction_tag) {
+    final int route = findRoute(route_tag);
+    if (route == -1) {
+      return null;
+    }
+    final int route_offset = m_routes_offset + route * ROUTE_BYTES;
+    final int first = m_buffer.getInt(route_offset + 28);
+    final int count = m_buffer.getInt(route_offset + 32);
+    for (int direction = first; direction < first + count; direction++) {
+      final int offset = m_directions_offset + direction * DIRECTION_BYTES;
+      final String tag = symbol(m_buffer.getInt(offset + 8));
+      if (tag != null && tag.equals(direction_tag)) {
+        return queryStops(route_tag, tag, m_buffer.getInt(offset + 20),
+            m_buffer.getInt(offset + 24));
+      }
+    }
+    return null;
+  }
+
+  private Cursor queryStops(String route_tag, String direction_tag,
+      int first_stop, int stop_count) {
+    if (stop_count == 0) {
+      return null;
+    }
+    MatrixCursor result =
+        new MatrixCursor(new String[] { "_id", "route_tag", "direction_tag",
+                                       "stop_id", "title", "lat", "lon",
+                                       "stop_tag" }, stop_count);
+    for (int i = first_stop; i < first_stop + stop_count; i++) {
+      final int stop = m_buffer.getInt(m_direction_stops_offset + 4 * i);
+      final int offset = m_stops_offset + stop * STOP_BYTES;
+      final int id = m_buffer.getInt(offset);
+      result.newRow().add(id).add(route_tag).add(direction_tag).add(id)
+          .add(string(m_buffer.getInt(offset + 8)))
+          .add((double) m_buffer.getInt(offset + 12) / AttributeDecoder.E7)
+          .add((double) m_buffer.getInt(offset + 16) / AttributeDecoder.E7)
+          .add(m_buffer.getInt(offset + 4));
+    }
+    return result;
+  }
+
+  /**
+   * @return The index of the route tagged 'route_tag', or -1.
+   */
+  private int findRoute(String route_tag) {
+    if (route_tag == null) {
+      return -1;
+    }
+    int low = 0;
+    int high = m_route_count - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int route = m_buffer.getInt(m_route_index_offset + 4 * mid);
+      final String tag =
+          symbol(m_buffer.getInt(m_routes_offset + route * ROUTE_BYTES + 20));
+      final int cmp = tag.compareTo(route_tag);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return route;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return The index of the stop whose id is 'stop_id', or -1.
+   */
+  private int findStop(int stop_id) {
+    int low = 0;
+    int high = m_stop_count - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int id = m_buffer.getInt(m_stops_offset + mid * STOP_BYTES);
+      if (id < stop_id) {
+        low = mid + 1;
+      } else if (id > stop_id) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return String 'index', decoded. Use this for stop titles, which are
+   *         mostly unique and would fill Globals.SYMBOLS.
+   */
+  private String string(int index) {
+    if (index == NULL_STRING) {
+      return null;
+    }
+    String result = m_strings[index];
+    if (result == null) {
+      final int start = m_buffer.getInt(m_strings_offset + 4 * index);
+      final int end = m_buffer.getInt(m_strings_offset + 4 * index + 4);
+      byte[] bytes = new byte[end - start];
+      ByteBuffer data = m_buffer.duplicate();
+      data.position(m_string_data_offset + start);
+      data.get(bytes);
+      try {
+        result = new String(bytes, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new AssertionError(e);
+      }
+      m_strings[index] = result;
+    }
+    return result;
+  }
+
+  /**
+   * @return String 'index', canonicalized through Globals.SYMBOLS. Use this
+   *         for route and direction strings, as CatalogSnapshot.build() does.
+   */
+  private String symbol(int index) {
+    final String value = string(index);
+    if (value == null) {
+      return null;
+    }
+    final String result = Globals.SYMBOLS.intern(value);
+    // The pool shares equal strings, so a stop title may have cached this
+    // one uncanonicalized.
+    m_strings[index] = result;
+    return result;
+  }
+
+  /**
+   * @return The same catalog as an in-memory CatalogSnapshot, so the provider
+   *         can start from the file instead of rereading Db.
+   */
+  public CatalogSnapshot toSnapshot() {
+    final int[] stop_ids = new int[m_stop_count];
+    final int[] stop_tags = new int[m_stop_count];
+    final String[] stop_titles = new String[m_stop_count];
+    final double[] stop_lats = new double[m_stop_count];
+    final double[] stop_lons = new double[m_stop_count];
+    for (int stop = 0; stop < m_stop_count; stop++) {
+      final int offset = m_stops_offset + stop * STOP_BYTES;
+      stop_ids[stop] = m_buffer.getInt(offset);
+      stop_tags[stop] = m_buffer.getInt(offset + 4);
+      // Not interned, like CatalogSnapshot.build()'s.
+      stop_titles[stop] = string(m_buffer.getInt(offset + 8));
+      stop_lats[stop] =
+          (double) m_buffer.getInt(offset + 12) / AttributeDecoder.E7;
+      stop_lons[stop] =
+          (double) m_buffer.getInt(offset + 16) / AttributeDecoder.E7;
+    }
+
+    final CatalogSnapshot.RouteEntry[] routes =
+        new CatalogSnapshot.RouteEntry[m_route_count];
+    for (int route = 0; route < m_route_count; route++) {
+      final int route_offset = m_routes_offset + route * ROUTE_BYTES;
+      final int first = m_buffer.getInt(route_offset + 28);
+      final CatalogSnapshot.Direction[] directions =
+          new CatalogSnapshot.Direction[m_buffer.getInt(route_offset + 32)];
+      for (int i = 0; i < directions.length; i++) {
+        final int offset =
+            m_directions_offset + (first + i) * DIRECTION_BYTES;
+        final int first_stop = m_buffer.getInt(offset + 20);
+        final int[] stops = new int[m_buffer.getInt(offset + 24)];
+        for (int j = 0; j < stops.length; j++) {
+          stops[j] =
+              m_buffer.getInt(m_direction_stops_offset + 4 * (first_stop + j));
+        }
+        directions[i] =
+            new CatalogSnapshot.Direction(m_buffer.getLong(offset),
+                symbol(m_buffer.getInt(offset + 8)),
+                symbol(m_buffer.getInt(offset + 12)),
+                m_buffer.getInt(offset + 16) != 0, stops);
+      }
+      routes[route] =
+          new CatalogSnapshot.RouteEntry(new Db.Route(
+              m_buffer.getLong(route_offset),
+              m_buffer.getInt(route_offset + 16),
+              symbol(m_buffer.getInt(route_offset + 20)),
+              symbol(m_buffer.getInt(route_offset + 24)),
+              m_buffer.getLong(route_offset + 8)), directions);
+    }
+    return new CatalogSnapshot(m_generation, m_routes_updated_ms, routes,
+        stop_ids, stop_tags, stop_titles, stop_lats, stop_lons);
+  }
+
+  /**
+   * Writes 'snapshot' into 'file', replacing it atomically, and opens the
+   * result. Callers must not build the same file concurrently.
+   */
+  public static BinaryCatalog build(CatalogSnapshot snapshot, File file)
+      throws IOException {
+    final long start_ns = System.nanoTime();
+    final ByteBuffer contents = new Builder(snapshot).build();
+
+    File temp = new File(file.getPath() + ".tmp");
+    FileOutputStream output = new FileOutputStream(temp);
+    try {
+      output.write(contents.array(), 0, contents.limit());
+      output.getFD().sync();
+    } finally {
+      output.close();
+    }
+    if (!temp.renameTo(file)) {
+      temp.delete();
+      throw new IOException("Couldn't replace " + file);
+    }
+    Stats.recordLatency("catalog.build",
+        (System.nanoTime() - start_ns) / 1000000);
+    Stats.set("catalog.bytes", contents.limit());
+    return open(file);
+  }
+
+  /**
+   * Lays out a snapshot's tables in the file format.
+   */
+  private static final class Builder {
+    private final CatalogSnapshot m_snapshot;
+    private final Map<String, Integer> m_string_ids =
+        new LinkedHashMap<String, Integer>();
+
+    Builder(CatalogSnapshot snapshot) {
+      m_snapshot = snapshot;
+    }
+
+    private int stringId(String value) {
+      if (value == null) {
+        return NULL_STRING;
+      }
+      Integer id = m_string_ids.get(value);
+      if (id == null) {
+        id = m_string_ids.size();
+        m_string_ids.put(value, id);
+      }
+      return id;
+    }
+
+    ByteBuffer build() throws UnsupportedEncodingException {
+      final CatalogSnapshot.RouteEntry[] routes =
+          m_snapshot.getRouteEntries();
+      final int[] stop_ids = m_snapshot.getStopIds();
+      final int[] stop_tags = m_snapshot.getStopTags();
+      final String[] stop_titles = m_snapshot.getStopTitles();
+      final double[] stop_lats = m_snapshot.getStopLats();
+      final double[] stop_lons = m_snapshot.getStopLons();
+
+      final int stop_count = stop_ids.length;
+      final int[] stop_title_ids = new int[stop_count];
+      for (int i = 0; i < stop_count; i++) {
+        stop_title_ids[i] = stringId(stop_titles[i]);
+      }
+
+      // Directions, grouped by route, and their stops, in the same order.
+      final int route_count = routes.length;
+      final int[] route_tag_ids = new int[route_count];
+      final int[] route_description_ids = new int[route_count];
+      int direction_count = 0;
+      int packed_count = 0;
+      for (int i = 0; i < route_count; i++) {
+        route_tag_ids[i] = stringId(routes[i].route.tag);
+        route_description_ids[i] = stringId(routes[i].route.description);
+        for (CatalogSnapshot.Direction direction : routes[i].directions) {
+          direction_count++;
+          packed_count += direction.stops.length;
+        }
+      }
+      final int[] direction_tag_ids = new int[direction_count];
+      final int[] direction_title_ids = new int[direction_count];
+      int d = 0;
+      for (CatalogSnapshot.RouteEntry route : routes) {
+        for (CatalogSnapshot.Direction direction : route.directions) {
+          direction_tag_ids[d] = stringId(direction.tag);
+          direction_title_ids[d] = stringId(direction.title);
+          d++;
+        }
+      }
+
+      final List<Integer> route_index = new ArrayList<Integer>(route_count);
+      for (int i = 0; i < route_count; i++) {
+        route_index.add(i);
+      }
+      Collections.sort(route_index, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return routes[a].route.tag.compareTo(routes[b].route.tag);
+        }
+      });
+
+      // Encode the string pool now that every string has an id.
+      final int string_count = m_string_ids.size();
+      final byte[][] encoded = new byte[string_count][];
+      int string_bytes = 0;
+      int s = 0;
+      for (String value : m_string_ids.keySet()) {
+        encoded[s] = value.getBytes("UTF-8");
+        string_bytes += encoded[s].length;
+        s++;
+      }
+
+      final int strings_offset = HEADER_BYTES;
+      final int routes_offset =
+          strings_offset + 4 * (string_count + 1) + string_bytes;
+      final int route_index_offset = routes_offset + route_count * ROUTE_BYTES;
+      final int directions_offset = route_index_offset + 4 * route_count;
+      final int stops_offset =
+          directions_offset + direction_count * DIRECTION_BYTES;
+      final int direction_stops_offset = stops_offset + stop_count * STOP_BYTES;
+      final int total = direction_stops_offset + 4 * packed_count;
+
+      ByteBuffer out = ByteBuffer.allocate(total);
+      out.putInt(MAGIC).putInt(VERSION).putLong(m_snapshot.getGeneration())
+          .putLong(m_snapshot.getRoutesUpdatedMs()).putInt(string_count)
+          .putInt(route_count).putInt(direction_count).putInt(stop_count)
+          .putInt(packed_count).putInt(strings_offset).putInt(routes_offset)
+          .putInt(route_index_offset).putInt(directions_offset)
+          .putInt(stops_offset).putInt(direction_stops_offset);
+
+      int string_offset = 0;
+      for (byte[] bytes : encoded) {
+        out.putInt(string_offset);
+        string_offset += bytes.length;
+      }
+      out.putInt(string_offset);
+      for (byte[] bytes : encoded) {
+        out.put(bytes);
+      }
+
+      int first_direction = 0;
+      for (int i = 0; i < route_count; i++) {
+        final Db.Route route = routes[i].route;
+        final int directions = routes[i].directions.length;
+        out.putLong(route.id).putLong(route.directions_updated_ms)
+            .putInt(route.upstream_index).putInt(route_tag_ids[i])
+            .putInt(route_description_ids[i]).putInt(first_direction)
+            .putInt(directions);
+        out.putInt(0); // Padding.
+        first_direction += directions;
+      }
+      for (int route : route_index) {
+        out.putInt(route);
+      }
+      d = 0;
+      int first_stop = 0;
+      for (CatalogSnapshot.RouteEntry route : routes) {
+        for (CatalogSnapshot.Direction direction : route.directions) {
+          out.putLong(direction.id).putInt(direction_tag_ids[d])
+              .putInt(direction_title_ids[d])
+              .putInt(direction.use_for_ui ? 1 : 0).putInt(first_stop)
+              .putInt(direction.stops.length);
+          first_stop += direction.stops.length;
+          d++;
+        }
+      }
+      for (int i = 0; i < stop_count; i++) {
+        out.putInt(stop_ids[i]).putInt(stop_tags[i])
+            .putInt(stop_title_ids[i])
+            .putInt((int) Math.round(stop_lats[i] * AttributeDecoder.E7))
+            .putInt((int) Math.round(stop_lons[i] * AttributeDecoder.E7));
+      }
+      for (CatalogSnapshot.RouteEntry route : routes) {
+        for (CatalogSnapshot.Direction direction : route.directions) {
+          for (int stop : direction.stops) {
+            out.putInt(stop);
+          }
+        }
+      }
+      out.flip();
+      return out;
+    }
+  }
+}
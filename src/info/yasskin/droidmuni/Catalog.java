@@ -0,0 +1,49 @@
+package info.yasskin.droidmuni;
+
+import android.database.Cursor;
+
+/**
+ * Read access to the stored routes, directions, and stops. Db is the source
+ * of truth and implements this directly; BinaryCatalog and CatalogSnapshot
+ * are faster read-only copies, on disk and in memory, rebuilt from Db after
+ * each update. Callers can't tell them apart.
+ *
+ * The query methods return null instead of an empty cursor.
+ */
+interface Catalog {
+  boolean hasRoutes();
+
+  /**
+   * @return Whether the route list was last updated at or after
+   *         'time_millis'.
+   */
+  boolean routesNewerThan(long time_millis);
+
+  /**
+   * @return The route tagged 'route_tag', or null if there isn't one.
+   */
+  Db.Route getRoute(String route_tag);
+
+  /**
+   * @return The tag of the stop whose id is stop_id, or -1 if we don't know
+   *         that stop.
+   */
+  int getStopTag(String stop_id);
+
+  /**
+   * @return Columns _id, tag, and description, in NextBus's order.
+   */
+  Cursor queryRoutes();
+
+  /**
+   * @return Columns _id, route_tag, tag, and title of the route's directions
+   *         that NextBus says to show, sorted by tag.
+   */
+  Cursor queryDirections(String route_tag);
+
+  /**
+   * @return Columns _id, route_tag, direction_tag, stop_id, title, lat, lon,
+   *         and stop_tag of the direction's stops, in order along the route.
+   */
+  Cursor queryStops(String route_tag, String direction_tag);
+}
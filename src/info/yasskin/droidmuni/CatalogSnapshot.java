@@ -0,0 +1,449 @@
+package info.yasskin.droidmuni;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * An immutable in-memory copy of Db's routes, directions, and stops. The
+ * provider builds a new one after each catalog update, or at startup loads
+ * the one BinaryCatalog saved, and publishes it by swapping a reference, so
+ * reads take no locks and never touch SQLite.
+ *
+ * Route and direction strings go through Globals.SYMBOLS, so they share
+ * storage with the parsers' copies. Stops are kept in parallel arrays sorted
+ * by id, and each direction holds indices into them.
+ *
+ * Thread-safe: nothing changes after construction.
+ */
+final class CatalogSnapshot implements Catalog {
+  private static final String[] ROUTE_COLUMNS = { "_id", "tag", "description" };
+  private static final String[] DIRECTION_COLUMNS =
+      { "_id", "route_tag", "tag", "title" };
+  private static final String[] STOP_COLUMNS =
+      { "_id", "route_tag", "direction_tag", "stop_id", "title", "lat", "lon",
+       "stop_tag" };
+
+  static final class Direction {
+    Direction(long id, String tag, String title, boolean use_for_ui,
+        int[] stops) {
+      this.id = id;
+      this.tag = tag;
+      this.title = title;
+      this.use_for_ui = use_for_ui;
+      this.stops = stops;
+    }
+
+    final long id;
+    final String tag;
+    final String title;
+    final boolean use_for_ui;
+    /**
+     * Indices into the snapshot's stop arrays, in order along the route.
+     */
+    final int[] stops;
+  }
+
+  static final class RouteEntry {
+    RouteEntry(Db.Route route, Direction[] directions) {
+      this.route = route;
+      this.directions = directions;
+    }
+
+    final Db.Route route;
+    /**
+     * Sorted by tag, as Db sorts them.
+     */
+    final Direction[] directions;
+  }
+
+  private final long m_generation;
+  private final long m_routes_updated_ms;
+  /**
+   * In NextBus's order.
+   */
+  private final RouteEntry[] m_routes;
+  private final Map<String, RouteEntry> m_routes_by_tag;
+  /**
+   * Sorted, so getStopTag() can binary search.
+   */
+  private final int[] m_stop_ids;
+  private final int[] m_stop_tags;
+  private final String[] m_stop_titles;
+  private final double[] m_stop_lats;
+  private final double[] m_stop_lons;
+  private final long m_approximate_bytes;
+
+  /**
+   * Takes ownership of its arguments. The stop arrays are parallel and sorted
+   * by id, and each direction's stops index into them.
+   */
+  CatalogSnapshot(long generation, long routes_updated_ms,
+      RouteEntry[] routes, int[] stop_ids, int[] stop_tags,
+      String[] stop_titles, double[] stop_lats, double[] stop_lons) {
+    m_generation = generation;
+    m_routes_updated_ms = routes_updated_ms;
+    m_routes = routes;
+    m_routes_by_tag = new HashMap<String, RouteEntry>(routes.length * 2);
+    for (RouteEntry route : routes) {
+      m_routes_by_tag.put(route.route.tag, route);
+    }
+    m_stop_ids = stop_ids;
+    m_stop_tags = stop_tags;
+    m_stop_titles = stop_titles;
+    m_stop_lats = stop_lats;
+    m_stop_lons = stop_lons;
+    m_approximate_bytes = estimateBytes();
+  }
+
+  /**
+   * @return The Db.getLastModifiedMs() that this snapshot copied.
+   */
+  public long getGeneration() {
+    return m_generation;
+  }
+
+  public int getRouteCount() {
+    return m_routes.length;
+  }
+
+  // The raw tables, for BinaryCatalog to save. Don't modify them.
+
+  long getRoutesUpdatedMs() {
+    return m_routes_updated_ms;
+  }
+
+  RouteEntry[] getRouteEntries() {
+    return m_routes;
+  }
+
+  int[] getStopIds() {
+    return m_stop_ids;
+  }
+
+  int[] getStopTags() {
+    return m_stop_tags;
+  }
+
+  String[] getStopTitles() {
+    return m_stop_titles;
+  }
+
+  double[] getStopLats() {
+    return m_stop_lats;
+  }
+
+  double[] getStopLons() {
+    return m_stop_lons;
+  }
+
+  /**
+   * @return About how much heap the snapshot holds, counting 16 bytes per
+   *         object or array header, 4 per reference, and 2 per char. Strings
+   *         are counted once each, even those the symbol table shares.
+   */
+  public long getApproximateBytes() {
+    return m_approximate_bytes;
+  }
+
+  public boolean hasRoutes() {
+    return m_routes.length > 0;
+  }
+
+  public boolean routesNewerThan(long time_millis) {
+    // Long.MIN_VALUE means routes were never updated.
+    return m_routes_updated_ms != Long.MIN_VALUE
+           && m_routes_updated_ms >= time_millis;
+  }
+
+  public Db.Route getRoute(String route_tag) {
+    final RouteEntry route = m_routes_by_tag.get(route_tag);
+    return route == null ? null : route.route;
+  }
+
+  public int getStopTag(String stop_id) {
+    final int stop;
+    try {
+      stop = Arrays.binarySearch(m_stop_ids, Integer.parseInt(stop_id, 10));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+    return stop < 0 ? -1 : m_stop_tags[stop];
+  }
+
+  public Cursor queryRoutes() {
+    if (m_routes.length == 0) {
+      return null;
+    }
+    MatrixCursor result = new MatrixCursor(ROUTE_COLUMNS, m_routes.length);
+    for (RouteEntry route : m_routes) {
+      result.newRow().add(route.route.id).add(route.route.tag)
+          .add(route.route.description);
+    }
+    return result;
+  }
+
+  public Cursor queryDirections(String route_tag) {
+    final RouteEntry route = m_routes_by_tag.get(route_tag);
+    if (route == null) {
+      return null;
+    }
+    MatrixCursor result =
+        new MatrixCursor(DIRECTION_COLUMNS, route.directions.length);
+    for (Direction direction : route.directions) {
+      if (direction.use_for_ui) {
+        result.newRow().add(direction.id).add(route.route.tag)
+            .add(direction.tag).add(direction.title);
+      }
+    }
+    return result.getCount() == 0 ? null : result;
+  }
+
+  public Cursor queryStops(String route_tag, String direction_tag) {
+    final RouteEntry route = m_routes_by_tag.get(route_tag);
+    if (route == null) {
+      return null;
+    }
+    for (Direction direction : route.directions) {
+      if (direction.tag != null && direction.tag.equals(direction_tag)) {
+        return queryStops(route.route.tag, direction);
+      }
+    }
+    return null;
+  }
+
+  private Cursor queryStops(String route_tag, Direction direction) {
+    if (direction.stops.length == 0) {
+      return null;
+    }
+    MatrixCursor result =
+        new MatrixCursor(STOP_COLUMNS, direction.stops.length);
+    for (int stop : direction.stops) {
+      final int id = m_stop_ids[stop];
+      result.newRow().add(id).add(route_tag).add(direction.tag).add(id)
+          .add(m_stop_titles[stop]).add(m_stop_lats[stop])
+          .add(m_stop_lons[stop]).add(m_stop_tags[stop]);
+    }
+    return result;
+  }
+
+  /**
+   * @return A copy of this snapshot that records what Db.touchRoute() does:
+   *         route 'route_tag''s directions are current as of 'time_millis'.
+   *         Shares everything else, so the provider can apply a refresh that
+   *         found nothing new without rereading the tables.
+   */
+  public CatalogSnapshot withRouteTouched(String route_tag, long time_millis) {
+    final RouteEntry[] routes = m_routes.clone();
+    for (int i = 0; i < routes.length; i++) {
+      final Db.Route route = routes[i].route;
+      if (route.tag.equals(route_tag)) {
+        routes[i] =
+            new RouteEntry(new Db.Route(route.id, route.upstream_index,
+                route.tag, route.description, time_millis),
+                routes[i].directions);
+      }
+    }
+    return new CatalogSnapshot(Math.max(m_generation, time_millis),
+        m_routes_updated_ms, routes, m_stop_ids, m_stop_tags, m_stop_titles,
+        m_stop_lats, m_stop_lons);
+  }
+
+  /**
+   * @return A copy of this snapshot that records what Db.touchRoutes() does:
+   *         the route list is current as of 'time_millis'.
+   */
+  public CatalogSnapshot withRoutesTouched(long time_millis) {
+    return new CatalogSnapshot(Math.max(m_generation, time_millis),
+        time_millis, m_routes, m_stop_ids, m_stop_tags, m_stop_titles,
+        m_stop_lats, m_stop_lons);
+  }
+
+  private long estimateBytes() {
+    final IdentityHashMap<String, Boolean> strings =
+        new IdentityHashMap<String, Boolean>();
+    long bytes = 16 + 4 * m_routes.length;
+    // The map: its table, plus an entry per route.
+    bytes += 16 + 4 * m_routes.length * 2 + 32 * m_routes.length;
+    for (RouteEntry route : m_routes) {
+      // The entry, its Db.Route, and its direction array.
+      bytes += 24 + 48 + 16 + 4 * route.directions.length;
+      strings.put(route.route.tag, true);
+      if (route.route.description != null) {
+        strings.put(route.route.description, true);
+      }
+      for (Direction direction : route.directions) {
+        bytes += 40 + 16 + 4 * direction.stops.length;
+        if (direction.tag != null) {
+          strings.put(direction.tag, true);
+        }
+        if (direction.title != null) {
+          strings.put(direction.title, true);
+        }
+      }
+    }
+    final int stop_count = m_stop_ids.length;
+    bytes += 5 * 16 + stop_count * (4 + 4 + 4 + 8 + 8);
+    for (String title : m_stop_titles) {
+      if (title != null) {
+        strings.put(title, true);
+      }
+    }
+    for (String value : strings.keySet()) {
+      // The String and its char array.
+      bytes += 32 + 16 + 2 * value.length();
+    }
+    return bytes;
+  }
+
+  /**
+   * Copies Db's tables into a new snapshot.
+   */
+  public static CatalogSnapshot build(Db db) {
+    final long start_ns = System.nanoTime();
+    // One read transaction, so the tables agree with each other.
+    final CatalogSnapshot result =
+        db.readConsistently(new Db.ConsistentRead<CatalogSnapshot>() {
+          public CatalogSnapshot read(SQLiteDatabase tables) {
+            return build(tables);
+          }
+        });
+    Stats.recordLatency("catalog_snapshot.build",
+        (System.nanoTime() - start_ns) / 1000000);
+    Stats.set("catalog_snapshot.bytes", result.getApproximateBytes());
+    Stats.set("catalog_snapshot.stops", result.m_stop_ids.length);
+    return result;
+  }
+
+  private static CatalogSnapshot build(SQLiteDatabase tables) {
+    final long generation =
+        DatabaseUtils.longForQuery(tables, Db.LAST_MODIFIED_SQL, null);
+    final long routes_updated_ms =
+        DatabaseUtils.longForQuery(tables, Db.ROUTES_UPDATED_SQL, null);
+
+    Cursor stops =
+        tables.rawQuery("SELECT _id, tag, title, latitude, longitude"
+                        + " FROM Stops ORDER BY _id", null);
+    final int stop_count = stops.getCount();
+    final int[] stop_ids = new int[stop_count];
+    final int[] stop_tags = new int[stop_count];
+    final String[] stop_titles = new String[stop_count];
+    final double[] stop_lats = new double[stop_count];
+    final double[] stop_lons = new double[stop_count];
+    try {
+      int i = 0;
+      for (stops.moveToFirst(); !stops.isAfterLast(); stops.moveToNext(), i++) {
+        stop_ids[i] = stops.getInt(0);
+        stop_tags[i] = stops.getInt(1);
+        stop_titles[i] = stops.isNull(2) ? null : stops.getString(2);
+        stop_lats[i] = stops.getDouble(3);
+        stop_lons[i] = stops.getDouble(4);
+      }
+    } finally {
+      stops.close();
+    }
+
+    // Each direction's stops, as indices into the stop arrays. Stops that
+    // somehow aren't in the Stops table are dropped, as Db's JOIN would.
+    Cursor direction_stops =
+        tables.rawQuery("SELECT direction, stop FROM DirectionStops"
+                        + " ORDER BY direction, stop_order", null);
+    final Map<Long, int[]> stops_by_direction = new HashMap<Long, int[]>();
+    try {
+      final int[] buffer = new int[direction_stops.getCount()];
+      int count = 0;
+      long direction = 0;
+      for (direction_stops.moveToFirst(); !direction_stops.isAfterLast(); direction_stops.moveToNext()) {
+        if (count > 0 && direction_stops.getLong(0) != direction) {
+          stops_by_direction.put(direction, copyOf(buffer, count));
+          count = 0;
+        }
+        direction = direction_stops.getLong(0);
+        final int stop =
+            Arrays.binarySearch(stop_ids, direction_stops.getInt(1));
+        if (stop >= 0) {
+          buffer[count++] = stop;
+        }
+      }
+      if (count > 0) {
+        stops_by_direction.put(direction, copyOf(buffer, count));
+      }
+    } finally {
+      direction_stops.close();
+    }
+
+    final int[] no_stops = new int[0];
+    Cursor directions =
+        tables.rawQuery("SELECT _id, route_id, tag, title, use_for_ui"
+                        + " FROM Directions ORDER BY route_id, tag", null);
+    final Map<Long, List<Direction>> directions_by_route =
+        new HashMap<Long, List<Direction>>();
+    try {
+      for (directions.moveToFirst(); !directions.isAfterLast(); directions.moveToNext()) {
+        final long id = directions.getLong(0);
+        final long route_id = directions.getLong(1);
+        List<Direction> route_directions = directions_by_route.get(route_id);
+        if (route_directions == null) {
+          route_directions = new ArrayList<Direction>();
+          directions_by_route.put(route_id, route_directions);
+        }
+        int[] direction_stops_for_id = stops_by_direction.get(id);
+        if (direction_stops_for_id == null) {
+          direction_stops_for_id = no_stops;
+        }
+        route_directions.add(new Direction(id,
+            Globals.SYMBOLS.intern(directions.getString(2)),
+            Globals.SYMBOLS.intern(directions.getString(3)),
+            directions.getInt(4) != 0, direction_stops_for_id));
+      }
+    } finally {
+      directions.close();
+    }
+
+    final List<Direction> none = Collections.emptyList();
+    Cursor routes =
+        tables.rawQuery("SELECT _id, tag, upstream_index, description,"
+                        + " last_direction_update_ms FROM Routes"
+                        + " ORDER BY upstream_index", null);
+    final RouteEntry[] route_entries = new RouteEntry[routes.getCount()];
+    try {
+      int i = 0;
+      for (routes.moveToFirst(); !routes.isAfterLast(); routes.moveToNext(), i++) {
+        final long id = routes.getLong(0);
+        List<Direction> route_directions = directions_by_route.get(id);
+        if (route_directions == null) {
+          route_directions = none;
+        }
+        final Db.Route route =
+            new Db.Route(id, routes.getInt(2),
+                Globals.SYMBOLS.intern(routes.getString(1)),
+                Globals.SYMBOLS.intern(routes.getString(3)),
+                routes.getLong(4));
+        route_entries[i] =
+            new RouteEntry(route,
+                route_directions.toArray(new Direction[0]));
+      }
+    } finally {
+      routes.close();
+    }
+
+    return new CatalogSnapshot(generation, routes_updated_ms, route_entries,
+        stop_ids, stop_tags, stop_titles, stop_lats, stop_lons);
+  }
+
+  // Arrays.copyOf() needs Gingerbread.
+  private static int[] copyOf(int[] array, int length) {
+    int[] result = new int[length];
+    System.arraycopy(array, 0, result, 0, length);
+    return result;
+  }
+}
@@ -0,0 +1,116 @@
+package info.yasskin.droidmuni;
+
+/**
+ * Stops sending requests for a while once enough of them have failed in a
+ * row, so an unhealthy NextBus costs a quick local failure instead of another
+ * timeout. After the cool-down, one trial request is let through; if it
+ * succeeds the breaker closes, and if it fails the breaker opens again.
+ *
+ * Thread-safe.
+ */
+public class CircuitBreaker {
+  /**
+   * The ordinals are what Stats reports for the breaker's state.
+   */
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN,
+  }
+
+  private final String m_name;
+  private final int m_failure_threshold;
+  private final long m_open_ms;
+
+  // All guarded by this.
+  private State m_state = State.CLOSED;
+  private int m_consecutive_failures = 0;
+  private long m_opened_at_ms = 0;
+  private boolean m_trial_in_flight = false;
+
+  /**
+   * @param name
+   *          Names the stats this breaker reports, under "breaker.<name>".
+   * @param failure_threshold
+   *          How many consecutive failures open the breaker.
+   * @param open_ms
+   *          How long the breaker stays open before letting a trial request
+   *          through.
+   */
+  public CircuitBreaker(String name, int failure_threshold, long open_ms) {
+    m_name = name;
+    m_failure_threshold = failure_threshold;
+    m_open_ms = open_ms;
+  }
+
+  /**
+   * Overridden by tests.
+   */
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * @return Whether the caller may send a request now. Callers that get true
+   *         must report the outcome with recordSuccess(), recordFailure(), or
+   *         recordNotSent().
+   */
+  public synchronized boolean allowRequest() {
+    switch (m_state) {
+    case CLOSED:
+      return true;
+    case OPEN:
+      if (now() - m_opened_at_ms < m_open_ms) {
+        Stats.increment("breaker." + m_name + ".rejected");
+        return false;
+      }
+      setState(State.HALF_OPEN);
+      m_trial_in_flight = true;
+      return true;
+    case HALF_OPEN:
+      if (m_trial_in_flight) {
+        // Only one request gets to find out whether NextBus has recovered.
+        Stats.increment("breaker." + m_name + ".rejected");
+        return false;
+      }
+      m_trial_in_flight = true;
+      return true;
+    }
+    throw new AssertionError("Unknown state " + m_state);
+  }
+
+  public synchronized void recordSuccess() {
+    m_consecutive_failures = 0;
+    m_trial_in_flight = false;
+    setState(State.CLOSED);
+  }
+
+  public synchronized void recordFailure() {
+    m_consecutive_failures++;
+    m_trial_in_flight = false;
+    if (m_state == State.HALF_OPEN
+        || m_consecutive_failures >= m_failure_threshold) {
+      if (m_state != State.OPEN) {
+        Stats.increment("breaker." + m_name + ".opened");
+      }
+      m_opened_at_ms = now();
+      setState(State.OPEN);
+    }
+  }
+
+  /**
+   * Reports that an allowed request was given up on before it reached
+   * NextBus, for example because its deadline passed first. That says nothing
+   * about NextBus's health, so only a trial slot is handed back.
+   */
+  public synchronized void recordNotSent() {
+    m_trial_in_flight = false;
+  }
+
+  public synchronized State getState() {
+    return m_state;
+  }
+
+  private void setState(State state) {
+    m_state = state;
+    Stats.set("breaker." + m_name + ".state", state.ordinal());
+  }
+}
@@ -0,0 +1,106 @@
+package info.yasskin.droidmuni;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Tracks whether the device has a network connection, so the provider can skip
+ * requests that are bound to fail, and holds the refreshes it skipped until the
+ * connection comes back.
+ */
+final class ConnectivityMonitor {
+  private final ConnectivityManager m_connectivity_manager;
+  private volatile boolean m_online;
+  /**
+   * Keyed so that asking twice for the same refresh only runs it once.
+   * Guarded by this.
+   */
+  private final Map<String, Runnable> m_deferred =
+      new LinkedHashMap<String, Runnable>();
+
+  private final BroadcastReceiver m_receiver = new BroadcastReceiver() {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      update();
+    }
+  };
+
+  /**
+   * Starts listening for connectivity changes for the rest of the process's
+   * life.
+   */
+  public ConnectivityMonitor(Context context) {
+    m_connectivity_manager =
+        (ConnectivityManager) context.getSystemService(
+            Context.CONNECTIVITY_SERVICE);
+    m_online = checkOnline();
+    Stats.set("connectivity.online", m_online ? 1 : 0);
+    context.getApplicationContext().registerReceiver(m_receiver,
+        new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+  }
+
+  public boolean isOnline() {
+    return m_online;
+  }
+
+  /**
+   * Runs 'refresh' on Globals.EXECUTOR once the device is back online. If
+   * another refresh with the same key is already waiting, this one replaces
+   * it.
+   */
+  public void runWhenOnline(String key, Runnable refresh) {
+    synchronized (this) {
+      m_deferred.put(key, refresh);
+      Stats.set("connectivity.deferred", m_deferred.size());
+    }
+    // We may have come back online between the caller's isOnline() check and
+    // queueing the refresh.
+    if (isOnline()) {
+      runDeferred();
+    }
+  }
+
+  private boolean checkOnline() {
+    if (m_connectivity_manager == null) {
+      // Without a way to tell, let the requests find out.
+      return true;
+    }
+    NetworkInfo network = m_connectivity_manager.getActiveNetworkInfo();
+    return network != null && network.isConnected();
+  }
+
+  private void update() {
+    final boolean online = checkOnline();
+    if (online == m_online) {
+      return;
+    }
+    m_online = online;
+    Log.i("DroidMuni", online ? "Network connected" : "Network lost");
+    Stats.set("connectivity.online", online ? 1 : 0);
+    if (online) {
+      runDeferred();
+    }
+  }
+
+  private void runDeferred() {
+    final List<Runnable> refreshes;
+    synchronized (this) {
+      refreshes = new ArrayList<Runnable>(m_deferred.values());
+      m_deferred.clear();
+      Stats.set("connectivity.deferred", 0);
+    }
+    for (Runnable refresh : refreshes) {
+      Globals.EXECUTOR.execute(refresh);
+    }
+  }
+}
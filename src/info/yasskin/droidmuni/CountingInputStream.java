@@ -0,0 +1,61 @@
+package info.yasskin.droidmuni;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it.
+ */
+final class CountingInputStream extends FilterInputStream {
+  private long m_count = 0;
+  private long m_mark = 0;
+
+  public CountingInputStream(InputStream in) {
+    super(in);
+  }
+
+  /**
+   * @return The number of bytes read or skipped so far.
+   */
+  public long getCount() {
+    return m_count;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int result = in.read();
+    if (result != -1) {
+      m_count++;
+    }
+    return result;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    int result = in.read(buffer, offset, length);
+    if (result != -1) {
+      m_count += result;
+    }
+    return result;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long result = in.skip(n);
+    m_count += result;
+    return result;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+    in.mark(readlimit);
+    m_mark = m_count;
+  }
+
+  @Override
+  public synchronized void reset() throws IOException {
+    in.reset();
+    m_count = m_mark;
+  }
+}
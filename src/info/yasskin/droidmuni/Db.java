@@ -1,5 +1,6 @@
 package info.yasskin.droidmuni;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -9,7 +10,12 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
 
 /**
  * Stores the cached database of NextBus route and stop information.
@@ -17,38 +23,238 @@ import android.database.sqlite.SQLiteOpenHelper;
  * @author Jeffrey Yasskin <jyasskin@gmail.com>
  * 
  */
-final class Db extends SQLiteOpenHelper {
+final class Db extends SQLiteOpenHelper implements Catalog {
+  /**
+   * One step of onUpgrade(): changes the schema from one version to the next
+   * without losing the cached data.
+   */
+  private interface Migration {
+    void apply(SQLiteDatabase db);
+  }
+
+  /**
+   * The oldest schema MIGRATIONS can upgrade. onUpgrade() rebuilds anything
+   * older from scratch.
+   */
+  static final int OLDEST_MIGRATABLE_VERSION = 3;
+
+  /**
+   * MIGRATIONS[i] upgrades version OLDEST_MIGRATABLE_VERSION + i to the next
+   * version. To change the schema, change onCreate() and append the step
+   * that makes the same change to an existing database.
+   */
+  private static final Migration[] MIGRATIONS = {
+    // 3 -> 4: The favorites dashboard.
+    new Migration() {
+      public void apply(SQLiteDatabase db) {
+        createFavorites(db);
+      }
+    },
+    // 4 -> 5: Covering indexes for the provider's queries.
+    new Migration() {
+      public void apply(SQLiteDatabase db) {
+        createIndexes(db);
+      }
+    },
+  };
+
+  static final int VERSION = OLDEST_MIGRATABLE_VERSION + MIGRATIONS.length;
+
   public Db(Context context) {
-    super(context, "NextMUNIDb", null, 3);
+    super(context, "NextMUNIDb", null, VERSION);
+  }
+
+  /*
+   * The provider's queries, kept constant so each is compiled once per
+   * connection: the single-value ones in m_reads, and the rest in
+   * SQLiteDatabase's own compiled-SQL cache. Package-private so tests can
+   * check their query plans.
+   */
+  static final String ROUTE_BY_TAG_SQL =
+      "SELECT _id, tag, upstream_index, description, last_direction_update_ms"
+          + " FROM Routes WHERE tag == ?";
+  static final String ROUTES_SQL =
+      "SELECT _id, tag, description FROM Routes ORDER BY upstream_index";
+  static final String DIRECTIONS_SQL =
+      "SELECT Directions._id AS _id, Routes.tag AS route_tag,"
+          + " Directions.tag AS tag, Directions.title AS title"
+          + " FROM Directions INNER JOIN Routes"
+          + " ON (Directions.route_id == Routes._id)"
+          + " WHERE Routes.tag == ? AND use_for_ui != 0"
+          + " ORDER BY Directions.tag ASC";
+  static final String STOPS_SQL =
+      "SELECT Stops._id AS _id, Routes.tag AS route_tag,"
+          + " Directions.tag AS direction_tag, Stops._id AS stop_id,"
+          + " Stops.title AS title, latitude AS lat, longitude AS lon,"
+          + " Stops.tag AS stop_tag" + " FROM Routes JOIN Directions"
+          + " ON (Routes._id == Directions.route_id)" + " JOIN DirectionStops"
+          + " ON (Directions._id == DirectionStops.direction)"
+          + " JOIN Stops ON (DirectionStops.stop == Stops._id)"
+          + " WHERE Routes.tag == ? AND Directions.tag == ?"
+          + " ORDER BY stop_order ASC";
+  static final String FAVORITES_SQL =
+      "SELECT Favorites._id AS _id, route_tag, stop_tag, Stops.title AS title"
+          + " FROM Favorites LEFT JOIN Stops ON (stop_tag == Stops.tag)"
+          + " ORDER BY Favorites._id ASC";
+  static final String STOP_TAG_SQL = "SELECT tag FROM Stops WHERE _id == ?";
+  static final String HAS_ROUTES_SQL =
+      "SELECT EXISTS (SELECT 1 FROM Routes)";
+  static final String ROUTES_UPDATED_SQL =
+      "SELECT IFNULL(MAX(last_update), " + Long.MIN_VALUE + ")"
+          + " FROM RoutesUpdated";
+  static final String LAST_MODIFIED_SQL =
+      "SELECT MAX(IFNULL((SELECT MAX(last_update) FROM RoutesUpdated), 0),"
+          + " IFNULL((SELECT MAX(last_direction_update_ms) FROM Routes), 0))";
+
+  /**
+   * Once the WAL fills past this many pages, the next commit copies it back
+   * into the database. SQLite's default is 1000. Our writes are a few large
+   * route refreshes, which the provider folds in with checkpoint() when it
+   * rebuilds its catalog copies; this only bounds how much a run of small
+   * writes, like favorites, lets pile up.
+   */
+  private static final int WAL_AUTOCHECKPOINT_PAGES = 100;
+  /**
+   * Truncates the WAL back to this many bytes after a checkpoint, so one big
+   * refresh doesn't leave a big file behind.
+   */
+  private static final int WAL_SIZE_LIMIT_BYTES = 256 * 1024;
+
+  /**
+   * Whether onOpen() switched the database to write-ahead logging.
+   */
+  private volatile boolean m_wal = false;
+  /**
+   * A second, read-only connection for reads, so they don't wait for a
+   * route refresh's write transaction. Only opened in WAL mode, since a
+   * rollback journal locks readers out of the file during a write anyway.
+   */
+  private SQLiteDatabase m_reader; // Guarded by this.
+
+  /**
+   * Compiled against the current reader handle; see reads().
+   */
+  private StatementCache m_reads; // Guarded by this.
+
+  /**
+   * @return The handle catalog reads should use. In WAL mode that's the
+   *         read-only connection, which sees the last committed catalog even
+   *         while another thread is writing, unless this thread is inside a
+   *         write transaction and needs to see its own changes.
+   */
+  synchronized SQLiteDatabase getReaderDatabase() {
+    final SQLiteDatabase tables = getReadableDatabase();
+    if (!m_wal || tables.inTransaction()) {
+      return tables;
+    }
+    if (m_reader == null || !m_reader.isOpen()) {
+      m_reader =
+          SQLiteDatabase.openDatabase(tables.getPath(), null,
+              SQLiteDatabase.OPEN_READONLY);
+    }
+    return m_reader;
+  }
+
+  /**
+   * Several reads that must see the tables as of one moment.
+   */
+  interface ConsistentRead<T> {
+    T read(SQLiteDatabase tables);
+  }
+
+  /**
+   * Runs 'read' inside one read transaction. In WAL mode that's a deferred
+   * transaction on a private read-only connection, so writers aren't held
+   * off, and readers sharing getReaderDatabase() aren't pinned to its
+   * snapshot. Otherwise, or if this thread is inside a write transaction,
+   * it's a transaction on the main handle.
+   */
+  <T> T readConsistently(ConsistentRead<T> read) {
+    final SQLiteDatabase tables = getReadableDatabase();
+    if (!m_wal || tables.inTransaction()) {
+      tables.beginTransaction();
+      try {
+        final T result = read.read(tables);
+        tables.setTransactionSuccessful();
+        return result;
+      } finally {
+        tables.endTransaction();
+      }
+    }
+    final SQLiteDatabase connection =
+        SQLiteDatabase.openDatabase(tables.getPath(), null,
+            SQLiteDatabase.OPEN_READONLY);
+    try {
+      // beginTransaction() is always EXCLUSIVE. A savepoint outside any
+      // transaction opens a deferred one, which only takes a read snapshot.
+      connection.execSQL("SAVEPOINT consistent_read");
+      try {
+        return read.read(connection);
+      } finally {
+        connection.execSQL("RELEASE consistent_read");
+      }
+    } finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * @return true if the database uses write-ahead logging, so reads run
+   *         alongside writes.
+   */
+  public boolean isWriteAheadLoggingEnabled() {
+    getReadableDatabase();
+    return m_wal;
+  }
+
+  /**
+   * @return The compiled single-value reads for the current reader handle,
+   *         recompiling them if the handle changed.
+   */
+  private synchronized StatementCache reads() {
+    final SQLiteDatabase tables = getReaderDatabase();
+    if (m_reads == null || m_reads.getDatabase() != tables) {
+      if (m_reads != null) {
+        m_reads.close();
+      }
+      m_reads = new StatementCache(tables);
+    }
+    return m_reads;
+  }
+
+  /**
+   * Runs a single-value read through reads(), or straight against the
+   * writable handle if this thread is in a transaction on it, so a write
+   * transaction's reads don't recompile the cache for a different handle.
+   */
+  private long longForQuery(String sql, String... args) {
+    final SQLiteDatabase tables = getReadableDatabase();
+    if (tables.inTransaction()) {
+      return DatabaseUtils.longForQuery(tables, sql, args);
+    }
+    return reads().longForQuery(sql, args);
+  }
+
+  @Override
+  public synchronized void close() {
+    if (m_reads != null) {
+      m_reads.close();
+      m_reads = null;
+    }
+    if (m_reader != null) {
+      m_reader.close();
+      m_reader = null;
+    }
+    super.close();
   }
 
   @Override
   public void onCreate(SQLiteDatabase db) {
     db.beginTransaction();
     try {
-      db.execSQL("CREATE TABLE RoutesUpdated (last_update INTEGER)");
-
-      db.execSQL("CREATE TABLE Routes ("
-                 + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
-                 + "tag TEXT UNIQUE," + "upstream_index INTEGER,"
-                 + "description TEXT,"
-                 + "last_direction_update_ms INTEGER DEFAULT 0)");
-
-      db.execSQL("CREATE TABLE Directions ("
-                 + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
-                 + "route_id INTEGER REFERENCES Routes(_id)," + "tag TEXT,"
-                 + "title TEXT," + "name TEXT,"
-                 // use_for_ui is actually 0 or 1 for false or true.
-                 + "use_for_ui INTEGER," + "UNIQUE(route_id, tag))");
-
-      db.execSQL("CREATE TABLE Stops (" + "_id INTEGER PRIMARY KEY,"
-                 + "tag INTEGER," + "title TEXT," + "latitude DOUBLE,"
-                 + "longitude DOUBLE)");
-
-      db.execSQL("CREATE TABLE DirectionStops ("
-                 + "direction INTEGER REFERENCES Directions(_id),"
-                 + "stop INTEGER REFERENCES Stops(_id),"
-                 + "stop_order INTEGER," + "UNIQUE(direction, stop_order))");
+      createCatalog(db);
+      createFavorites(db);
+      createIndexes(db);
 
       db.setTransactionSuccessful();
     } finally {
@@ -56,31 +262,188 @@ final class Db extends SQLiteOpenHelper {
     }
   }
 
+  /**
+   * Creates the tables holding the data we cache from NextBus.
+   */
+  private static void createCatalog(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE RoutesUpdated (last_update INTEGER)");
+
+    db.execSQL("CREATE TABLE Routes ("
+               + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+               + "tag TEXT UNIQUE," + "upstream_index INTEGER,"
+               + "description TEXT,"
+               + "last_direction_update_ms INTEGER DEFAULT 0)");
+
+    db.execSQL("CREATE TABLE Directions ("
+               + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+               + "route_id INTEGER REFERENCES Routes(_id)," + "tag TEXT,"
+               + "title TEXT," + "name TEXT,"
+               // use_for_ui is actually 0 or 1 for false or true.
+               + "use_for_ui INTEGER," + "UNIQUE(route_id, tag))");
+
+    db.execSQL("CREATE TABLE Stops (" + "_id INTEGER PRIMARY KEY,"
+               + "tag INTEGER," + "title TEXT," + "latitude DOUBLE,"
+               + "longitude DOUBLE)");
+
+    db.execSQL("CREATE TABLE DirectionStops ("
+               + "direction INTEGER REFERENCES Directions(_id),"
+               + "stop INTEGER REFERENCES Stops(_id),"
+               + "stop_order INTEGER," + "UNIQUE(direction, stop_order))");
+  }
+
+  /**
+   * Drops the tables createCatalog() creates, and their indexes, along with
+   * StopRoutes, which versions before 3 had.
+   */
+  private static void dropCatalog(SQLiteDatabase db) {
+    db.execSQL("DROP TABLE IF EXISTS RoutesUpdated");
+    db.execSQL("DROP TABLE IF EXISTS Routes");
+    db.execSQL("DROP TABLE IF EXISTS Directions");
+    db.execSQL("DROP TABLE IF EXISTS Stops");
+    db.execSQL("DROP TABLE IF EXISTS DirectionStops");
+    db.execSQL("DROP TABLE IF EXISTS StopRoutes");
+  }
+
+  /**
+   * Creates the table of stops the user pinned to the favorites dashboard,
+   * added in version 4. These refer to routes and stops by tag, since those
+   * are what NextBus's predictionsForMultiStops command takes.
+   */
+  private static void createFavorites(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE Favorites ("
+               + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+               + "route_tag TEXT," + "stop_tag INTEGER,"
+               + "UNIQUE(route_tag, stop_tag))");
+  }
+
+  /**
+   * Creates the covering indexes for the provider's queries, added in version
+   * 5. Each holds every column its query reads, so SQLite answers from the
+   * index without visiting the table. The UNIQUE constraints already index
+   * Routes by tag and Directions by (route_id, tag).
+   */
+  private static void createIndexes(SQLiteDatabase db) {
+    // ROUTES_SQL, in order without a sort.
+    db.execSQL("CREATE INDEX IF NOT EXISTS RoutesByUpstreamIndex"
+               + " ON Routes (upstream_index, tag, description)");
+    // DIRECTIONS_SQL, and the Directions step of STOPS_SQL.
+    db.execSQL("CREATE INDEX IF NOT EXISTS DirectionsByRoute"
+               + " ON Directions (route_id, tag, use_for_ui, title)");
+    // The DirectionStops step of STOPS_SQL, in stop_order.
+    db.execSQL("CREATE INDEX IF NOT EXISTS DirectionStopsByDirection"
+               + " ON DirectionStops (direction, stop_order, stop)");
+    // FAVORITES_SQL joins Stops by tag, which otherwise scans every stop.
+    db.execSQL("CREATE INDEX IF NOT EXISTS StopsByTag ON Stops (tag, title)");
+  }
+
+  /**
+   * Applies each migration step from oldVersion to newVersion, so the cached
+   * routes, stops, favorites, and their update times all survive. Databases
+   * older than OLDEST_MIGRATABLE_VERSION are dropped and recreated instead.
+   */
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     db.beginTransaction();
     try {
-      db.execSQL("DROP TABLE IF EXISTS RoutesUpdate");
-      db.execSQL("DROP TABLE IF EXISTS Routes");
-      db.execSQL("DROP TABLE IF EXISTS Directions");
-      db.execSQL("DROP TABLE IF EXISTS Stops");
-      db.execSQL("DROP TABLE IF EXISTS DirectionStops");
-      db.execSQL("DROP TABLE IF EXISTS StopRoutes");
-
-      onCreate(db);
-
+      if (oldVersion < OLDEST_MIGRATABLE_VERSION) {
+        Log.i("DroidMuni", "Rebuilding the version " + oldVersion
+                           + " database");
+        rebuild(db);
+      } else {
+        for (int version = oldVersion; version < newVersion; version++) {
+          Log.i("DroidMuni", "Migrating the database from version " + version);
+          MIGRATIONS[version - OLDEST_MIGRATABLE_VERSION].apply(db);
+        }
+      }
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
     }
   }
 
+  private void rebuild(SQLiteDatabase db) {
+    dropCatalog(db);
+    db.execSQL("DROP TABLE IF EXISTS Favorites");
+
+    onCreate(db);
+  }
+
+  /**
+   * Switches to write-ahead logging where the platform has it (Honeycomb
+   * and later), so catalog reads can run while fillDbForRoute() holds a
+   * write transaction for a whole fetch and parse. Older platforms keep the
+   * rollback journal, and their reads wait for writes as before.
+   */
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    super.onOpen(db);
+    if (db.isReadOnly() || Build.VERSION.SDK_INT < 11) {
+      return;
+    }
+    try {
+      m_wal = db.enableWriteAheadLogging();
+    } catch (SQLiteException e) {
+      Log.w("DroidMuni", "Couldn't enable write-ahead logging", e);
+      m_wal = false;
+    }
+    if (!m_wal) {
+      return;
+    }
+    pragma(db, "PRAGMA wal_autocheckpoint = " + WAL_AUTOCHECKPOINT_PAGES);
+    pragma(db, "PRAGMA journal_size_limit = " + WAL_SIZE_LIMIT_BYTES);
+  }
+
+  /**
+   * Runs a PRAGMA that may return a row, which execSQL() rejects on some
+   * platforms.
+   */
+  private static void pragma(SQLiteDatabase db, String sql) {
+    Cursor result = db.rawQuery(sql, null);
+    try {
+      result.moveToFirst();
+    } finally {
+      result.close();
+    }
+  }
+
+  /**
+   * Copies committed WAL pages back into the database file. Call on a
+   * background thread after a bulk write, so the next small write doesn't
+   * pay for checkpointing the whole refresh and no query waits for it
+   * either. Does nothing outside WAL mode.
+   */
+  public void checkpoint() {
+    if (!m_wal) {
+      return;
+    }
+    final long start_ns = System.nanoTime();
+    try {
+      pragma(getWritableDatabase(), "PRAGMA wal_checkpoint");
+    } catch (SQLiteException e) {
+      // The next commit past the autocheckpoint threshold will try again.
+      Log.w("DroidMuni", "WAL checkpoint failed", e);
+      return;
+    }
+    Stats.recordLatency("db.checkpoint",
+        (System.nanoTime() - start_ns) / 1000000);
+  }
+
   /**
-   * Deletes the contents of all tables and sets things up as if the application
-   * had just been installed.
+   * Deletes everything cached from NextBus and sets the catalog tables up as
+   * if the application had just been installed. The user's favorites stay,
+   * since they're keyed by tag and NextBus can fill the catalog back in.
    */
   public void eraseEverything() {
-    onUpgrade(getWritableDatabase(), 0, 0);
+    final SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      dropCatalog(db);
+      createCatalog(db);
+      createIndexes(db);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
   }
 
   public static class Route {
@@ -148,55 +511,16 @@ final class Db extends SQLiteOpenHelper {
     public final double lon;
   }
 
-  public static class Prediction implements Comparable<Prediction> {
-    public Prediction(String route_tag, long predicted_time,
-        boolean is_departure, String direction_tag, String block) {
+  public static class Favorite {
+    public Favorite(long id, String route_tag, int stop_tag) {
+      this.id = id;
       this.route_tag = route_tag;
-      this.predicted_time = predicted_time;
-      this.is_departure = is_departure;
-      this.direction_tag = direction_tag;
-      this.block = block;
+      this.stop_tag = stop_tag;
     }
 
-    /**
-     * Number of milliseconds past the Unix epoch, GMT
-     */
-    public final long predicted_time;
-    /**
-     * ???
-     */
-    public final boolean is_departure;
-    /**
-     * The tag of a Route instance, a bus from which will arrive at the stop at
-     * this Prediction's time.
-     */
+    public final long id;
     public final String route_tag;
-    /**
-     * The tag of a Direction instance, to use to describe the endpoint of the
-     * route. This can differ from the direction the user looked up when
-     * different busses stop in different places.
-     */
-    public final String direction_tag;
-    /**
-     * ???
-     */
-    public final String block;
-
-    /**
-     * Compares based on the predicted time.
-     * 
-     * @see java.lang.Comparable#compareTo(java.lang.Object)
-     */
-    public int compareTo(Prediction another) {
-      if (this.predicted_time < another.predicted_time)
-        return -1;
-      if (this.predicted_time > another.predicted_time)
-        return 1;
-      int cmp = this.route_tag.compareTo(another.route_tag);
-      if (cmp != 0)
-        return cmp;
-      return this.direction_tag.compareTo(another.direction_tag);
-    }
+    public final int stop_tag;
   }
 
   /**
@@ -241,27 +565,63 @@ final class Db extends SQLiteOpenHelper {
       }
 
       // Update the "last updated" time to now.
-      tables.delete("RoutesUpdated", null, null);
-      ContentValues values = new ContentValues(1);
-      values.put("last_update", System.currentTimeMillis());
-      tables.insertOrThrow("RoutesUpdated", null, values);
+      setRoutesUpdated(tables, System.currentTimeMillis());
+
+      tables.setTransactionSuccessful();
+    } finally {
+      tables.endTransaction();
+    }
+  }
+
+  /**
+   * Records that the stored routes are current as of now without changing
+   * them, for when NextBus tells us the route list hasn't changed.
+   */
+  public void touchRoutes() {
+    touchRoutes(System.currentTimeMillis());
+  }
 
+  /**
+   * Records that the stored routes are current as of 'time_millis'.
+   */
+  public void touchRoutes(long time_millis) {
+    SQLiteDatabase tables = getWritableDatabase();
+    tables.beginTransaction();
+    try {
+      setRoutesUpdated(tables, time_millis);
       tables.setTransactionSuccessful();
     } finally {
       tables.endTransaction();
     }
   }
 
+  /**
+   * Records that route 'route_id''s stops and directions are current as of
+   * 'time_millis'.
+   */
+  public void touchRoute(long route_id, long time_millis) {
+    ContentValues values = new ContentValues(1);
+    values.put("last_direction_update_ms", time_millis);
+    getWritableDatabase().update("Routes", values, "_id = ?",
+        new String[] { route_id + "" });
+  }
+
+  private static void setRoutesUpdated(SQLiteDatabase tables,
+      long time_millis) {
+    tables.delete("RoutesUpdated", null, null);
+    ContentValues values = new ContentValues(1);
+    values.put("last_update", time_millis);
+    tables.insertOrThrow("RoutesUpdated", null, values);
+  }
+
   public Route getRoute(String route_tag) {
-    SQLiteDatabase tables = getReadableDatabase();
-    final String[] COLUMNS =
-        { "_id", "tag", "upstream_index", "description",
-         "last_direction_update_ms" };
     Cursor routes =
-        tables.query("Routes", COLUMNS, "tag == ?", new String[] { route_tag },
-            null, null, null);
+        getReaderDatabase().rawQuery(ROUTE_BY_TAG_SQL,
+            new String[] { route_tag });
     try {
-      routes.moveToFirst();
+      if (!routes.moveToFirst()) {
+        return null;
+      }
       Route result =
           new Route(routes.getLong(0), routes.getInt(2), routes.getString(1),
               routes.getString(3), routes.getLong(4));
@@ -271,33 +631,75 @@ final class Db extends SQLiteOpenHelper {
     }
   }
 
-  public boolean hasRoutes() {
-    SQLiteDatabase tables = getReadableDatabase();
-    return DatabaseUtils.queryNumEntries(tables, "Routes") > 0;
+  public int getStopTag(String stop_id) {
+    try {
+      return (int) longForQuery(STOP_TAG_SQL, stop_id);
+    } catch (SQLiteDoneException e) {
+      return -1;
+    }
   }
 
   /**
-   * Looks up the time the routes were last updated and returns whether that's
-   * new enough.
-   * 
-   * @param time_millis
-   *          The oldest time the routes can have been updated for this method
-   *          to return true.
+   * Adds the route and direction tags and titles we have stored to 'symbols',
+   * so parsing the next document finds them already there.
    */
-  public boolean routesNewerThan(long time_millis) {
-    SQLiteDatabase tables = getReadableDatabase();
-    Cursor updated =
-        tables.query("RoutesUpdated", null, null, null, null, null, null);
+  public void seedSymbols(SymbolTable symbols) {
+    final Cursor strings =
+        getReaderDatabase().rawQuery(
+            "SELECT tag FROM Routes UNION SELECT description FROM Routes"
+                + " UNION SELECT tag FROM Directions"
+                + " UNION SELECT title FROM Directions"
+                + " UNION SELECT name FROM Directions", null);
     try {
-      if (!updated.moveToFirst()) {
-        // Empty Cursor means routes were never updated.
-        return false;
+      for (strings.moveToFirst(); !strings.isAfterLast(); strings.moveToNext()) {
+        if (!strings.isNull(0)) {
+          symbols.intern(strings.getString(0));
+        }
       }
-      long update_time = updated.getLong(0);
-      return update_time >= time_millis;
     } finally {
-      updated.close();
+      strings.close();
+    }
+  }
+
+  public boolean hasRoutes() {
+    return longForQuery(HAS_ROUTES_SQL) != 0;
+  }
+
+  public boolean routesNewerThan(long time_millis) {
+    // Long.MIN_VALUE means routes were never updated.
+    final long update_time = longForQuery(ROUTES_UPDATED_SQL);
+    return update_time != Long.MIN_VALUE && update_time >= time_millis;
+  }
+
+  /**
+   * @return The last time anything in the route, direction, or stop tables
+   *         changed, or 0 if they've never been filled. A copy of the tables
+   *         made when this returned the same value is still current.
+   */
+  public long getLastModifiedMs() {
+    return longForQuery(LAST_MODIFIED_SQL);
+  }
+
+  public Cursor queryRoutes() {
+    return nullIfEmpty(getReaderDatabase().rawQuery(ROUTES_SQL, null));
+  }
+
+  public Cursor queryDirections(String route_tag) {
+    return nullIfEmpty(getReaderDatabase().rawQuery(DIRECTIONS_SQL,
+        new String[] { route_tag }));
+  }
+
+  public Cursor queryStops(String route_tag, String direction_tag) {
+    return nullIfEmpty(getReaderDatabase().rawQuery(STOPS_SQL,
+        new String[] { route_tag, direction_tag }));
+  }
+
+  private static Cursor nullIfEmpty(Cursor result) {
+    if (result.getCount() == 0) {
+      result.close();
+      return null;
     }
+    return result;
   }
 
   /**
@@ -384,48 +786,254 @@ final class Db extends SQLiteOpenHelper {
   }
 
   /**
-   * Adds 'stop' to the set of stops if it's not already present.
+   * Returns a RouteConfigParser.Sink that writes a route's stops and
+   * directions into 'tables' as they're parsed, replacing whatever the route
+   * had before. The caller must already be in a transaction on 'tables', and
+   * must close() the writer when done. If parsing fails, the caller should
+   * roll the transaction back, since the writer may have stored part of the
+   * route.
+   * 
+   * Writing the same route twice is harmless, so a retried request can reuse
+   * the writer.
+   */
+  public RouteWriter newRouteWriter(SQLiteDatabase tables, long route_id) {
+    return new RouteWriter(tables, route_id);
+  }
+
+  public static final class RouteWriter implements RouteConfigParser.Sink {
+    private final SQLiteDatabase m_tables;
+    private final long m_route_id;
+    private final StopUpserter m_stops;
+    private final SQLiteStatement m_find_direction;
+    private final SQLiteStatement m_update_direction;
+    private final SQLiteStatement m_insert_direction;
+    private final SQLiteStatement m_clear_direction_stops;
+    private final SQLiteStatement m_insert_direction_stop;
+    /**
+     * The _ids of the directions this document has listed so far. Any other
+     * directions of the route are deleted at the end.
+     */
+    private final List<Long> m_seen_directions = new ArrayList<Long>();
+    private long m_direction_id;
+    private int m_stop_order;
+
+    private RouteWriter(SQLiteDatabase tables, long route_id) {
+      m_tables = tables;
+      m_route_id = route_id;
+      m_stops = new StopUpserter(tables);
+      m_find_direction =
+          tables.compileStatement("SELECT _id FROM Directions"
+                                  + " WHERE route_id == ? AND tag == ?");
+      m_update_direction =
+          tables.compileStatement("UPDATE Directions"
+                                  + " SET title = ?, name = ?, use_for_ui = ?"
+                                  + " WHERE _id == ?");
+      m_insert_direction =
+          tables.compileStatement("INSERT INTO Directions"
+                                  + " (route_id, tag, title, name, use_for_ui)"
+                                  + " VALUES (?, ?, ?, ?, ?)");
+      m_clear_direction_stops =
+          tables.compileStatement("DELETE FROM DirectionStops"
+                                  + " WHERE direction == ?");
+      m_insert_direction_stop =
+          tables.compileStatement("INSERT INTO DirectionStops"
+                                  + " (direction, stop, stop_order)"
+                                  + " VALUES (?, ?, ?)");
+    }
+
+    public void onStart() {
+      m_seen_directions.clear();
+    }
+
+    public void onStop(Stop stop) {
+      m_stops.put(stop);
+    }
+
+    public void onDirectionStart(String tag, String title, String name,
+        boolean useForUI) {
+      m_find_direction.bindLong(1, m_route_id);
+      bindStringOrNull(m_find_direction, 2, tag);
+      try {
+        m_direction_id = m_find_direction.simpleQueryForLong();
+        bindStringOrNull(m_update_direction, 1, title);
+        bindStringOrNull(m_update_direction, 2, name);
+        m_update_direction.bindLong(3, useForUI ? 1 : 0);
+        m_update_direction.bindLong(4, m_direction_id);
+        m_update_direction.execute();
+      } catch (SQLiteDoneException e) {
+        m_insert_direction.bindLong(1, m_route_id);
+        bindStringOrNull(m_insert_direction, 2, tag);
+        bindStringOrNull(m_insert_direction, 3, title);
+        bindStringOrNull(m_insert_direction, 4, name);
+        m_insert_direction.bindLong(5, useForUI ? 1 : 0);
+        m_direction_id = m_insert_direction.executeInsert();
+      }
+      m_seen_directions.add(m_direction_id);
+      m_clear_direction_stops.bindLong(1, m_direction_id);
+      m_clear_direction_stops.execute();
+      m_stop_order = 0;
+    }
+
+    public void onDirectionStop(int stop_tag, int stop_id) {
+      m_insert_direction_stop.bindLong(1, m_direction_id);
+      m_insert_direction_stop.bindLong(2, stop_id);
+      m_insert_direction_stop.bindLong(3, m_stop_order++);
+      m_insert_direction_stop.executeInsert();
+    }
+
+    public void onDirectionEnd() {
+    }
+
+    /**
+     * Deletes the route's directions that this document didn't list.
+     */
+    public void onEnd() {
+      StringBuilder seen = new StringBuilder();
+      for (Long id : m_seen_directions) {
+        if (seen.length() > 0) {
+          seen.append(',');
+        }
+        seen.append(id);
+      }
+      final String stale_directions =
+          "SELECT _id FROM Directions WHERE route_id == " + m_route_id
+              + " AND _id NOT IN (" + seen + ")";
+      m_tables.execSQL("DELETE FROM DirectionStops WHERE direction IN ("
+                       + stale_directions + ")");
+      m_tables.execSQL("DELETE FROM Directions WHERE _id IN ("
+                       + stale_directions + ")");
+    }
+
+    public void close() {
+      m_stops.close();
+      m_find_direction.close();
+      m_update_direction.close();
+      m_insert_direction.close();
+      m_clear_direction_stops.close();
+      m_insert_direction_stop.close();
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement,
+        int index, String value) {
+      if (value == null) {
+        statement.bindNull(index);
+      } else {
+        statement.bindString(index, value);
+      }
+    }
+  }
+
+  /**
+   * Writes RouteWriter's stops with two compiled statements and no reads: an
+   * INSERT OR IGNORE for new stops, then an UPDATE that only matches, and so
+   * only writes, when an existing stop changed. Unlike INSERT OR REPLACE, an
+   * unchanged stop costs no write at all.
+   */
+  static final class StopUpserter {
+    private final SQLiteStatement m_insert;
+    private final SQLiteStatement m_update;
+
+    StopUpserter(SQLiteDatabase tables) {
+      m_insert =
+          tables.compileStatement("INSERT OR IGNORE INTO Stops"
+                                  + " (_id, tag, title, latitude, longitude)"
+                                  + " VALUES (?1, ?2, ?3, ?4, ?5)");
+      // minSdkVersion 7's SQLite has no IS NOT, so the title comparison
+      // spells out its null handling.
+      m_update =
+          tables.compileStatement("UPDATE Stops SET tag = ?2, title = ?3,"
+                                  + " latitude = ?4, longitude = ?5"
+                                  + " WHERE _id == ?1 AND (tag != ?2"
+                                  + " OR latitude != ?4 OR longitude != ?5"
+                                  + " OR NOT (IFNULL(title == ?3, 0)"
+                                  + " OR (title IS NULL AND ?3 IS NULL)))");
+    }
+
+    public void put(Stop stop) {
+      bind(m_insert, stop);
+      m_insert.execute();
+      bind(m_update, stop);
+      m_update.execute();
+    }
+
+    private static void bind(SQLiteStatement statement, Stop stop) {
+      statement.bindLong(1, stop.id);
+      statement.bindLong(2, stop.tag);
+      RouteWriter.bindStringOrNull(statement, 3, stop.title);
+      statement.bindDouble(4, stop.lat);
+      statement.bindDouble(5, stop.lon);
+    }
+
+    public void close() {
+      m_insert.close();
+      m_update.close();
+    }
+  }
+
+  /**
+   * Pins route_tag's stop_tag to the favorites dashboard, unless it's already
+   * there.
+   * 
+   * @return The _id of the favorite.
    */
-  public synchronized void addStop(Stop stop, long route_id) {
+  public long addFavorite(String route_tag, int stop_tag) {
     final SQLiteDatabase tables = getWritableDatabase();
     tables.beginTransaction();
     try {
-      final ContentValues values = new ContentValues(4);
-      final Cursor existing_stop =
-          tables.query("Stops", new String[] { "tag", "title", "latitude",
-                                              "longitude" }, "_id == ?",
-              new String[] { stop.id + "" }, null, null, null);
+      final String[] args = new String[] { route_tag, stop_tag + "" };
+      final Cursor existing =
+          tables.query("Favorites", new String[] { "_id" },
+              "route_tag == ? AND stop_tag == ?", args, null, null, null);
+      long id;
       try {
-        if (existing_stop.getCount() == 0) {
-          values.clear();
-          values.put("_id", stop.id);
-          values.put("tag", stop.tag);
-          values.put("title", stop.title);
-          values.put("latitude", stop.lat);
-          values.put("longitude", stop.lon);
-          tables.insertOrThrow("Stops", null, values);
+        if (existing.moveToFirst()) {
+          id = existing.getLong(0);
         } else {
-          existing_stop.moveToFirst();
-          if (existing_stop.getInt(0) != stop.tag
-              || !existing_stop.getString(1).equals(stop.title)
-              || existing_stop.getDouble(2) != stop.lat
-              || existing_stop.getDouble(3) != stop.lon) {
-            values.clear();
-            values.put("tag", stop.tag);
-            values.put("title", stop.title);
-            values.put("latitude", stop.lat);
-            values.put("longitude", stop.lon);
-            tables.update("Stops", values, "_id == ?", new String[] { stop.id
-                                                                      + "" });
-          }
+          ContentValues values = new ContentValues(2);
+          values.put("route_tag", route_tag);
+          values.put("stop_tag", stop_tag);
+          id = tables.insertOrThrow("Favorites", null, values);
         }
       } finally {
-        existing_stop.close();
+        existing.close();
       }
-
       tables.setTransactionSuccessful();
+      return id;
     } finally {
       tables.endTransaction();
     }
   }
+
+  /**
+   * @return The number of favorites removed: 1 if favorite_id existed, else 0.
+   */
+  public int removeFavorite(long favorite_id) {
+    return getWritableDatabase().delete("Favorites", "_id == ?",
+        new String[] { favorite_id + "" });
+  }
+
+  /**
+   * @return A cursor over the favorites with columns _id, route_tag, stop_tag,
+   *         and title, which is the stop's title if we know it.
+   */
+  public Cursor queryFavorites() {
+    return getReaderDatabase().rawQuery(FAVORITES_SQL, null);
+  }
+
+  public List<Favorite> getFavorites() {
+    final Cursor favorites =
+        getReaderDatabase().query("Favorites",
+            new String[] { "_id", "route_tag", "stop_tag" }, null, null, null,
+            null, "_id ASC");
+    try {
+      List<Favorite> result = new ArrayList<Favorite>(favorites.getCount());
+      for (favorites.moveToFirst(); !favorites.isAfterLast(); favorites.moveToNext()) {
+        result.add(new Favorite(favorites.getLong(0), favorites.getString(1),
+            favorites.getInt(2)));
+      }
+      return result;
+    } finally {
+      favorites.close();
+    }
+  }
 }
@@ -0,0 +1,29 @@
+package info.yasskin.droidmuni;
+
+/**
+ * A point in time by which an operation must finish. Provider queries create
+ * one for their whole budget and pass it down to every request they make, so
+ * several requests made for one query share a single budget.
+ */
+final class Deadline {
+  private final long m_expires_ms;
+
+  private Deadline(long expires_ms) {
+    m_expires_ms = expires_ms;
+  }
+
+  public static Deadline after(long budget_ms) {
+    return new Deadline(System.currentTimeMillis() + budget_ms);
+  }
+
+  /**
+   * @return The number of milliseconds left, or 0 if the deadline has passed.
+   */
+  public long remainingMs() {
+    return Math.max(0, m_expires_ms - System.currentTimeMillis());
+  }
+
+  public boolean isExpired() {
+    return remainingMs() == 0;
+  }
+}
@@ -0,0 +1,226 @@
+package info.yasskin.droidmuni;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Remembers the validators (ETag, Last-Modified, and a hash of the body) of
+ * NextBus documents we've already stored in Db, so we can ask NextBus whether
+ * they've changed instead of downloading and re-storing them.
+ *
+ * Each URI gets one small properties file under the application's cache
+ * directory. When the files add up to more than the size cap, the least
+ * recently used ones are deleted.
+ */
+final class DiskResponseCache {
+  private static final String DIRECTORY_NAME = "nextbus-validators";
+
+  /**
+   * The validators for a single URI.
+   */
+  static final class Entry {
+    Entry(String uri, String etag, String last_modified, String body_hash) {
+      this.uri = uri;
+      this.etag = etag;
+      this.last_modified = last_modified;
+      this.body_hash = body_hash;
+    }
+
+    public final String uri;
+    /** May be null. */
+    public final String etag;
+    /** May be null. */
+    public final String last_modified;
+    /** Hex SHA-1 of the decoded body. */
+    public final String body_hash;
+  }
+
+  private final File m_directory;
+  private final long m_max_bytes;
+
+  public DiskResponseCache(Context context, long max_bytes) {
+    this(new File(context.getCacheDir(), DIRECTORY_NAME), max_bytes);
+  }
+
+  DiskResponseCache(File directory, long max_bytes) {
+    m_directory = directory;
+    m_max_bytes = max_bytes;
+  }
+
+  /**
+   * Deletes every stored entry. Call this whenever the data the entries
+   * describe is thrown away.
+   */
+  public synchronized void clear() {
+    File[] files = m_directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      file.delete();
+    }
+  }
+
+  /**
+   * @return The entry for 'uri', or null if there isn't one.
+   */
+  public synchronized Entry get(String uri) {
+    File file = fileFor(uri);
+    if (!file.exists()) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try {
+      FileInputStream input = new FileInputStream(file);
+      try {
+        properties.load(input);
+      } finally {
+        input.close();
+      }
+    } catch (IOException e) {
+      Log.w("DroidMuni", "Dropping unreadable cache entry for " + uri, e);
+      file.delete();
+      return null;
+    }
+    if (!uri.equals(properties.getProperty("uri"))) {
+      // A hash collision. Treat it as a miss.
+      return null;
+    }
+    // Record the access so eviction prefers other entries.
+    file.setLastModified(System.currentTimeMillis());
+    return new Entry(uri, properties.getProperty("etag"),
+        properties.getProperty("last_modified"),
+        properties.getProperty("body_hash"));
+  }
+
+  /**
+   * @return The validators from 'response', whose decoded body hashed to
+   *         'body_hash', ready to put() once the body has been stored.
+   */
+  public static Entry fromResponse(String uri, HttpResponse response,
+      String body_hash) {
+    Header etag = response.getFirstHeader("ETag");
+    Header last_modified = response.getFirstHeader("Last-Modified");
+    return new Entry(uri, etag == null ? null : etag.getValue(),
+        last_modified == null ? null : last_modified.getValue(), body_hash);
+  }
+
+  /**
+   * Stores 'entry', and then evicts old entries if the cache is over its size
+   * cap. Only call this after storing the document 'entry' describes, or a
+   * later revalidation would vouch for data we never stored.
+   */
+  public synchronized void put(Entry entry) {
+    final String uri = entry.uri;
+    Properties properties = new Properties();
+    properties.setProperty("uri", uri);
+    properties.setProperty("body_hash", entry.body_hash);
+    if (entry.etag != null) {
+      properties.setProperty("etag", entry.etag);
+    }
+    if (entry.last_modified != null) {
+      properties.setProperty("last_modified", entry.last_modified);
+    }
+
+    if (!m_directory.isDirectory() && !m_directory.mkdirs()) {
+      Log.w("DroidMuni", "Cannot create " + m_directory);
+      return;
+    }
+    File file = fileFor(uri);
+    try {
+      FileOutputStream output = new FileOutputStream(file);
+      try {
+        properties.store(output, null);
+      } finally {
+        output.close();
+      }
+    } catch (IOException e) {
+      Log.w("DroidMuni", "Cannot write cache entry for " + uri, e);
+      file.delete();
+      return;
+    }
+    evict();
+  }
+
+  /**
+   * Adds conditional headers to 'request' so the server can answer 304 Not
+   * Modified if 'entry' is still current.
+   */
+  public static void addValidators(HttpRequest request, Entry entry) {
+    if (entry.etag != null) {
+      request.addHeader("If-None-Match", entry.etag);
+    }
+    if (entry.last_modified != null) {
+      request.addHeader("If-Modified-Since", entry.last_modified);
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the cache fits in its cap.
+   */
+  private void evict() {
+    File[] files = m_directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= m_max_bytes) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File lhs, File rhs) {
+        long lhs_modified = lhs.lastModified();
+        long rhs_modified = rhs.lastModified();
+        return lhs_modified < rhs_modified ? -1
+            : (lhs_modified == rhs_modified ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < files.length && total > m_max_bytes; i++) {
+      total -= files[i].length();
+      files[i].delete();
+      Stats.increment("cache.evictions");
+    }
+  }
+
+  private File fileFor(String uri) {
+    return new File(m_directory, hexSha1(uri.getBytes()));
+  }
+
+  static MessageDigest newSha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Every Android platform has SHA-1", e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder result = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      result.append(Character.forDigit((b >> 4) & 0xf, 16));
+      result.append(Character.forDigit(b & 0xf, 16));
+    }
+    return result.toString();
+  }
+
+  private static String hexSha1(byte[] bytes) {
+    return toHex(newSha1().digest(bytes));
+  }
+}
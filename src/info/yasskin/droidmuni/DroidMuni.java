@@ -37,7 +37,18 @@ public class DroidMuni extends Activity {
   private PreferenceManager m_preferences_manager;
 
   static final int REDRAW_INTERVAL_MS = 30000;
+  /**
+   * The fixed prediction polling interval. m_poll_scheduler adapts around it,
+   * and only uses it to count how many polls the adaptive schedule saves.
+   * Polls that fail, or find no predictions, retry after it.
+   */
   static final int REPREDICT_INTERVAL_MS = 2 * 60000;
+  static final int MIN_REPREDICT_INTERVAL_MS = 20000;
+  static final int MAX_REPREDICT_INTERVAL_MS = 5 * 60000;
+
+  private final PollScheduler m_poll_scheduler = new PollScheduler(
+      MIN_REPREDICT_INTERVAL_MS, MAX_REPREDICT_INTERVAL_MS,
+      REPREDICT_INTERVAL_MS);
 
   /**
    * Maps a route tag to the direction tag that was last selected for it.
@@ -419,12 +430,20 @@ public class DroidMuni extends Activity {
             // TODO: Handle retries.
             return;
           }
+          String selected_route = parent_item.getString(1);
           String selected_stop = parent_item.getString(3);
           m_predictions_shown = false;
           m_handler.removeCallbacks(mRequeryPredictions);
-          m_prediction_query_manager.startQuery(getContentResolver(),
+          m_poll_scheduler.reset();
+          Uri.Builder predictions_uri =
               Uri.withAppendedPath(NextMuniProvider.PREDICTIONS_URI,
-                  selected_stop));
+                  selected_stop).buildUpon();
+          // Only ask for the selected line's predictions. At busy stops, the
+          // other lines would be most of the response.
+          predictions_uri.appendQueryParameter(
+              NextMuniProvider.PREDICTIONS_ROUTE_PARAM, selected_route);
+          m_prediction_query_manager.startQuery(getContentResolver(),
+              predictions_uri.build());
         }
 
         public void onNothingSelected(AdapterView<?> parent) {
@@ -443,16 +462,32 @@ public class DroidMuni extends Activity {
             m_predictions_adapter.changeCursor(m_no_predictions);
           } else {
             m_predictions_shown = true;
-            m_handler.postDelayed(mRequeryPredictions, REPREDICT_INTERVAL_MS);
+            // Replace the fallback that mRequeryPredictions posted.
+            m_handler.removeCallbacks(mRequeryPredictions);
+            m_handler.postDelayed(mRequeryPredictions,
+                m_poll_scheduler.nextDelayMs(getArrivalTimes(predictions),
+                    System.currentTimeMillis()));
           }
         }
       };
 
+  private static long[] getArrivalTimes(Cursor predictions) {
+    final int time_index = predictions.getColumnIndexOrThrow("predicted_time");
+    final long[] result = new long[predictions.getCount()];
+    for (predictions.moveToFirst(); !predictions.isAfterLast(); predictions.moveToNext()) {
+      result[predictions.getPosition()] = predictions.getLong(time_index);
+    }
+    return result;
+  }
+
   private boolean m_predictions_shown = false;
   private final Runnable mRequeryPredictions = new Runnable() {
     public void run() {
       m_prediction_query_manager.requery();
 
+      // If the requery succeeds, onSuccessfulQuery() replaces this with a
+      // delay from m_poll_scheduler. If it fails, retry on the old fixed
+      // schedule rather than leaving the failure up for the maximum delay.
       m_handler.postDelayed(this, REPREDICT_INTERVAL_MS);
     }
   };
@@ -2,10 +2,20 @@ package info.yasskin.droidmuni;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 public class Globals {
   // Remember to change this to false for releases.
   public static final boolean DEVELOPER_MODE = true;
 
   public static ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+
+  // For short timer tasks, like cancelling requests that outlive their
+  // deadline. Don't block in these.
+  public static ScheduledExecutorService SCHEDULER =
+      Executors.newSingleThreadScheduledExecutor();
+
+  // Route and direction tags and titles. sf-muni has well under a thousand of
+  // these, so this leaves room for changes over the process's life.
+  static final SymbolTable SYMBOLS = new SymbolTable(4096);
 }
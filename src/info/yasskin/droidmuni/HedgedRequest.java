@@ -0,0 +1,142 @@
+package info.yasskin.droidmuni;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+/**
+ * Sends a GET, and if no response has arrived after a hedge delay, sends an
+ * identical second GET and uses whichever response arrives first. The slower
+ * request is aborted so its connection doesn't stay leased from the pool.
+ * The hedge is speculative, so it's only sent if the request budget has room
+ * for BACKGROUND work.
+ */
+final class HedgedRequest {
+  /**
+   * A request together with the response it received.
+   */
+  static final class Exchange {
+    Exchange(HttpGet request, HttpResponse response) {
+      this.request = request;
+      this.response = response;
+    }
+
+    public final HttpGet request;
+    public final HttpResponse response;
+  }
+
+  private HedgedRequest() {
+  }
+
+  /**
+   * @param hedge_after_ms
+   *          How long to wait for 'primary' before hedging. Negative means
+   *          never hedge, in which case 'primary' runs in this thread.
+   * @throws InterruptedIOException
+   *           if the deadline passes before either request gets a response.
+   */
+  public static Exchange execute(final HttpTransport transport,
+      RequestBudget budget, HttpGet primary, long hedge_after_ms,
+      Deadline deadline)
+      throws IOException {
+    if (hedge_after_ms < 0 || hedge_after_ms >= deadline.remainingMs()) {
+      return new Exchange(primary, transport.execute(primary));
+    }
+
+    final String command =
+        NextMuniUriBuilder.getCommand(primary.getURI().toString());
+    final ExecutorCompletionService<Exchange> completion =
+        new ExecutorCompletionService<Exchange>(Globals.EXECUTOR);
+    final List<HttpGet> requests = new ArrayList<HttpGet>(2);
+    submit(completion, transport, primary, requests);
+    int pending = 1;
+    IOException failure = null;
+    try {
+      while (pending > 0) {
+        final boolean hedged = requests.size() > 1;
+        final long wait_ms =
+            hedged ? deadline.remainingMs() : Math.min(hedge_after_ms,
+                deadline.remainingMs());
+        Future<Exchange> done = completion.poll(wait_ms, TimeUnit.MILLISECONDS);
+        if (done == null) {
+          if (hedged || deadline.isExpired()) {
+            break;
+          }
+          if (!budget.tryAcquire(RequestBudget.Lane.BACKGROUND)) {
+            // Keep waiting for the primary without a hedge.
+            Stats.increment("hedge.skipped." + command);
+            hedge_after_ms = deadline.remainingMs();
+            continue;
+          }
+          HttpGet hedge = new HttpGet(primary.getURI());
+          hedge.setHeaders(primary.getAllHeaders());
+          hedge.setParams(primary.getParams());
+          submit(completion, transport, hedge, requests);
+          pending++;
+          Stats.increment("hedge.sent." + command);
+          continue;
+        }
+        pending--;
+        try {
+          Exchange winner = done.get();
+          if (winner.request != primary) {
+            Stats.increment("hedge.won." + command);
+          }
+          abortAllBut(requests, winner.request);
+          return winner;
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            failure = (IOException) e.getCause();
+          } else if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          } else {
+            throw new RuntimeException(e.getCause());
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      abortAllBut(requests, null);
+      throw new InterruptedIOException("Interrupted while waiting for "
+                                       + primary.getURI());
+    }
+    abortAllBut(requests, null);
+    if (failure != null) {
+      throw failure;
+    }
+    throw new InterruptedIOException("Deadline passed waiting for "
+                                     + primary.getURI());
+  }
+
+  private static void submit(ExecutorCompletionService<Exchange> completion,
+      final HttpTransport transport, final HttpGet request,
+      List<HttpGet> requests) {
+    requests.add(request);
+    completion.submit(new Callable<Exchange>() {
+      public Exchange call() throws IOException {
+        return new Exchange(request, transport.execute(request));
+      }
+    });
+  }
+
+  /**
+   * Aborting a request that already has its response releases that response's
+   * connection, so this cleans up losers whether or not they've finished.
+   */
+  private static void abortAllBut(List<HttpGet> requests, HttpGet keep) {
+    for (HttpGet request : requests) {
+      if (request != keep) {
+        request.abort();
+      }
+    }
+  }
+}
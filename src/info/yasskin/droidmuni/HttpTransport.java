@@ -0,0 +1,25 @@
+package info.yasskin.droidmuni;
+
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Sends HTTP requests on behalf of NextMuniProvider. Implementations must be
+ * safe to call from several threads at once, since the UI query path and the
+ * background refreshes on Globals.EXECUTOR share one transport.
+ */
+interface HttpTransport {
+  /**
+   * Executes 'request' and returns its response. The caller must consume or
+   * abort the response's entity so any underlying connection can be reused.
+   */
+  HttpResponse execute(HttpUriRequest request) throws IOException;
+
+  /**
+   * Opens a connection to the host serving 'uri' ahead of time so the first
+   * real request doesn't pay for the handshake. Failures are ignored.
+   */
+  void prewarm(String uri);
+}
@@ -0,0 +1,74 @@
+package info.yasskin.droidmuni;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in exponentially growing buckets: up to 25ms, 50ms, 100ms,
+ * and so on, doubling up to about 51 seconds, plus one bucket for anything
+ * slower. Percentiles are reported as the upper bound of the bucket they fall
+ * in.
+ */
+final class LatencyHistogram {
+  private static final long FIRST_BOUND_MS = 25;
+  private static final int BOUNDED_BUCKETS = 12;
+
+  private final AtomicLongArray m_counts =
+      new AtomicLongArray(BOUNDED_BUCKETS + 1);
+
+  /**
+   * @return The largest latency counted in bucket 'index', or Long.MAX_VALUE
+   *         for the last bucket.
+   */
+  static long upperBoundMs(int index) {
+    if (index >= BOUNDED_BUCKETS) {
+      return Long.MAX_VALUE;
+    }
+    return FIRST_BOUND_MS << index;
+  }
+
+  static int bucketCount() {
+    return BOUNDED_BUCKETS + 1;
+  }
+
+  public void record(long latency_ms) {
+    int index = 0;
+    while (index < BOUNDED_BUCKETS && latency_ms > upperBoundMs(index)) {
+      index++;
+    }
+    m_counts.incrementAndGet(index);
+  }
+
+  public long count(int bucket) {
+    return m_counts.get(bucket);
+  }
+
+  public long totalCount() {
+    long total = 0;
+    for (int i = 0; i < m_counts.length(); i++) {
+      total += m_counts.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * @param fraction
+   *          For example, 0.95 for the 95th percentile.
+   * @return The upper bound of the bucket holding that percentile, or -1 if
+   *         nothing has been recorded.
+   */
+  public long percentileMs(double fraction) {
+    long total = totalCount();
+    if (total == 0) {
+      return -1;
+    }
+    long needed = (long) Math.ceil(total * fraction);
+    long seen = 0;
+    for (int i = 0; i < m_counts.length(); i++) {
+      seen += m_counts.get(i);
+      if (seen >= needed) {
+        return upperBoundMs(i);
+      }
+    }
+    return upperBoundMs(m_counts.length() - 1);
+  }
+}
@@ -2,6 +2,7 @@ package info.yasskin.droidmuni;
 
 import android.app.Activity;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
@@ -25,8 +26,8 @@ public class ManageSpace extends Activity {
     final Button clear_cache = (Button) findViewById(R.id.clear_cache);
     clear_cache.setOnClickListener(new Button.OnClickListener() {
       public void onClick(View v) {
-        db.eraseEverything();
-        m_cached_routes.requery();
+        clear_cache.setEnabled(false);
+        new EraseCacheTask().execute();
       }
     });
 
@@ -50,6 +51,29 @@ public class ManageSpace extends Activity {
     cached_routes.setAdapter(route_adapter);
   }
 
+  /**
+   * Erases the cache off the UI thread, since the provider waits for any
+   * catalog update in progress first.
+   */
+  private class EraseCacheTask extends AsyncTask<Void, Void, Void> {
+    @Override
+    protected Void doInBackground(Void... params) {
+      // Through the provider, so it drops its copies of the catalog too.
+      getContentResolver().delete(NextMuniProvider.CACHE_URI, null, null);
+      return null;
+    }
+
+    @Override
+    protected void onPostExecute(Void result) {
+      if (m_cached_routes.isClosed()) {
+        // The activity was destroyed meanwhile.
+        return;
+      }
+      m_cached_routes.requery();
+      findViewById(R.id.clear_cache).setEnabled(true);
+    }
+  }
+
   @Override
   protected void onDestroy() {
     super.onDestroy();
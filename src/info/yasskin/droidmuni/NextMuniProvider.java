@@ -1,19 +1,34 @@
 package info.yasskin.droidmuni;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Collections;
+import java.security.DigestInputStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 
 import android.content.ContentProvider;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
@@ -21,12 +36,72 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.util.Log;
 
 public class NextMuniProvider extends ContentProvider {
   private static final long ONE_DAY = 24 * 3600 * 1000;
   private static final long ONE_MONTH = 30 * ONE_DAY;
+  /**
+   * The validator files are a couple hundred bytes each, so this holds every
+   * route's entry with plenty of room to spare.
+   */
+  private static final long RESPONSE_CACHE_MAX_BYTES = 64 * 1024;
+  /**
+   * How long a prediction result is reused for other queries of the same stop.
+   * NextBus only updates its predictions every few seconds anyway.
+   */
+  static final long PREDICTION_CACHE_TTL_MS = 5000;
+  /**
+   * How long a query may spend fetching predictions, which the user is
+   * watching a spinner for.
+   */
+  private static final long PREDICTIONS_BUDGET_MS = 10000;
+  /**
+   * How long a fetch of the route list or a route's configuration may take.
+   * These are larger and usually run in the background.
+   */
+  private static final long CATALOG_BUDGET_MS = 30000;
+  /**
+   * The number of latencies we need to have seen before trusting their 95th
+   * percentile enough to hedge on it.
+   */
+  private static final int MIN_HEDGE_SAMPLES = 20;
+  /**
+   * How many times getAndParse() sends a request that fails in a way that
+   * retrying might fix.
+   */
+  private static final int MAX_ATTEMPTS = 3;
+  /**
+   * The backoff before the first retry. Each later retry waits twice as long.
+   */
+  private static final long RETRY_BASE_DELAY_MS = 500;
+  /**
+   * How many requests for one command have to fail in a row before we stop
+   * sending that command for BREAKER_OPEN_MS.
+   */
+  private static final int BREAKER_FAILURE_THRESHOLD = 5;
+  private static final long BREAKER_OPEN_MS = 30000;
+  /**
+   * How old a prediction result can be and still be shown when NextBus can't
+   * give us a new one. Predictions are absolute times, so an old result is
+   * still roughly right for a few minutes.
+   */
+  private static final long MAX_STALE_PREDICTION_MS = 5 * 60000;
+  /**
+   * NextBus allows each client about 2MB every 20 seconds. Stay well under
+   * that so a burst of route refreshes can't get us cut off.
+   */
+  private static final long REQUEST_BUDGET_WINDOW_MS = 20000;
+  private static final long REQUEST_BUDGET_MAX_REQUESTS = 30;
+  private static final long REQUEST_BUDGET_MAX_BYTES = 1536 * 1024;
+  /**
+   * How long a background refresh waits for a prediction poll to ride along
+   * with. The data it refreshes is already up to a day old, so a few more
+   * minutes don't matter.
+   */
+  private static final long BATCHING_MAX_DELAY_MS = 15 * 60000;
 
   public static final String AUTHORITY =
       "info.yasskin.droidmuni.nextmuniprovider";
@@ -40,12 +115,34 @@ public class NextMuniProvider extends ContentProvider {
       Uri.withAppendedPath(CONTENT_URI, "stops");
   public static final Uri PREDICTIONS_URI = Uri.withAppendedPath(CONTENT_URI,
       "predictions");
+  /**
+   * Add one of these query parameters to a PREDICTIONS_URI for each route you
+   * want predictions for. Without any, the query returns every route serving
+   * the stop, which can be many times more data at a busy stop.
+   */
+  public static final String PREDICTIONS_ROUTE_PARAM = "route";
+  public static final Uri FAVORITES_URI = Uri.withAppendedPath(CONTENT_URI,
+      "favorites");
+  public static final Uri FAVORITE_PREDICTIONS_URI = Uri.withAppendedPath(
+      FAVORITES_URI, "predictions");
+  public static final Uri STATS_URI =
+      Uri.withAppendedPath(CONTENT_URI, "stats");
+  /**
+   * Deleting this erases everything cached from NextBus. Favorites stay.
+   */
+  public static final Uri CACHE_URI =
+      Uri.withAppendedPath(CONTENT_URI, "cache");
 
   private static final int NEXT_MUNI_ROUTES = 0;
   private static final int NEXT_MUNI_ROUTE_ID = 1;
   private static final int NEXT_MUNI_DIRECTIONS = 2;
   private static final int NEXT_MUNI_STOPS = 4;
   private static final int NEXT_MUNI_PREDICTIONS = 5;
+  private static final int NEXT_MUNI_STATS = 6;
+  private static final int NEXT_MUNI_FAVORITES = 7;
+  private static final int NEXT_MUNI_FAVORITE_ID = 8;
+  private static final int NEXT_MUNI_FAVORITE_PREDICTIONS = 9;
+  private static final int NEXT_MUNI_CACHE = 10;
 
   private static final UriMatcher sURLMatcher = new UriMatcher(
       UriMatcher.NO_MATCH);
@@ -56,6 +153,12 @@ public class NextMuniProvider extends ContentProvider {
     sURLMatcher.addURI(AUTHORITY, "directions/*", NEXT_MUNI_DIRECTIONS);
     sURLMatcher.addURI(AUTHORITY, "stops/*/*", NEXT_MUNI_STOPS);
     sURLMatcher.addURI(AUTHORITY, "predictions/#", NEXT_MUNI_PREDICTIONS);
+    sURLMatcher.addURI(AUTHORITY, "stats", NEXT_MUNI_STATS);
+    sURLMatcher.addURI(AUTHORITY, "favorites", NEXT_MUNI_FAVORITES);
+    sURLMatcher.addURI(AUTHORITY, "favorites/#", NEXT_MUNI_FAVORITE_ID);
+    sURLMatcher.addURI(AUTHORITY, "favorites/predictions",
+        NEXT_MUNI_FAVORITE_PREDICTIONS);
+    sURLMatcher.addURI(AUTHORITY, "cache", NEXT_MUNI_CACHE);
   }
 
   @Override
@@ -71,26 +174,136 @@ public class NextMuniProvider extends ContentProvider {
       return "vnd.android.cursor.dir/vnd.yasskin.stop";
     case NEXT_MUNI_PREDICTIONS:
       return "vnd.android.cursor.dir/vnd.yasskin.prediction";
+    case NEXT_MUNI_STATS:
+      return "vnd.android.cursor.dir/vnd.yasskin.stat";
+    case NEXT_MUNI_FAVORITES:
+      return "vnd.android.cursor.dir/vnd.yasskin.favorite";
+    case NEXT_MUNI_FAVORITE_ID:
+      return "vnd.android.cursor.item/vnd.yasskin.favorite";
+    case NEXT_MUNI_FAVORITE_PREDICTIONS:
+      return "vnd.android.cursor.dir/vnd.yasskin.prediction";
+    case NEXT_MUNI_CACHE:
+      return "vnd.android.cursor.dir/vnd.yasskin.cache";
     default:
       throw new IllegalArgumentException("Unknown URI " + uri);
     }
   }
 
-  private final DefaultHttpClient mClient = new DefaultHttpClient();
+  /**
+   * Shared by every thread that queries this provider, so it has to be
+   * thread-safe.
+   */
+  private final HttpTransport mTransport = new PooledHttpTransport();
+  private final PredictionCache mPredictionCache = new PredictionCache(
+      PREDICTION_CACHE_TTL_MS, MAX_STALE_PREDICTION_MS);
+  /**
+   * One breaker per NextBus command, so a failing routeConfig doesn't stop
+   * predictions.
+   */
+  private final ConcurrentMap<String, CircuitBreaker> mBreakers =
+      new ConcurrentHashMap<String, CircuitBreaker>();
+  private final Random mRetryJitter = new Random();
+  private final RequestBudget mBudget = new RequestBudget(
+      REQUEST_BUDGET_WINDOW_MS, REQUEST_BUDGET_MAX_REQUESTS,
+      REQUEST_BUDGET_MAX_BYTES);
+  private final BatchingScheduler mBatcher = new BatchingScheduler(
+      BATCHING_MAX_DELAY_MS);
+  private static final ParserFactory<PredictionsParser> PREDICTIONS_PARSERS =
+      new ReusableParserFactory<PredictionsParser>() {
+        @Override
+        protected PredictionsParser create() {
+          return new PredictionsParser();
+        }
+      };
+  private static final ParserFactory<RouteListParser> ROUTE_LIST_PARSERS =
+      new ReusableParserFactory<RouteListParser>() {
+        @Override
+        protected RouteListParser create() {
+          return new RouteListParser();
+        }
+      };
   private boolean m_someone_fetching_routes = false; // Guarded by db.
-  // The next field is set in onCreate() and never modified again.
+  // The next fields are set in onCreate() and never modified again.
   private Db db;
+  private DiskResponseCache mResponseCache;
+  private ConnectivityMonitor mConnectivity;
+  private File mCatalogFile;
+  /**
+   * The catalog file an earlier run saved, serving reads while openCatalog()
+   * loads it into memory. Null otherwise.
+   */
+  private volatile BinaryCatalog mBinaryCatalog;
+  /**
+   * The in-memory copy of db's catalog tables, or null while there's none or
+   * it's out of date. Swapped under mCatalogLock; readers never lock.
+   */
+  private final AtomicReference<CatalogSnapshot> mMemoryCatalog =
+      new AtomicReference<CatalogSnapshot>();
+  private final Object mCatalogLock = new Object();
+  /**
+   * Counts changes to db's catalog tables, so an update that read the tables
+   * before a change doesn't publish over it. Guarded by mCatalogLock.
+   */
+  private long mCatalogVersion = 0;
+  /**
+   * Held while reading db into a new catalog or writing mCatalogFile, so only
+   * one thread does either at a time.
+   */
+  private final Object mUpdateLock = new Object();
+  /**
+   * The generation of the snapshot in mCatalogFile, or Long.MIN_VALUE if
+   * there's none. Guarded by mUpdateLock.
+   */
+  private long mSavedGeneration = Long.MIN_VALUE;
+  /**
+   * Set while an update is queued on Globals.EXECUTOR but hasn't started, so
+   * changes that arrive meanwhile share it.
+   */
+  private final AtomicBoolean mUpdateQueued = new AtomicBoolean();
+  /**
+   * Opens once onCreate() has imported the packaged catalog snapshot, or
+   * decided not to. Nothing reads db's catalog before then. Builds without
+   * a snapshot open it right away.
+   */
+  private final CountDownLatch mSnapshotImported = new CountDownLatch(1);
 
   @Override
   public boolean onCreate() {
-    Context context = getContext();
+    final Context context = getContext();
     db = new Db(context);
+    mResponseCache = new DiskResponseCache(context, RESPONSE_CACHE_MAX_BYTES);
+    mConnectivity = new ConnectivityMonitor(context);
+    mCatalogFile = BinaryCatalog.fileFor(context);
+    final boolean have_snapshot =
+        SnapshotImporter.isPackaged(context.getAssets());
+    if (!have_snapshot) {
+      mSnapshotImported.countDown();
+    }
     Globals.EXECUTOR.execute(new Runnable() {
       public void run() {
         // Prime the routes list eagerly so it's more likely it'll
         // be ready by the time we need it. Don't, however, block onCreate()
         // until it finishes since that'll block the UI thread even when we
         // already have the routes list.
+        if (have_snapshot) {
+          try {
+            // On a fresh install, start from the snapshot in the APK instead
+            // of the network. Its timestamps are just over a day old, so it
+            // gets refreshed in the background without anyone waiting.
+            SnapshotImporter.importIfEmpty(db,
+                SnapshotImporter.fromAssets(context.getAssets()),
+                System.currentTimeMillis() - ONE_DAY - 1);
+          } catch (RuntimeException e) {
+            Log.e("DroidMuni", "Importing the catalog snapshot failed", e);
+          } finally {
+            mSnapshotImported.countDown();
+          }
+        }
+        db.seedSymbols(Globals.SYMBOLS);
+        openCatalog();
+        if (mConnectivity.isOnline()) {
+          mTransport.prewarm(NextMuniUriBuilder.buildServiceUri().toString());
+        }
         try {
           tryFetchRoutes(REFETCH_ROUTES_BLOCK);
         } catch (Exception e) {
@@ -101,6 +314,220 @@ public class NextMuniProvider extends ContentProvider {
     return true;
   }
 
+  /**
+   * @return The fastest up-to-date Catalog: the in-memory copy if there is
+   *         one, then the file an earlier run saved while it loads, otherwise
+   *         db itself, once the snapshot import is done with it. The copies
+   *         are only published after the import, so reads that find one
+   *         don't wait.
+   */
+  private Catalog catalog() {
+    final CatalogSnapshot memory = mMemoryCatalog.get();
+    if (memory != null) {
+      return memory;
+    }
+    final BinaryCatalog binary = mBinaryCatalog;
+    if (binary != null) {
+      return binary;
+    }
+    try {
+      mSnapshotImported.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return db;
+  }
+
+  /**
+   * Loads the in-memory catalog from the file an earlier run saved, if it
+   * still matches db, and serves reads from the mapped file meanwhile.
+   * Otherwise builds it from db. Runs on Globals.EXECUTOR.
+   */
+  private void openCatalog() {
+    synchronized (mUpdateLock) {
+      final long version = catalogVersion();
+      try {
+        final BinaryCatalog binary = BinaryCatalog.open(mCatalogFile);
+        if (binary.getGeneration() == db.getLastModifiedMs()) {
+          mSavedGeneration = binary.getGeneration();
+          synchronized (mCatalogLock) {
+            if (version == mCatalogVersion) {
+              mBinaryCatalog = binary;
+            }
+          }
+          publishMemoryCatalog(version, binary.toSnapshot());
+          return;
+        }
+      } catch (IOException e) {
+        // Missing or from an old version. Rebuild it.
+      }
+      if (db.hasRoutes()) {
+        updateCatalog();
+      }
+    }
+  }
+
+  /**
+   * Erases db's catalog, the copies of it, and the response cache that
+   * revalidates them. The favorites stay. Waits for any update in progress,
+   * so it can't write the catalog file back afterwards.
+   */
+  private void eraseCache() {
+    synchronized (mUpdateLock) {
+      db.eraseEverything();
+      synchronized (mCatalogLock) {
+        mCatalogVersion++;
+        mMemoryCatalog.set(null);
+        mBinaryCatalog = null;
+      }
+      BinaryCatalog.delete(getContext());
+      mSavedGeneration = Long.MIN_VALUE;
+    }
+    // The remembered validators describe data that's now gone.
+    mResponseCache.clear();
+  }
+
+  private long catalogVersion() {
+    synchronized (mCatalogLock) {
+      return mCatalogVersion;
+    }
+  }
+
+  /**
+   * Call after changing db's catalog tables. Retires the catalog copies, so
+   * reads go to db until an update on Globals.EXECUTOR replaces them.
+   */
+  private void catalogChanged() {
+    synchronized (mCatalogLock) {
+      mCatalogVersion++;
+      mMemoryCatalog.set(null);
+      mBinaryCatalog = null;
+    }
+    scheduleCatalogUpdate();
+  }
+
+  /**
+   * Call after db.touchRoute(), which only moves route 'route_tag''s update
+   * time forward. Patches the in-memory copy instead of rebuilding it.
+   */
+  private void routeTouched(String route_tag, long time_millis) {
+    synchronized (mCatalogLock) {
+      final CatalogSnapshot memory = mMemoryCatalog.get();
+      if (memory == null) {
+        catalogChanged();
+        return;
+      }
+      mMemoryCatalog.set(memory.withRouteTouched(route_tag, time_millis));
+    }
+    scheduleCatalogUpdate();
+  }
+
+  /**
+   * Call after db.touchRoutes(), which only moves the route list's update
+   * time forward. Patches the in-memory copy instead of rebuilding it.
+   */
+  private void routesTouched(long time_millis) {
+    synchronized (mCatalogLock) {
+      final CatalogSnapshot memory = mMemoryCatalog.get();
+      if (memory == null) {
+        catalogChanged();
+        return;
+      }
+      mMemoryCatalog.set(memory.withRoutesTouched(time_millis));
+    }
+    scheduleCatalogUpdate();
+  }
+
+  /**
+   * Queues updateCatalog() on Globals.EXECUTOR. Calls that arrive before it
+   * starts share it.
+   */
+  private void scheduleCatalogUpdate() {
+    if (!mUpdateQueued.compareAndSet(false, true)) {
+      Stats.increment("catalog.updates_merged");
+      return;
+    }
+    Globals.EXECUTOR.execute(new Runnable() {
+      public void run() {
+        // Clear the flag first, so a change made while this reads db
+        // queues another update.
+        mUpdateQueued.set(false);
+        updateCatalog();
+      }
+    });
+  }
+
+  /**
+   * If catalogChanged() retired the in-memory catalog, copies db's tables
+   * into a new one and publishes it, unless they changed again meanwhile, in
+   * which case the update that change queued publishes instead. Then saves
+   * the in-memory catalog to mCatalogFile for the next run, unless it's
+   * already there. If a step fails, reads fall back to the next Catalog in
+   * line.
+   *
+   * Also checkpoints db's write-ahead log before rereading it. Every bulk
+   * write queues one of these updates on Globals.EXECUTOR, so the checkpoint
+   * never holds up the query that made the write.
+   */
+  private void updateCatalog() {
+    synchronized (mUpdateLock) {
+      CatalogSnapshot memory = mMemoryCatalog.get();
+      if (memory == null) {
+        final long version = catalogVersion();
+        db.checkpoint();
+        memory = buildMemoryCatalog();
+        if (memory == null || !publishMemoryCatalog(version, memory)) {
+          return;
+        }
+      }
+      if (memory.getGeneration() == mSavedGeneration) {
+        return;
+      }
+      try {
+        BinaryCatalog.build(memory, mCatalogFile);
+        mSavedGeneration = memory.getGeneration();
+      } catch (IOException e) {
+        Log.w("DroidMuni", "Couldn't save the catalog", e);
+        Stats.increment("catalog.build_failures");
+      }
+    }
+  }
+
+  /**
+   * Swaps in 'memory' if db's catalog tables are still at 'version'.
+   *
+   * @return false if they aren't.
+   */
+  private boolean publishMemoryCatalog(long version, CatalogSnapshot memory) {
+    synchronized (mCatalogLock) {
+      if (version != mCatalogVersion) {
+        Stats.increment("catalog.updates_superseded");
+        return false;
+      }
+      mMemoryCatalog.set(memory);
+      // The in-memory copy answers faster.
+      mBinaryCatalog = null;
+      return true;
+    }
+  }
+
+  /**
+   * @return A CatalogSnapshot of db, or null if building one failed.
+   */
+  private CatalogSnapshot buildMemoryCatalog() {
+    try {
+      final CatalogSnapshot snapshot = CatalogSnapshot.build(db);
+      Log.i("DroidMuni", "Catalog snapshot: " + snapshot.getRouteCount()
+                         + " routes in about "
+                         + snapshot.getApproximateBytes() / 1024 + " KiB");
+      return snapshot;
+    } catch (SQLiteException e) {
+      Log.w("DroidMuni", "Couldn't build the catalog snapshot", e);
+      Stats.increment("catalog_snapshot.build_failures");
+      return null;
+    }
+  }
+
   private static final int REFETCH_ROUTES_BLOCK = 0;
   private static final int REFETCH_ROUTES_NOBLOCK = 1;
 
@@ -120,16 +547,31 @@ public class NextMuniProvider extends ContentProvider {
    */
   private void tryFetchRoutes(int block_on_refetch_routes) {
     final long oldest_acceptable_routes = System.currentTimeMillis() - ONE_DAY;
-    if (db.hasRoutes()) {
-      if (db.routesNewerThan(oldest_acceptable_routes)) {
-        // If we already have new-enough routes, return without doing any work.
-        return;
-      }
+    final Catalog catalog = catalog();
+    if (catalog.hasRoutes()
+        && catalog.routesNewerThan(oldest_acceptable_routes)) {
+      // If we already have new-enough routes, return without doing any work.
+      return;
+    }
+    if (!mConnectivity.isOnline()) {
+      // Answer from whatever the database has, and refresh when we can.
+      mConnectivity.runWhenOnline("routeList", new Runnable() {
+        public void run() {
+          try {
+            tryFetchRoutes(REFETCH_ROUTES_BLOCK);
+          } catch (Exception e) {
+            Log.e("DroidMuni", "tryFetchRoutes failed", e);
+          }
+        }
+      });
+      return;
+    }
+    if (catalog.hasRoutes()) {
       if (block_on_refetch_routes == REFETCH_ROUTES_NOBLOCK) {
         // If our routes exist but are too old, and the caller doesn't want to
-        // block, spawn this task into the background pool and
+        // block, queue the refresh to go out with the next batch and
         // return immediately.
-        Globals.EXECUTOR.execute(new Runnable() {
+        mBatcher.defer("routeList", new Runnable() {
           public void run() {
             try {
               tryFetchRoutes(REFETCH_ROUTES_BLOCK);
@@ -183,13 +625,26 @@ public class NextMuniProvider extends ContentProvider {
    * @return true if the HTTP call succeeded.
    */
   private Boolean getRoutes() {
+    final boolean have_routes = catalog().hasRoutes();
+    // Without any routes, the user can't do anything until this finishes.
     RouteListParser parser =
         getAndParse(NextMuniUriBuilder.buildRouteListUri("sf-muni").toString(),
-            RouteListParser.class);
+            ROUTE_LIST_PARSERS, have_routes,
+            Deadline.after(CATALOG_BUDGET_MS),
+            have_routes ? RequestBudget.Lane.BACKGROUND
+                : RequestBudget.Lane.USER);
     if (parser == null) {
       return false;
     }
-    db.setRoutes(parser.getRoutes());
+    if (parser.getResult() == Parser.ResultState.UNCHANGED) {
+      final long now = System.currentTimeMillis();
+      db.touchRoutes(now);
+      routesTouched(now);
+    } else {
+      db.setRoutes(parser.getRoutes());
+      catalogChanged();
+    }
+    rememberValidators(parser);
     return true;
   }
 
@@ -199,22 +654,21 @@ public class NextMuniProvider extends ContentProvider {
     switch (sURLMatcher.match(uri)) {
     case NEXT_MUNI_ROUTES:
       tryFetchRoutes(REFETCH_ROUTES_NOBLOCK);
-      String[] COLUMNS = { "_id", "tag", "description" };
-      Cursor result =
-          db.getReadableDatabase().query("Routes", COLUMNS, null, null, null,
-              null, "upstream_index");
-      if (result.getCount() == 0) {
-        result.close();
-        return null;
-      }
-      return result;
+      return catalog().queryRoutes();
     case NEXT_MUNI_DIRECTIONS:
       return queryDirections("sf-muni", uri.getPathSegments().get(1));
     case NEXT_MUNI_STOPS:
       return queryStops("sf-muni", uri.getPathSegments().get(1),
           uri.getPathSegments().get(2));
     case NEXT_MUNI_PREDICTIONS:
-      return queryPredictions("sf-muni", uri.getPathSegments().get(1));
+      return queryPredictions("sf-muni", uri.getPathSegments().get(1),
+          uri.getQueryParameters(PREDICTIONS_ROUTE_PARAM));
+    case NEXT_MUNI_FAVORITES:
+      return db.queryFavorites();
+    case NEXT_MUNI_FAVORITE_PREDICTIONS:
+      return queryFavoritePredictions("sf-muni");
+    case NEXT_MUNI_STATS:
+      return Stats.toCursor();
     default:
       throw new IllegalArgumentException("Unknown URI " + uri);
     }
@@ -226,77 +680,432 @@ public class NextMuniProvider extends ContentProvider {
    * 
    * @param agency_tag
    * @param route_tag
+   * @param revalidate
+   *          Whether the database already holds this route's stops and
+   *          directions, so an unchanged response can be skipped.
+   * @param deadline
+   * @param lane
+   *          USER if someone is waiting for this route, otherwise BACKGROUND.
+   *          The caller has already taken the first attempt's request from
+   *          mBudget through it.
+   * @param sink
+   *          Receives the route's stops and directions as they're parsed.
    * @return
    * @throws IllegalStateException
    */
-  private RouteConfigParser getAndParseRoute(String agency_tag, String route_tag) {
+  private RouteConfigParser getAndParseRoute(String agency_tag,
+      String route_tag, boolean revalidate, Deadline deadline,
+      RequestBudget.Lane lane, final RouteConfigParser.Sink sink) {
     Uri request_uri =
         NextMuniUriBuilder.buildRouteDetailsUri(agency_tag, route_tag);
-    return getAndParse(request_uri.toString(), RouteConfigParser.class);
+    return getAndParse(request_uri.toString(),
+        new ParserFactory<RouteConfigParser>() {
+          public RouteConfigParser newParser() {
+            return new RouteConfigParser(sink);
+          }
+        }, revalidate, deadline, lane, true);
+  }
+
+  /**
+   * @return Whether getAndParse() remembers validators for 'command'. Only
+   *         documents that we store in the database are worth revalidating.
+   */
+  private static boolean isCacheable(String command) {
+    return "routeList".equals(command) || "routeConfig".equals(command);
   }
 
   /**
    * Requests a URI from NextBus, parses it with the specified parser, and
    * returns the parser if it succeeded.
    * 
+   * Failures that NextBus says are temporary (ResultState.RETRY) and network
+   * failures are retried with jittered exponential backoff, as long as the
+   * deadline allows. If too many requests for the same command fail in a row,
+   * its circuit breaker opens and we return null without sending anything, so
+   * callers fall back to whatever they have stored. A request counts as one
+   * failure however many of its attempts fail, and one that runs out of time
+   * before reaching NextBus doesn't count at all.
+   * 
+   * Every attempt draws from mBudget through 'lane', so lower-priority
+   * requests give way to higher ones when we're close to NextBus's limits.
+   * 
    * @param request_uri
+   * @param parsers
+   *          Supplies the parser for each attempt.
+   * @param revalidate
+   *          True if the caller has already stored this URI's document, in
+   *          which case, if NextBus says it hasn't changed, we skip parsing
+   *          and return a parser whose result is UNCHANGED.
+   * @param deadline
+   *          When to give up. The request is cancelled if it's still running
+   *          then.
+   * @param lane
+   *          The request's priority. BACKGROUND requests are dropped, and
+   *          return null, if the budget is tight.
    * @return
    * @throws IllegalStateException
    */
   private <ParserT extends Parser> ParserT getAndParse(String request_uri,
-      Class<ParserT> parserT) {
-    Log.i("DroidMuni", "Requesting " + request_uri);
-    HttpGet dir_request = new HttpGet(request_uri);
-    HttpResponse response;
-    HttpEntity response_entity;
-    try {
-      response = mClient.execute(dir_request);
-      // TODO(jyasskin): Figure out how best to guarantee that the
-      // response gets closed.
-      response_entity = response.getEntity();
-    } catch (ClientProtocolException e) {
-      Log.e("DroidMuni", "Cannot get " + request_uri, e);
-      dir_request.abort();
+      ParserFactory<ParserT> parsers, boolean revalidate, Deadline deadline,
+      RequestBudget.Lane lane) {
+    return getAndParse(request_uri, parsers, revalidate, deadline, lane, false);
+  }
+
+  /**
+   * Like getAndParse() above, for callers that hold a database transaction
+   * across the request and so mustn't wait for the budget.
+   * 
+   * @param budget_taken
+   *          Whether the caller already took the first attempt's request from
+   *          mBudget, before taking its locks. Retries then only take what the
+   *          budget has available, without waiting.
+   */
+  private <ParserT extends Parser> ParserT getAndParse(String request_uri,
+      ParserFactory<ParserT> parsers, boolean revalidate, Deadline deadline,
+      RequestBudget.Lane lane, boolean budget_taken) {
+    final String command = NextMuniUriBuilder.getCommand(request_uri);
+    if (!mConnectivity.isOnline()) {
+      Log.w("DroidMuni", "Offline, not requesting " + request_uri);
+      Stats.increment("offline.skipped." + command);
       return null;
-    } catch (IOException e) {
-      Log.e("DroidMuni", "Cannot get " + request_uri, e);
-      dir_request.abort();
+    }
+    final CircuitBreaker breaker = getBreaker(command);
+    if (!breaker.allowRequest()) {
+      Log.w("DroidMuni", "Circuit open, not requesting " + request_uri);
       return null;
     }
-
-    ParserT parser;
+    // The retries are all one request as far as the breaker is concerned, so
+    // it hears exactly one outcome however many attempts we make.
+    boolean failed = false;
+    boolean reported = false;
     try {
-      parser = (ParserT) parserT.newInstance();
-    } catch (IllegalAccessException e) {
-      throw new IllegalArgumentException(
-          "Passed " + parserT.getName()
-              + " to getAndParse(), without an accessible constructor", e);
-    } catch (InstantiationException e) {
-      throw new IllegalArgumentException(
-          "Passed " + parserT.getName()
-              + " to getAndParse(), which cannot be constructed", e);
+      attempts: for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+        if (attempt > 0) {
+          if (!sleepBeforeRetry(attempt, deadline)) {
+            break;
+          }
+          Stats.increment("retries." + command);
+        }
+        final boolean within_budget;
+        if (budget_taken) {
+          within_budget = attempt == 0 || mBudget.tryAcquire(lane);
+        } else {
+          within_budget = mBudget.acquire(lane, deadline);
+        }
+        if (!within_budget) {
+          Log.w("DroidMuni", "Over the request budget, not requesting "
+                             + request_uri);
+          break;
+        }
+        ParserT parser =
+            getAndParseOnce(request_uri, parsers.newParser(), revalidate,
+                deadline);
+        if (lane == RequestBudget.Lane.FOREGROUND) {
+          // The radio is awake now, so send the deferred background work too.
+          mBatcher.onForegroundRequest();
+        }
+        switch (parser.getResult()) {
+        case SUCCESS:
+        case UNCHANGED:
+          breaker.recordSuccess();
+          reported = true;
+          return parser;
+        case PARSE_ERROR:
+          // NextBus answered, so it's up, but retrying won't fix the document.
+          breaker.recordSuccess();
+          reported = true;
+          Log.e("DroidMuni", "Failed to parse response");
+          return null;
+        case RETRY:
+        case IO_ERROR:
+          failed = true;
+          Log.w("DroidMuni", "Attempt " + (attempt + 1) + " of " + request_uri
+                             + " failed with " + parser.getResult());
+          break;
+        case TIMED_OUT:
+          // We ran out of time without asking NextBus anything more.
+          break attempts;
+        case NOT_DONE:
+          failed = true;
+          Log.e("DroidMuni", "Parser didn't finish?!?");
+          break attempts;
+        }
+      }
+    } finally {
+      if (!reported) {
+        if (failed) {
+          breaker.recordFailure();
+        } else {
+          breaker.recordNotSent();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Waits out the backoff before retry number 'attempt'. The delay is picked
+   * uniformly from the upper half of the doubled window, so clients that
+   * failed together don't all retry together.
+   * 
+   * @return false if there isn't time left to retry, or if we were
+   *         interrupted.
+   */
+  private boolean sleepBeforeRetry(int attempt, Deadline deadline) {
+    final long window_ms = RETRY_BASE_DELAY_MS << (attempt - 1);
+    final long delay_ms =
+        window_ms / 2 + (long) (mRetryJitter.nextDouble() * (window_ms / 2));
+    if (delay_ms >= deadline.remainingMs()) {
+      return false;
     }
-    
     try {
-      parser.parse(response_entity.getContent());
-      response_entity.consumeContent();
-    } catch (IOException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
-    }
-    
-    switch (parser.getResult()) {
-    case SUCCESS:
+      Thread.sleep(delay_ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  private CircuitBreaker getBreaker(String command) {
+    CircuitBreaker breaker = mBreakers.get(command);
+    if (breaker == null) {
+      CircuitBreaker new_breaker =
+          new CircuitBreaker(command, BREAKER_FAILURE_THRESHOLD,
+              BREAKER_OPEN_MS);
+      breaker = mBreakers.putIfAbsent(command, new_breaker);
+      if (breaker == null) {
+        breaker = new_breaker;
+      }
+    }
+    return breaker;
+  }
+
+  /**
+   * Makes a single attempt at getAndParse()'s request.
+   * 
+   * @return The parser, whose result says whether the attempt succeeded. A
+   *         network failure or a 5xx response leaves it as IO_ERROR, and an
+   *         expired deadline as TIMED_OUT.
+   */
+  private <ParserT extends Parser> ParserT getAndParseOnce(String request_uri,
+      ParserT parser, boolean revalidate, Deadline deadline) {
+    Log.i("DroidMuni", "Requesting " + request_uri);
+
+    final String command = NextMuniUriBuilder.getCommand(request_uri);
+    if (deadline.isExpired()) {
+      Log.w("DroidMuni", "No time left to request " + request_uri);
+      Stats.increment("deadline.expired." + command);
+      parser.markTimedOut();
       return parser;
-    case NOT_DONE:
-      Log.e("DroidMuni", "Parser didn't finish?!?");
-      break;
-    case IO_ERROR:
-    case PARSE_ERROR:
-      Log.e("DroidMuni", "Failed to parse response");
-      break;
     }
-    return null;
+    HttpGet dir_request = new HttpGet(request_uri);
+    dir_request.addHeader("Accept-Encoding", "gzip");
+    final boolean cacheable = isCacheable(command);
+    final DiskResponseCache.Entry cached_entry =
+        cacheable && revalidate ? mResponseCache.get(request_uri) : null;
+    if (cached_entry != null) {
+      DiskResponseCache.addValidators(dir_request, cached_entry);
+    }
+    // Bound each phase of the request by the remaining budget, and abort the
+    // whole thing if it's still running when the deadline passes.
+    final int remaining_ms = (int) Math.min(Integer.MAX_VALUE,
+        deadline.remainingMs());
+    HttpParams request_params = dir_request.getParams();
+    HttpConnectionParams.setConnectionTimeout(request_params, remaining_ms);
+    HttpConnectionParams.setSoTimeout(request_params, remaining_ms);
+    ConnManagerParams.setTimeout(request_params, remaining_ms);
+    ScheduledFuture<?> watchdog =
+        abortAtDeadline(dir_request, deadline, command);
+    try {
+      HttpResponse response;
+      HttpEntity response_entity;
+      final long start_ms = System.currentTimeMillis();
+      try {
+        HedgedRequest.Exchange exchange =
+            HedgedRequest.execute(mTransport, mBudget, dir_request,
+                hedgeDelayMs(command), deadline);
+        if (exchange.request != dir_request) {
+          // The hedge won, so it's the request to abort from now on.
+          watchdog.cancel(false);
+          dir_request = exchange.request;
+          watchdog = abortAtDeadline(dir_request, deadline, command);
+        }
+        response = exchange.response;
+        response_entity = response.getEntity();
+      } catch (ClientProtocolException e) {
+        Log.e("DroidMuni", "Cannot get " + request_uri, e);
+        dir_request.abort();
+        parser.markIoError();
+        return parser;
+      } catch (IOException e) {
+        Log.e("DroidMuni", "Cannot get " + request_uri, e);
+        dir_request.abort();
+        parser.markIoError();
+        return parser;
+      }
+      final long latency_ms = System.currentTimeMillis() - start_ms;
+      Stats.recordLatency("latency." + command, latency_ms);
+      final int status = response.getStatusLine().getStatusCode();
+      if (cached_entry != null && status == HttpStatus.SC_NOT_MODIFIED) {
+        if (response_entity != null) {
+          try {
+            response_entity.consumeContent();
+          } catch (IOException e) {
+            dir_request.abort();
+          }
+        }
+        Stats.increment("cache.not_modified." + command);
+        parser.markUnchanged();
+        return parser;
+      }
+      if (response_entity == null) {
+        Log.e("DroidMuni", "Empty response for " + request_uri);
+        dir_request.abort();
+        parser.markIoError();
+        return parser;
+      }
+      if (status >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+        Log.e("DroidMuni", "Got status " + status + " for " + request_uri);
+        dir_request.abort();
+        parser.markIoError();
+        return parser;
+      }
+
+      // The connection only goes back to the pool once the entity has been
+      // consumed, so make sure that happens or that the request gets aborted.
+      boolean released = false;
+      CountingInputStream compressed = null;
+      CountingInputStream uncompressed = null;
+      try {
+        compressed = new CountingInputStream(response_entity.getContent());
+        uncompressed =
+            new CountingInputStream(decode(response_entity, compressed));
+        if (cacheable) {
+          parseCacheable(request_uri, response, cached_entry, uncompressed,
+              parser);
+        } else {
+          parser.parse(uncompressed);
+        }
+        response_entity.consumeContent();
+        released = true;
+      } catch (IOException e) {
+        Log.e("DroidMuni", "Cannot read " + request_uri, e);
+        parser.markIoError();
+      } finally {
+        if (!released) {
+          dir_request.abort();
+        }
+        if (compressed != null && uncompressed != null) {
+          parser.setTransferSizes(compressed.getCount(),
+              uncompressed.getCount());
+          Stats.add("bytes.compressed." + command, compressed.getCount());
+          mBudget.recordBytes(compressed.getCount());
+          Stats.add("bytes.uncompressed." + command, uncompressed.getCount());
+        }
+      }
+    } finally {
+      watchdog.cancel(false);
+    }
+    return parser;
+  }
+
+  /**
+   * Aborts 'request' if it's still running when 'deadline' passes.
+   */
+  private static ScheduledFuture<?> abortAtDeadline(final HttpGet request,
+      Deadline deadline, final String command) {
+    return Globals.SCHEDULER.schedule(new Runnable() {
+      public void run() {
+        Stats.increment("deadline.aborted." + command);
+        request.abort();
+      }
+    }, deadline.remainingMs(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Predictions are what the user is waiting on, so once we know how long they
+   * usually take, a request slower than the 95th percentile gets a hedge.
+   * 
+   * @return How long to wait before hedging a 'command' request, or -1 to not
+   *         hedge it.
+   */
+  private static long hedgeDelayMs(String command) {
+    if (!"predictions".equals(command)
+        && !"predictionsForMultiStops".equals(command)) {
+      return -1;
+    }
+    LatencyHistogram latencies = Stats.histogram("latency." + command);
+    if (latencies.totalCount() < MIN_HEDGE_SAMPLES) {
+      return -1;
+    }
+    return latencies.percentileMs(0.95);
+  }
+
+  /**
+   * Parses a response we keep validators for, hashing the body as the parser
+   * reads it. If the body turns out to hash the same as the stored copy's, the
+   * parser's results are thrown away and it's marked UNCHANGED, so the body is
+   * never held in memory in full.
+   * 
+   * Either way, the response's validators are left on the parser instead of
+   * being stored, since the caller hasn't stored the body yet. See
+   * rememberValidators().
+   */
+  private void parseCacheable(String request_uri, HttpResponse response,
+      DiskResponseCache.Entry cached_entry, InputStream body, Parser parser)
+      throws IOException {
+    final String command = NextMuniUriBuilder.getCommand(request_uri);
+    DigestInputStream hashed =
+        new DigestInputStream(body, DiskResponseCache.newSha1());
+    parser.parse(hashed);
+    if (parser.getResult() != Parser.ResultState.SUCCESS) {
+      return;
+    }
+    // The parser can stop before the end of the body, but the hash covers all
+    // of it.
+    byte[] buffer = new byte[4096];
+    while (hashed.read(buffer) != -1) {
+    }
+    String body_hash =
+        DiskResponseCache.toHex(hashed.getMessageDigest().digest());
+    final DiskResponseCache.Entry validators =
+        DiskResponseCache.fromResponse(request_uri, response, body_hash);
+    if (cached_entry != null && body_hash.equals(cached_entry.body_hash)) {
+      Stats.increment("cache.same_hash." + command);
+      parser.reset();
+      parser.markUnchanged();
+      // Keep the new validators so next time NextBus can answer 304.
+      parser.setValidators(validators);
+      return;
+    }
+    Stats.increment("cache.changed." + command);
+    parser.setValidators(validators);
+  }
+
+  /**
+   * Stores the validators 'parser' picked up, if any. Call only once the
+   * parser's results are committed to db, and outside any transaction, so
+   * the disk write doesn't hold db's write lock.
+   */
+  private void rememberValidators(Parser parser) {
+    final DiskResponseCache.Entry validators = parser.getValidators();
+    if (validators != null) {
+      mResponseCache.put(validators);
+    }
+  }
+
+  /**
+   * Wraps 'content' to undo the entity's Content-Encoding. The gzip case
+   * inflates as the parser reads, so the body is never buffered in full.
+   */
+  private static InputStream decode(HttpEntity entity, InputStream content)
+      throws IOException {
+    Header encoding = entity.getContentEncoding();
+    if (encoding != null && encoding.getValue().equalsIgnoreCase("gzip")) {
+      return new GZIPInputStream(content);
+    }
+    return content;
   }
 
   /**
@@ -307,12 +1116,33 @@ public class NextMuniProvider extends ContentProvider {
    *          querying for.)
    * @param route
    *          The route to query directions and stops for.
-   * @param update_time_on_failure
-   *          When getting the route fails, we set its "last update" time back
-   *          to this value so the next query will try again.
+   * @param lane
+   *          USER if someone is waiting for this route, otherwise BACKGROUND.
+   *          If a BACKGROUND request is dropped, the route stays stale and the
+   *          next query tries again.
    */
-  private void fillDbForRoute(String agency_tag, Db.Route route) {
+  private void fillDbForRoute(String agency_tag, Db.Route route,
+      RequestBudget.Lane lane) {
+    // A refresh that was queued, or raced another, may find the route already
+    // updated. Check without locking anything before spending the budget.
+    final long oldest_acceptable = System.currentTimeMillis() - ONE_DAY;
+    final Db.Route current = db.getRoute(route.tag);
+    if (current != null
+        && current.directions_updated_ms >= oldest_acceptable) {
+      return;
+    }
+    // Wait for the budget before opening the transaction, so a USER request
+    // doesn't hold the database's write lock while it sleeps.
+    final Deadline deadline = Deadline.after(CATALOG_BUDGET_MS);
+    if (!mBudget.acquire(lane, deadline)) {
+      Log.w("DroidMuni", "Over the request budget, not requesting route "
+                         + route.tag);
+      return;
+    }
     final SQLiteDatabase tables = db.getWritableDatabase();
+    boolean updated = false;
+    boolean unchanged = false;
+    RouteConfigParser parser = null;
     tables.beginTransaction();
     try {
       long last_update =
@@ -320,31 +1150,46 @@ public class NextMuniProvider extends ContentProvider {
               "SELECT last_direction_update_ms FROM Routes WHERE _id == ?",
               new String[] { route.id + "" });
       if (last_update >= System.currentTimeMillis() - ONE_DAY) {
-        // Someone else updated it first. Skip the work.
+        // Someone else updated it since the check above. Skip the work, and
+        // give back the request we won't send.
+        mBudget.release();
         return;
       }
-      RouteConfigParser parser = getAndParseRoute(agency_tag, route.tag);
+      // The stops and directions go straight into the tables as they're
+      // parsed. If the request fails, or the response turns out to match the
+      // copy we have, ending the transaction without success throws away
+      // whatever got written.
+      final Db.RouteWriter writer = db.newRouteWriter(tables, route.id);
+      try {
+        parser =
+            getAndParseRoute(agency_tag, route.tag, last_update != 0,
+                deadline, lane, writer);
+      } finally {
+        writer.close();
+      }
       if (parser == null) {
         return;
       }
-      synchronized (db) {
-        for (int i = 0; i < parser.getStops().size(); i++) {
-          db.addStop(parser.getStops().valueAt(i), route.id);
-        }
+      unchanged = parser.getResult() == Parser.ResultState.UNCHANGED;
+      if (!unchanged) {
+        // Record that the directions and stops are now up to date.
+        db.touchRoute(route.id, System.currentTimeMillis());
+        tables.setTransactionSuccessful();
+        updated = true;
       }
-
-      final Map<String, Db.Direction> dir_map = parser.getDirections();
-      db.setDirections(route.id, dir_map);
-
-      // Record that the directions and stops are now up to date.
-      ContentValues values = new ContentValues(1);
-      values.put("last_direction_update_ms", System.currentTimeMillis());
-      tables.update("Routes", values, "_id = ?", new String[] { route.id + "" });
-
-      tables.setTransactionSuccessful();
     } finally {
       tables.endTransaction();
     }
+    if (unchanged) {
+      // Outside the rolled-back transaction, so it sticks.
+      final long now = System.currentTimeMillis();
+      db.touchRoute(route.id, now);
+      routeTouched(route.tag, now);
+      rememberValidators(parser);
+    } else if (updated) {
+      catalogChanged();
+      rememberValidators(parser);
+    }
   }
 
   /**
@@ -355,106 +1200,222 @@ public class NextMuniProvider extends ContentProvider {
       final Db.Route the_route) {
     final long now = System.currentTimeMillis();
     final long last_directions_update = the_route.directions_updated_ms;
-    if (last_directions_update < now - ONE_MONTH) {
+    if (last_directions_update < now - ONE_DAY && !mConnectivity.isOnline()) {
+      // Don't make the user wait for a request that can't succeed. They get
+      // whatever the database has, which may be nothing for a new route.
+      mConnectivity.runWhenOnline("routeConfig/" + the_route.tag,
+          new Runnable() {
+            public void run() {
+              fillDbForRoute(agency_tag, the_route,
+                  RequestBudget.Lane.BACKGROUND);
+            }
+          });
+    } else if (last_directions_update < now - ONE_MONTH) {
       // The data is too old, so block until we can update it.
-      fillDbForRoute(agency_tag, the_route);
+      fillDbForRoute(agency_tag, the_route, RequestBudget.Lane.USER);
     } else if (last_directions_update < now - ONE_DAY) {
       // The data is a little stale, so update it in the background, but
       // return quickly with the cached data.
-      Globals.EXECUTOR.execute(new Runnable() {
+      mBatcher.defer("routeConfig/" + the_route.tag, new Runnable() {
         public void run() {
-          fillDbForRoute(agency_tag, the_route);
+          fillDbForRoute(agency_tag, the_route, RequestBudget.Lane.BACKGROUND);
         }
       });
     }
   }
 
   Cursor queryDirections(final String agency_tag, final String route_tag) {
-    final Db.Route the_route = db.getRoute(route_tag);
+    final Db.Route the_route = catalog().getRoute(route_tag);
+    if (the_route == null) {
+      return null;
+    }
     maybeUpdateRouteData(agency_tag, the_route);
 
     // Now use the local cache to return the directions list.
-    Cursor result =
-        db.getReadableDatabase().rawQuery(
-            "SELECT Directions._id AS _id, Routes.tag AS route_tag,"
-                + " Directions.tag AS tag, Directions.title AS title"
-                + " FROM Directions INNER JOIN Routes"
-                + " ON (Directions.route_id == Routes._id)"
-                + " WHERE Routes.tag == ? AND use_for_ui != 0"
-                + " ORDER BY Directions.tag ASC", new String[] { route_tag });
-    if (result.getCount() == 0) {
-      result.close();
-      return null;
-    }
-    return result;
+    return catalog().queryDirections(route_tag);
   }
 
   private Cursor queryStops(String agency_tag, String route_tag,
       String direction_tag) {
-    final Db.Route the_route = db.getRoute(route_tag);
+    final Db.Route the_route = catalog().getRoute(route_tag);
+    if (the_route == null) {
+      return null;
+    }
     maybeUpdateRouteData(agency_tag, the_route);
 
-    Cursor result =
-        db.getReadableDatabase().rawQuery(
-            "SELECT Stops._id AS _id, Routes.tag AS route_tag,"
-                + " Directions.tag AS direction_tag, Stops._id AS stop_id,"
-                + " Stops.title AS title, latitude AS lat, longitude AS lon"
-                + " FROM Routes JOIN Directions"
-                + " ON (Routes._id == Directions.route_id)"
-                + " JOIN DirectionStops"
-                + " ON (Directions._id == DirectionStops.direction)"
-                + " JOIN Stops ON (DirectionStops.stop == Stops._id)"
-                + " WHERE Routes.tag == ? AND Directions.tag == ?"
-                + " ORDER BY stop_order ASC",
-            new String[] { route_tag, direction_tag });
-    if (result.getCount() == 0) {
-      result.close();
+    return catalog().queryStops(route_tag, direction_tag);
+  }
+
+  /**
+   * @param route_tags
+   *          If empty, returns predictions for every route serving the stop.
+   *          Otherwise, only requests predictions for these routes.
+   */
+  private Cursor queryPredictions(String agency_tag, String stop_id,
+      List<String> route_tags) {
+    String prediction_uri = null;
+    String mode = "stop";
+    if (!route_tags.isEmpty()) {
+      // predictionsForMultiStops takes stop tags rather than ids.
+      final int stop_tag = catalog().getStopTag(stop_id);
+      if (stop_tag != -1) {
+        prediction_uri =
+            NextMuniUriBuilder.buildMultiPredictionUri(agency_tag,
+                stop_tag + "",
+                route_tags.toArray(new String[route_tags.size()])).toString();
+        mode = "routes";
+      }
+    }
+    if (prediction_uri == null) {
+      prediction_uri =
+          NextMuniUriBuilder.buildPredictionUri(agency_tag, stop_id).toString();
+    }
+
+    PredictionCache.Result predictions =
+        fetchPredictions(prediction_uri, mode,
+            Deadline.after(PREDICTIONS_BUDGET_MS));
+    if (predictions == null) {
       return null;
     }
+
+    Map<String, String> direction_tag2title = predictions.direction_tag2title;
+
+    String[] columns =
+        { "_id", "route_tag", "direction_tag", "direction_title", "stop_id",
+         "predicted_time" };
+    final PredictionBuffer buffer = predictions.predictions;
+    MatrixCursor result = new MatrixCursor(columns, buffer.size());
+    for (int i = 0; i < buffer.size(); i++) {
+      final String direction_tag = buffer.directionTag(i);
+      String direction_name = direction_tag2title.get(direction_tag);
+      if (direction_name == null) {
+        direction_name = direction_tag;
+      }
+
+      MatrixCursor.RowBuilder row = result.newRow();
+      row.add(i);
+      row.add(buffer.routeTag(i));
+      row.add(direction_tag);
+      row.add(direction_name);
+      row.add(stop_id);
+      row.add(buffer.predictedTime(i));
+    }
     return result;
   }
 
-  private Cursor queryPredictions(String agency_tag, String stop_id) {
-    Uri prediction_uri = null;
-    prediction_uri = NextMuniUriBuilder.buildPredictionUri(agency_tag, stop_id);
-
-    PredictionsParser parser =
-        getAndParse(prediction_uri.toString(), PredictionsParser.class);
-    if (parser == null) {
-      return null;
+  /**
+   * Fetches and parses a predictions or predictionsForMultiStops request,
+   * sharing the work with any concurrent or recent identical request.
+   */
+  private PredictionCache.Result fetchPredictions(final String request_uri,
+      final String mode, final Deadline deadline) {
+    PredictionCache.Result result =
+        mPredictionCache.get(request_uri, new PredictionCache.Fetcher() {
+          public PredictionCache.Result fetch() {
+            PredictionsParser parser =
+                getAndParse(request_uri, PREDICTIONS_PARSERS, false,
+                    deadline, RequestBudget.Lane.FOREGROUND);
+            if (parser == null) {
+              return null;
+            }
+            // Divide these to get the bytes per poll in each mode.
+            Stats.increment("predictions.mode." + mode + ".polls");
+            Stats.add("predictions.mode." + mode + ".compressed_bytes",
+                parser.getCompressedBytes());
+            Stats.add("predictions.mode." + mode + ".uncompressed_bytes",
+                parser.getUncompressedBytes());
+            return new PredictionCache.Result(parser.getPredictions(),
+                parser.getDirectionTag2Title(), System.currentTimeMillis());
+          }
+        });
+    if (result == null) {
+      // NextBus is failing or its breaker is open, so show the last
+      // predictions we got, if they're recent enough to still mean something.
+      result = mPredictionCache.getStale(request_uri);
+      if (result != null) {
+        Stats.increment("predictions.served_stale");
+      }
     }
+    return result;
+  }
 
-    List<Db.Prediction> predictions = parser.getPredictions();
-    Collections.sort(predictions);
+  /**
+   * Returns the predictions for every favorite stop, sorted by time. The
+   * favorites are batched into as few predictionsForMultiStops requests as the
+   * URI length limit allows, so ten favorites usually cost one round trip.
+   */
+  private Cursor queryFavoritePredictions(String agency_tag) {
+    final List<Db.Favorite> favorites = db.getFavorites();
+    final List<Uri> request_uris =
+        NextMuniUriBuilder.buildMultiPredictionUris(agency_tag, favorites,
+            NextMuniUriBuilder.MAX_URI_LENGTH);
+    Stats.add("favorites.stops", favorites.size());
+    Stats.add("favorites.requests", request_uris.size());
 
-    HashMap<String, String> direction_tag2title =
-        parser.getDirectionTag2Title();
+    // Each batch is already sorted, so it goes in as one run to merge.
+    final PredictionBuffer predictions = new PredictionBuffer();
+    boolean any_succeeded = false;
+    final Map<String, String> direction_tag2title =
+        new HashMap<String, String>();
+    // All the batches share one budget, since the user is waiting for all of
+    // them.
+    final Deadline deadline = Deadline.after(PREDICTIONS_BUDGET_MS);
+    for (Uri request_uri : request_uris) {
+      PredictionCache.Result batch =
+          fetchPredictions(request_uri.toString(), "favorites", deadline);
+      if (batch == null) {
+        // Show whatever the other batches found rather than nothing.
+        continue;
+      }
+      any_succeeded = true;
+      predictions.addRuns(batch.predictions);
+      direction_tag2title.putAll(batch.direction_tag2title);
+    }
+    if (!any_succeeded && !request_uris.isEmpty()) {
+      return null;
+    }
 
     String[] columns =
-        { "_id", "route_tag", "direction_tag", "direction_title", "stop_id",
+        { "_id", "route_tag", "direction_tag", "direction_title", "stop_tag",
          "predicted_time" };
-    MatrixCursor result = new MatrixCursor(columns);
+    final int[] order = predictions.mergeOrder();
+    MatrixCursor result = new MatrixCursor(columns, order.length);
     int id = 0;
-    for (Db.Prediction prediction : predictions) {
-      String direction_name = direction_tag2title.get(prediction.direction_tag);
+    for (int i : order) {
+      final String direction_tag = predictions.directionTag(i);
+      String direction_name = direction_tag2title.get(direction_tag);
       if (direction_name == null) {
-        direction_name = prediction.direction_tag;
+        direction_name = direction_tag;
       }
 
       MatrixCursor.RowBuilder row = result.newRow();
       row.add(id++);
-      row.add(prediction.route_tag);
-      row.add(prediction.direction_tag);
+      row.add(predictions.routeTag(i));
+      row.add(direction_tag);
       row.add(direction_name);
-      row.add(stop_id);
-      row.add(prediction.predicted_time);
+      row.add(predictions.stopTag(i));
+      row.add(predictions.predictedTime(i));
     }
     return result;
   }
 
+  /**
+   * Only favorites can be inserted, with ContentValues holding route_tag and
+   * stop_tag.
+   */
   @Override
   public Uri insert(Uri uri, ContentValues values) {
-    throw new UnsupportedOperationException("Cannot insert into NextMUNI");
+    if (sURLMatcher.match(uri) != NEXT_MUNI_FAVORITES) {
+      throw new UnsupportedOperationException("Cannot insert into NextMUNI");
+    }
+    final String route_tag = values.getAsString("route_tag");
+    final Integer stop_tag = values.getAsInteger("stop_tag");
+    if (route_tag == null || stop_tag == null) {
+      throw new IllegalArgumentException(
+          "Favorites need a route_tag and a stop_tag");
+    }
+    long id = db.addFavorite(route_tag, stop_tag);
+    return ContentUris.withAppendedId(FAVORITES_URI, id);
   }
 
   @Override
@@ -465,6 +1426,13 @@ public class NextMuniProvider extends ContentProvider {
 
   @Override
   public int delete(Uri uri, String selection, String[] selectionArgs) {
+    switch (sURLMatcher.match(uri)) {
+    case NEXT_MUNI_FAVORITE_ID:
+      return db.removeFavorite(ContentUris.parseId(uri));
+    case NEXT_MUNI_CACHE:
+      eraseCache();
+      return 0;
+    }
     throw new UnsupportedOperationException("Cannot delete from NextMUNI");
   }
 }
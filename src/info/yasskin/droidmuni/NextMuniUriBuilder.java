@@ -1,5 +1,8 @@
 package info.yasskin.droidmuni;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.net.Uri;
 
 /**
@@ -7,6 +10,13 @@ import android.net.Uri;
  *      the format.
  */
 class NextMuniUriBuilder {
+  /**
+   * Longer URIs risk being rejected by NextBus or a proxy along the way.
+   */
+  static final int MAX_URI_LENGTH = 2000;
+
+  private static final Uri s_service_base =
+      Uri.parse("http://webservices.nextbus.com/service/publicXMLFeed");
   private static final Uri s_route_list_base =
       Uri.parse("http://webservices.nextbus.com/service/publicXMLFeed?command=routeList");
   private static final Uri s_route_details_base =
@@ -16,6 +26,23 @@ class NextMuniUriBuilder {
   private static final Uri s_multi_predictions_base =
       Uri.parse("http://webservices.nextbus.com/service/publicXMLFeed?command=predictionsForMultiStops");
 
+  /**
+   * @return The feed's URI without any command, which is enough to open a
+   *         connection to the NextBus server.
+   */
+  static Uri buildServiceUri() {
+    return s_service_base;
+  }
+
+  /**
+   * @return The value of the "command" parameter of a NextBus request URI, like
+   *         "predictions", or "unknown" if it doesn't have one.
+   */
+  static String getCommand(String request_uri) {
+    String command = Uri.parse(request_uri).getQueryParameter("command");
+    return command == null ? "unknown" : command;
+  }
+
   static Uri buildRouteListUri(String agency) {
     Uri.Builder builder = s_route_list_base.buildUpon();
     builder.appendQueryParameter("a", agency);
@@ -40,6 +67,36 @@ class NextMuniUriBuilder {
     return builder.build();
   }
 
+  /**
+   * Splits 'stops' into as few predictionsForMultiStops requests as possible
+   * without any of them exceeding max_length characters.
+   */
+  static List<Uri> buildMultiPredictionUris(String agency,
+      List<Db.Favorite> stops, int max_length) {
+    List<Uri> result = new ArrayList<Uri>();
+    Uri.Builder builder = null;
+    int length = 0;
+    for (Db.Favorite stop : stops) {
+      final String value = stop.route_tag + "||" + stop.stop_tag;
+      final int added_length = "&stops=".length() + Uri.encode(value).length();
+      if (builder != null && length + added_length > max_length) {
+        result.add(builder.build());
+        builder = null;
+      }
+      if (builder == null) {
+        builder = s_multi_predictions_base.buildUpon();
+        builder.appendQueryParameter("a", agency);
+        length = builder.build().toString().length();
+      }
+      builder.appendQueryParameter("stops", value);
+      length += added_length;
+    }
+    if (builder != null) {
+      result.add(builder.build());
+    }
+    return result;
+  }
+
   /**
    * @param agency
    *          The bus company to get predictions for.
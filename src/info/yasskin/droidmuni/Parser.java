@@ -48,14 +48,94 @@ abstract class Parser {
            + (text == null ? "" : " Text: " + text);
   }
 
+  /**
+   * UNCHANGED means the document matched the copy we already stored, so the
+   * parser's results are empty. A parser with a streaming sink may have fed
+   * the sink the whole document before that was known. TIMED_OUT means the
+   * deadline passed before the document was requested.
+   */
   public enum ResultState {
-    NOT_DONE, IO_ERROR, PARSE_ERROR, RETRY, SUCCESS,
+    NOT_DONE, IO_ERROR, PARSE_ERROR, RETRY, SUCCESS, UNCHANGED, TIMED_OUT,
   }
 
   public ResultState getResult() {
     return result_state;
   }
 
+  /**
+   * Returns this parser to the state it was constructed in, so it can parse
+   * another document. Subclasses that collect results override this to clear
+   * them, and call super.reset().
+   */
+  void reset() {
+    result_state = ResultState.NOT_DONE;
+    copyright = null;
+    compressed_bytes = 0;
+    uncompressed_bytes = 0;
+    validators = null;
+  }
+
+  /**
+   * Records that the document is the same as the copy we already stored. Call
+   * reset() first if it has already been parsed.
+   */
+  void markUnchanged() {
+    if (this.result_state == ResultState.NOT_DONE) {
+      result_state = ResultState.UNCHANGED;
+    }
+  }
+
+  /**
+   * Records that the document couldn't be fetched, so retrying might help.
+   */
+  void markIoError() {
+    if (this.result_state == ResultState.NOT_DONE) {
+      result_state = ResultState.IO_ERROR;
+    }
+  }
+
+  /**
+   * Records that the deadline passed before the document was requested.
+   */
+  void markTimedOut() {
+    if (this.result_state == ResultState.NOT_DONE) {
+      result_state = ResultState.TIMED_OUT;
+    }
+  }
+
+  /**
+   * Records how big the document was on the wire and after decompression.
+   * Whoever feeds this parser its input fills these in.
+   */
+  void setTransferSizes(long compressed_bytes, long uncompressed_bytes) {
+    this.compressed_bytes = compressed_bytes;
+    this.uncompressed_bytes = uncompressed_bytes;
+  }
+
+  /**
+   * Records the validators of the document this parser read, for the caller
+   * to remember once it has stored the results.
+   */
+  void setValidators(DiskResponseCache.Entry validators) {
+    this.validators = validators;
+  }
+
+  /**
+   * @return The validators to put() into the response cache after storing
+   *         this parser's results, or null if there are none to remember.
+   */
+  DiskResponseCache.Entry getValidators() {
+    return validators;
+  }
+
+  public long getCompressedBytes() {
+    return compressed_bytes;
+  }
+
+  public long getUncompressedBytes() {
+    return uncompressed_bytes;
+  }
+
   public String getCopyright() {
     return copyright;
   }
@@ -63,6 +143,9 @@ abstract class Parser {
   protected final XmlPullParser parser = Xml.newPullParser();
   protected ResultState result_state = ResultState.NOT_DONE;
   protected String copyright;
+  private long compressed_bytes;
+  private long uncompressed_bytes;
+  private DiskResponseCache.Entry validators;
 
   protected static String renderTag(XmlPullParser tag) {
     StringBuilder b = new StringBuilder();
@@ -116,4 +199,51 @@ abstract class Parser {
     return parser.getAttributeValue(null, name);
   }
 
+  /**
+   * Like getAttr(), but for attributes that repeat across documents, like
+   * route and direction tags. Returns the canonical copy from
+   * Globals.SYMBOLS so results don't each keep their own.
+   */
+  protected String getSymbolAttr(String name) {
+    return Globals.SYMBOLS.intern(getAttr(name));
+  }
+
+  /*
+   * Typed attribute getters. XmlPullParser only hands out attribute values as
+   * Strings, so these can't avoid that one; they avoid the allocations the
+   * java.lang parsers make on top of it. See AttributeDecoder.
+   */
+
+  /**
+   * @throws NumberFormatException
+   *           if the attribute is missing or not an integer.
+   */
+  protected int getIntAttr(String name) {
+    return AttributeDecoder.decodeInt(getAttr(name));
+  }
+
+  /**
+   * @throws NumberFormatException
+   *           if the attribute is missing or not an integer.
+   */
+  protected long getLongAttr(String name) {
+    return AttributeDecoder.decodeLong(getAttr(name));
+  }
+
+  /**
+   * @return The attribute's value in degrees, times AttributeDecoder.E7.
+   * @throws NumberFormatException
+   *           if the attribute is missing or not a number.
+   */
+  protected int getE7Attr(String name) {
+    return AttributeDecoder.decodeE7(getAttr(name));
+  }
+
+  /**
+   * @return false if the attribute is missing or anything but "true".
+   */
+  protected boolean getBooleanAttr(String name) {
+    return AttributeDecoder.decodeBoolean(getAttr(name));
+  }
+
 }
\ No newline at end of file
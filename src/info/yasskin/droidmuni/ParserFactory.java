@@ -0,0 +1,14 @@
+package info.yasskin.droidmuni;
+
+/**
+ * Supplies the parser for each attempt at a request.
+ */
+interface ParserFactory<ParserT extends Parser> {
+  /**
+   * @return A parser that hasn't parsed anything yet. It may be an instance
+   *         this factory returned earlier on the same thread, reset, so
+   *         callers must copy out anything they need from a parser's results
+   *         before asking for the next one.
+   */
+  ParserT newParser();
+}
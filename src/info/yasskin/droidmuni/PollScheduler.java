@@ -0,0 +1,143 @@
+package info.yasskin.droidmuni;
+
+import java.util.Arrays;
+
+/**
+ * Decides when to poll for predictions next, based on the predictions we just
+ * got. We poll sooner when a bus is about to arrive or when the predictions
+ * are moving around, and back off when the next bus is far away and the
+ * predictions stay put.
+ *
+ * Not thread-safe. DroidMuni only uses it from the UI thread.
+ */
+public class PollScheduler {
+  /**
+   * If the earliest prediction moves by more than this between polls, we
+   * consider the predictions to be changing.
+   */
+  static final long CHANGE_THRESHOLD_MS = 30000;
+  /**
+   * Each consecutive unchanged poll stretches the delay by this factor.
+   */
+  private static final double BACKOFF_FACTOR = 1.5;
+
+  private final long m_min_delay_ms;
+  private final long m_max_delay_ms;
+  private final long m_fixed_interval_ms;
+
+  private long[] m_previous_arrivals = null;
+  private int m_unchanged_polls = 0;
+  private long m_scheduled_ms = 0;
+  private long m_polls = 0;
+
+  /**
+   * @param min_delay_ms
+   *          Never poll more often than this.
+   * @param max_delay_ms
+   *          Never wait longer than this between polls.
+   * @param fixed_interval_ms
+   *          The fixed schedule this replaces, used to count how many polls
+   *          we've saved.
+   */
+  public PollScheduler(long min_delay_ms, long max_delay_ms,
+      long fixed_interval_ms) {
+    if (min_delay_ms <= 0 || max_delay_ms < min_delay_ms) {
+      throw new IllegalArgumentException(
+          "Need 0 < min_delay_ms <= max_delay_ms");
+    }
+    m_min_delay_ms = min_delay_ms;
+    m_max_delay_ms = max_delay_ms;
+    m_fixed_interval_ms = fixed_interval_ms;
+  }
+
+  /**
+   * Forgets the previous predictions, for when the user picks another stop.
+   */
+  public void reset() {
+    m_previous_arrivals = null;
+    m_unchanged_polls = 0;
+  }
+
+  /**
+   * @param arrival_times
+   *          The predicted arrival times, in System.currentTimeMillis() units,
+   *          from the poll that just finished. Needn't be sorted.
+   * @return How many milliseconds to wait before polling again.
+   */
+  public long nextDelayMs(long[] arrival_times, long now) {
+    long[] arrivals = arrival_times.clone();
+    Arrays.sort(arrivals);
+
+    final boolean changed = isChanged(arrivals);
+    if (changed) {
+      m_unchanged_polls = 0;
+    } else {
+      m_unchanged_polls++;
+    }
+
+    long delay;
+    final long nearest = nearestUpcoming(arrivals, now);
+    if (nearest == Long.MAX_VALUE) {
+      // Nothing's coming, so there's nothing to keep up to date.
+      delay = m_max_delay_ms;
+    } else {
+      final long until_arrival = nearest - now;
+      // Check again about halfway to the next arrival, so the user sees any
+      // correction before the bus shows up.
+      delay = until_arrival / 2;
+      if (changed) {
+        delay /= 2;
+      } else {
+        delay = (long) (delay * Math.pow(BACKOFF_FACTOR, m_unchanged_polls));
+        // Still check once before the next bus arrives.
+        delay = Math.min(delay, until_arrival);
+      }
+    }
+    m_previous_arrivals = arrivals;
+
+    delay = Math.max(m_min_delay_ms, Math.min(m_max_delay_ms, delay));
+    recordPoll(delay);
+    return delay;
+  }
+
+  /**
+   * @return How many fewer polls we've made than the fixed schedule would
+   *         have over the same time. Negative if we've polled more.
+   */
+  public long getPollsSaved() {
+    return m_scheduled_ms / m_fixed_interval_ms - m_polls;
+  }
+
+  private void recordPoll(long delay) {
+    m_scheduled_ms += delay;
+    m_polls++;
+    Stats.increment("polls.adaptive");
+    Stats.set("polls.saved_vs_fixed", getPollsSaved());
+  }
+
+  private static long nearestUpcoming(long[] sorted_arrivals, long now) {
+    for (long arrival : sorted_arrivals) {
+      if (arrival >= now) {
+        return arrival;
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Predictions have changed if a bus appeared or disappeared, or if the
+   * earliest one moved by more than CHANGE_THRESHOLD_MS. The first poll
+   * counts as a change since we know nothing about the trend yet.
+   */
+  private boolean isChanged(long[] sorted_arrivals) {
+    if (m_previous_arrivals == null
+        || m_previous_arrivals.length != sorted_arrivals.length) {
+      return true;
+    }
+    if (sorted_arrivals.length == 0) {
+      return false;
+    }
+    final long moved_ms = sorted_arrivals[0] - m_previous_arrivals[0];
+    return Math.abs(moved_ms) > CHANGE_THRESHOLD_MS;
+  }
+}
@@ -0,0 +1,152 @@
+package info.yasskin.droidmuni;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import android.util.Log;
+
+/**
+ * An HttpTransport that keeps a bounded pool of keep-alive connections. Every
+ * request that's handed an already-open connection counts as a "pool.hits",
+ * and every request that has to open a new one counts as a "pool.misses".
+ */
+final class PooledHttpTransport implements HttpTransport {
+  /**
+   * NextBus is the only host we talk to, so the per-host limit is also what
+   * bounds the whole pool in practice.
+   */
+  private static final int MAX_TOTAL_CONNECTIONS = 8;
+  private static final int MAX_CONNECTIONS_PER_HOST = 4;
+  /**
+   * How long a request waits for a pooled connection to free up before giving
+   * up.
+   */
+  private static final long POOL_WAIT_MS = 10000;
+  /**
+   * Servers usually drop idle connections after a few seconds, so we don't try
+   * to hold onto them much longer than that.
+   */
+  private static final long MAX_KEEP_ALIVE_MS = 30000;
+
+  private final ThreadSafeClientConnManager m_conn_manager;
+  private final DefaultHttpClient m_client;
+
+  public PooledHttpTransport() {
+    HttpParams params = new BasicHttpParams();
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    HttpProtocolParams.setContentCharset(params, "UTF-8");
+    HttpConnectionParams.setStaleCheckingEnabled(params, true);
+    ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(
+        MAX_CONNECTIONS_PER_HOST));
+    ConnManagerParams.setTimeout(params, POOL_WAIT_MS);
+
+    SchemeRegistry schemes = new SchemeRegistry();
+    schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(),
+        80));
+    schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(),
+        443));
+
+    m_conn_manager = new CountingConnManager(params, schemes);
+    m_client = new DefaultHttpClient(m_conn_manager, params);
+    m_client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+      private final ConnectionKeepAliveStrategy m_default =
+          new DefaultConnectionKeepAliveStrategy();
+
+      public long getKeepAliveDuration(HttpResponse response,
+          HttpContext context) {
+        long duration = m_default.getKeepAliveDuration(response, context);
+        if (duration < 0 || duration > MAX_KEEP_ALIVE_MS) {
+          return MAX_KEEP_ALIVE_MS;
+        }
+        return duration;
+      }
+    });
+  }
+
+  public HttpResponse execute(HttpUriRequest request) throws IOException {
+    m_conn_manager.closeExpiredConnections();
+    return m_client.execute(request);
+  }
+
+  public void prewarm(String uri) {
+    HttpHead request = new HttpHead(uri);
+    try {
+      HttpResponse response = execute(request);
+      HttpEntity entity = response.getEntity();
+      if (entity != null) {
+        entity.consumeContent();
+      }
+    } catch (IOException e) {
+      Log.d("DroidMuni", "Couldn't prewarm a connection to " + uri, e);
+      request.abort();
+    } catch (RuntimeException e) {
+      Log.d("DroidMuni", "Couldn't prewarm a connection to " + uri, e);
+      request.abort();
+    }
+  }
+
+  /**
+   * Records whether each connection it hands out was already open.
+   */
+  private static final class CountingConnManager extends
+      ThreadSafeClientConnManager {
+    public CountingConnManager(HttpParams params, SchemeRegistry schemes) {
+      super(params, schemes);
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(final HttpRoute route,
+        final Object state) {
+      final ClientConnectionRequest request =
+          super.requestConnection(route, state);
+      return new ClientConnectionRequest() {
+        public ManagedClientConnection getConnection(long timeout,
+            TimeUnit tunit) throws InterruptedException,
+            ConnectionPoolTimeoutException {
+          ManagedClientConnection connection =
+              request.getConnection(timeout, tunit);
+          HttpHost target = route.getTargetHost();
+          if (connection.isOpen()) {
+            Stats.increment("pool.hits");
+            Stats.increment("pool.hits." + target.getHostName());
+          } else {
+            Stats.increment("pool.misses");
+            Stats.increment("pool.misses." + target.getHostName());
+          }
+          return connection;
+        }
+
+        public void abortRequest() {
+          request.abortRequest();
+        }
+      };
+    }
+  }
+}
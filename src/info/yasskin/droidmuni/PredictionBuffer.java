@@ -0,0 +1,330 @@
+package info.yasskin.droidmuni;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds predictions as parallel primitive arrays instead of one object per
+ * prediction. Route and direction tags are stored as Globals.SYMBOLS ids;
+ * the rare tag that doesn't fit in the symbol table gets a negative id local
+ * to this buffer. Stop tags are kept as plain Strings, since there are
+ * thousands of them and they'd crowd the routes out of the symbol table.
+ *
+ * Rows are grouped into runs that are each sorted by time. NextBus lists each
+ * <direction>'s predictions in time order, so the parser starts a run per
+ * direction, and mergeOrder() produces the overall order with a k-way merge
+ * instead of a full sort.
+ *
+ * Not thread-safe. Once a buffer is published, for example in a
+ * PredictionCache.Result, nobody may modify it.
+ */
+final class PredictionBuffer {
+  private static final int NULL_SYMBOL = Integer.MIN_VALUE;
+
+  private long[] m_times;
+  private boolean[] m_departures;
+  private int[] m_routes;
+  private int[] m_directions;
+  private String[] m_stops;
+  private int m_size = 0;
+
+  private int[] m_run_starts = new int[8];
+  private int m_run_count = 0;
+
+  /**
+   * Tags that didn't fit in Globals.SYMBOLS. Local id -2 is index 0, -3 is
+   * index 1, and so on.
+   */
+  private final List<String> m_local_symbols = new ArrayList<String>();
+
+  public PredictionBuffer() {
+    this(16);
+  }
+
+  public PredictionBuffer(int capacity) {
+    capacity = Math.max(1, capacity);
+    m_times = new long[capacity];
+    m_departures = new boolean[capacity];
+    m_routes = new int[capacity];
+    m_directions = new int[capacity];
+    m_stops = new String[capacity];
+  }
+
+  /**
+   * Empties the buffer but keeps its arrays for the next document.
+   */
+  public void reset() {
+    Arrays.fill(m_stops, 0, m_size, null);
+    m_size = 0;
+    m_run_count = 0;
+    m_local_symbols.clear();
+  }
+
+  public int size() {
+    return m_size;
+  }
+
+  public int runCount() {
+    return m_run_count;
+  }
+
+  /**
+   * Makes the next add() begin a new sorted run.
+   */
+  public void startRun() {
+    if (m_run_count > 0 && m_run_starts[m_run_count - 1] == m_size) {
+      // The current run is still empty.
+      return;
+    }
+    if (m_run_count == m_run_starts.length) {
+      m_run_starts = grow(m_run_starts, m_run_count * 2);
+    }
+    m_run_starts[m_run_count++] = m_size;
+  }
+
+  public void add(long predicted_time, boolean is_departure, String route_tag,
+      String direction_tag, String stop_tag) {
+    add(predicted_time, is_departure, symbolId(route_tag),
+        symbolId(direction_tag), stop_tag);
+  }
+
+  /**
+   * Like add() above, but takes the route and direction tags as ids from
+   * this buffer's symbolId(), for callers that already looked them up.
+   */
+  public void add(long predicted_time, boolean is_departure, int route_id,
+      int direction_id, String stop_tag) {
+    if (m_run_count == 0
+        || (m_size > m_run_starts[m_run_count - 1]
+            && predicted_time < m_times[m_size - 1])) {
+      // Keep every run sorted even if NextBus ever isn't.
+      startRun();
+    }
+    if (m_size == m_times.length) {
+      final int capacity = m_size * 2;
+      m_times = grow(m_times, capacity);
+      m_departures = grow(m_departures, capacity);
+      m_routes = grow(m_routes, capacity);
+      m_directions = grow(m_directions, capacity);
+      m_stops = grow(m_stops, capacity);
+    }
+    m_times[m_size] = predicted_time;
+    m_departures[m_size] = is_departure;
+    m_routes[m_size] = route_id;
+    m_directions[m_size] = direction_id;
+    m_stops[m_size] = stop_tag;
+    m_size++;
+  }
+
+  /**
+   * Appends row 'i' of 'other' to this buffer.
+   */
+  private void addRow(PredictionBuffer other, int i) {
+    add(other.m_times[i], other.m_departures[i],
+        copySymbol(other, other.m_routes[i]),
+        copySymbol(other, other.m_directions[i]), other.m_stops[i]);
+  }
+
+  /**
+   * @return This buffer's id for the tag that 'other' calls 'id'. Only ids
+   *         local to 'other' need looking up again.
+   */
+  private int copySymbol(PredictionBuffer other, int id) {
+    if (id >= 0 || id == NULL_SYMBOL) {
+      return id;
+    }
+    return symbolId(other.symbol(id));
+  }
+
+  /**
+   * Appends all of 'other''s rows, keeping its runs as separate runs.
+   */
+  public void addRuns(PredictionBuffer other) {
+    for (int run = 0; run < other.m_run_count; run++) {
+      startRun();
+      final int end = other.runEnd(run);
+      for (int i = other.m_run_starts[run]; i < end; i++) {
+        addRow(other, i);
+      }
+    }
+  }
+
+  /**
+   * @return A new buffer holding this buffer's rows in mergeOrder(), as a
+   *         single run.
+   */
+  public PredictionBuffer sortedCopy() {
+    final int[] order = mergeOrder();
+    PredictionBuffer result = new PredictionBuffer(m_size);
+    result.startRun();
+    for (int i : order) {
+      result.addRow(this, i);
+    }
+    return result;
+  }
+
+  /**
+   * @return The row indices ordered by predicted time, then route tag, then
+   *         direction tag, found by k-way merging the runs.
+   */
+  public int[] mergeOrder() {
+    final int[] order = new int[m_size];
+    if (m_run_count == 1) {
+      for (int i = 0; i < m_size; i++) {
+        order[i] = i;
+      }
+      return order;
+    }
+    // heap[] holds run numbers, and next[run] is the run's next unmerged row.
+    final int[] next = new int[m_run_count];
+    final int[] heap = new int[m_run_count];
+    int heap_size = 0;
+    for (int run = 0; run < m_run_count; run++) {
+      next[run] = m_run_starts[run];
+      if (next[run] < runEnd(run)) {
+        heap[heap_size++] = run;
+      }
+    }
+    for (int i = heap_size / 2 - 1; i >= 0; i--) {
+      siftDown(heap, heap_size, i, next);
+    }
+    int out = 0;
+    while (heap_size > 0) {
+      final int run = heap[0];
+      order[out++] = next[run]++;
+      if (next[run] == runEnd(run)) {
+        heap[0] = heap[--heap_size];
+      }
+      siftDown(heap, heap_size, 0, next);
+    }
+    return order;
+  }
+
+  private void siftDown(int[] heap, int heap_size, int i, int[] next) {
+    while (true) {
+      int smallest = i;
+      final int left = 2 * i + 1;
+      final int right = left + 1;
+      if (left < heap_size
+          && compareRows(next[heap[left]], next[heap[smallest]]) < 0) {
+        smallest = left;
+      }
+      if (right < heap_size
+          && compareRows(next[heap[right]], next[heap[smallest]]) < 0) {
+        smallest = right;
+      }
+      if (smallest == i) {
+        return;
+      }
+      final int tmp = heap[i];
+      heap[i] = heap[smallest];
+      heap[smallest] = tmp;
+      i = smallest;
+    }
+  }
+
+  private int compareRows(int a, int b) {
+    if (m_times[a] != m_times[b]) {
+      return m_times[a] < m_times[b] ? -1 : 1;
+    }
+    if (m_routes[a] != m_routes[b]) {
+      final int cmp = compareTags(routeTag(a), routeTag(b));
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    if (m_directions[a] == m_directions[b]) {
+      return 0;
+    }
+    return compareTags(directionTag(a), directionTag(b));
+  }
+
+  private static int compareTags(String a, String b) {
+    if (a == null || b == null) {
+      return a == b ? 0 : (a == null ? -1 : 1);
+    }
+    return a.compareTo(b);
+  }
+
+  private int runEnd(int run) {
+    return run + 1 < m_run_count ? m_run_starts[run + 1] : m_size;
+  }
+
+  public long predictedTime(int i) {
+    return m_times[i];
+  }
+
+  public boolean isDeparture(int i) {
+    return m_departures[i];
+  }
+
+  public String routeTag(int i) {
+    return symbol(m_routes[i]);
+  }
+
+  public String directionTag(int i) {
+    return symbol(m_directions[i]);
+  }
+
+  public String stopTag(int i) {
+    return m_stops[i];
+  }
+
+  /**
+   * @return The id add() takes for 'value', which may be null. It's only
+   *         meaningful to this buffer, until its next reset().
+   */
+  public int symbolId(String value) {
+    if (value == null) {
+      return NULL_SYMBOL;
+    }
+    final int id = Globals.SYMBOLS.id(value);
+    if (id != SymbolTable.NO_ID) {
+      return id;
+    }
+    int local = m_local_symbols.indexOf(value);
+    if (local == -1) {
+      local = m_local_symbols.size();
+      m_local_symbols.add(value);
+    }
+    return -2 - local;
+  }
+
+  /**
+   * @return The tag whose id is 'id'.
+   */
+  public String symbol(int id) {
+    if (id == NULL_SYMBOL) {
+      return null;
+    }
+    if (id >= 0) {
+      return Globals.SYMBOLS.symbol(id);
+    }
+    return m_local_symbols.get(-2 - id);
+  }
+
+  private static long[] grow(long[] array, int capacity) {
+    long[] result = new long[capacity];
+    System.arraycopy(array, 0, result, 0, array.length);
+    return result;
+  }
+
+  private static int[] grow(int[] array, int capacity) {
+    int[] result = new int[capacity];
+    System.arraycopy(array, 0, result, 0, array.length);
+    return result;
+  }
+
+  private static String[] grow(String[] array, int capacity) {
+    String[] result = new String[capacity];
+    System.arraycopy(array, 0, result, 0, array.length);
+    return result;
+  }
+
+  private static boolean[] grow(boolean[] array, int capacity) {
+    boolean[] result = new boolean[capacity];
+    System.arraycopy(array, 0, result, 0, array.length);
+    return result;
+  }
+}
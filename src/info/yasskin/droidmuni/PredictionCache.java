@@ -0,0 +1,173 @@
+package info.yasskin.droidmuni;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Shares prediction fetches between callers. Concurrent requests for the same
+ * key wait for a single in-flight fetch instead of each sending their own, and
+ * a successful result is reused for a few seconds afterward. Older results
+ * are kept a while longer so callers can fall back to them when a fetch
+ * fails.
+ *
+ * Keys are NextBus request URIs, so each stop (and, in general, each distinct
+ * request) gets its own entry.
+ */
+final class PredictionCache {
+  /**
+   * An immutable parse result that any number of callers can read at once.
+   */
+  static final class Result {
+    /**
+     * Copies 'predictions', so the parser that produced them can be reused.
+     */
+    Result(PredictionBuffer predictions,
+        Map<String, String> direction_tag2title, long fetched_ms) {
+      this.predictions = predictions.sortedCopy();
+      this.direction_tag2title =
+          Collections.unmodifiableMap(new HashMap<String, String>(
+              direction_tag2title));
+      this.fetched_ms = fetched_ms;
+    }
+
+    /**
+     * A single run, sorted by PredictionBuffer.mergeOrder(). Don't modify it.
+     */
+    public final PredictionBuffer predictions;
+    public final Map<String, String> direction_tag2title;
+    /**
+     * System.currentTimeMillis() when the fetch finished.
+     */
+    public final long fetched_ms;
+  }
+
+  /**
+   * Performs the actual request.
+   */
+  interface Fetcher {
+    /**
+     * @return The fetched result, or null if the fetch failed.
+     */
+    Result fetch();
+  }
+
+  private final long m_ttl_ms;
+  private final long m_max_stale_ms;
+  // Both maps are guarded by this.
+  private final Map<String, FutureTask<Result>> m_in_flight =
+      new HashMap<String, FutureTask<Result>>();
+  private final Map<String, Result> m_results = new HashMap<String, Result>();
+
+  /**
+   * @param ttl_ms
+   *          How long a successful result is reused. 0 disables the cache but
+   *          keeps coalescing concurrent requests.
+   * @param max_stale_ms
+   *          How long a result stays available to getStale().
+   */
+  public PredictionCache(long ttl_ms, long max_stale_ms) {
+    m_ttl_ms = ttl_ms;
+    m_max_stale_ms = Math.max(ttl_ms, max_stale_ms);
+  }
+
+  /**
+   * Returns a fresh cached result for 'key' if there is one, otherwise waits
+   * for an in-flight fetch for 'key', otherwise runs 'fetcher' in this thread.
+   *
+   * @return The result, or null if the fetch failed or this thread was
+   *         interrupted.
+   */
+  public Result get(String key, final Fetcher fetcher) {
+    final FutureTask<Result> task;
+    final boolean owner;
+    synchronized (this) {
+      Result cached = m_results.get(key);
+      if (cached != null && isFresh(cached, System.currentTimeMillis())) {
+        Stats.increment("predictions.cache_hits");
+        return cached;
+      }
+      FutureTask<Result> in_flight = m_in_flight.get(key);
+      if (in_flight != null) {
+        Stats.increment("predictions.coalesced");
+        task = in_flight;
+        owner = false;
+      } else {
+        task = new FutureTask<Result>(new Callable<Result>() {
+          public Result call() {
+            return fetcher.fetch();
+          }
+        });
+        m_in_flight.put(key, task);
+        owner = true;
+      }
+    }
+
+    if (owner) {
+      Stats.increment("predictions.fetches");
+      task.run();
+    }
+    Result result;
+    try {
+      result = task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      if (owner) {
+        finish(key, null);
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+    if (owner) {
+      finish(key, result);
+    }
+    return result;
+  }
+
+  /**
+   * @return The last successful result for 'key', however old, as long as it
+   *         was fetched within max_stale_ms. Otherwise null.
+   */
+  public synchronized Result getStale(String key) {
+    Result result = m_results.get(key);
+    if (result == null
+        || System.currentTimeMillis() - result.fetched_ms >= m_max_stale_ms) {
+      return null;
+    }
+    return result;
+  }
+
+  private boolean isFresh(Result result, long now) {
+    return now - result.fetched_ms < m_ttl_ms;
+  }
+
+  /**
+   * Publishes 'result' for 'key' and retires the in-flight fetch. Callers that
+   * joined the fetch before this still get its result from the FutureTask.
+   */
+  private synchronized void finish(String key, Result result) {
+    m_in_flight.remove(key);
+    if (result == null || m_max_stale_ms <= 0) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    for (Iterator<Result> it = m_results.values().iterator(); it.hasNext();) {
+      if (now - it.next().fetched_ms >= m_max_stale_ms) {
+        it.remove();
+      }
+    }
+    m_results.put(key, result);
+  }
+}
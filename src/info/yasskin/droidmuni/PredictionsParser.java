@@ -1,9 +1,7 @@
 package info.yasskin.droidmuni;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -14,7 +12,10 @@ import org.xmlpull.v1.XmlPullParserException;
  * ?command=predictionsForMultiStops&a=sf-muni&stops=38||6648&stops=6||6648
  */
 public class PredictionsParser extends Parser {
-  public List<Db.Prediction> getPredictions() {
+  /**
+   * Each <direction> block is one sorted run of the buffer.
+   */
+  public PredictionBuffer getPredictions() {
     return predictions;
   }
 
@@ -22,11 +23,17 @@ public class PredictionsParser extends Parser {
     return direction_tag2title;
   }
 
-  private final List<Db.Prediction> predictions =
-      new ArrayList<Db.Prediction>();
+  private final PredictionBuffer predictions = new PredictionBuffer();
   private final HashMap<String, String> direction_tag2title =
       new HashMap<String, String>();
 
+  @Override
+  void reset() {
+    super.reset();
+    predictions.reset();
+    direction_tag2title.clear();
+  }
+
   @Override
   protected void parseBody() throws XmlPullParserException, IOException {
     parser.require(XmlPullParser.START_TAG, null, "body");
@@ -58,9 +65,12 @@ public class PredictionsParser extends Parser {
     String no_predictions_title =
         parser.getAttributeValue(null, "dirTitleBecauseNoPredictions");
     if (no_predictions_title == null) {
-      final String route_tag = parser.getAttributeValue(null, "routeTag");
+      // Look the route tag up once and hand the buffer its id. Stop tags
+      // stay out of the symbol table; see PredictionBuffer.
+      final int route_id = predictions.symbolId(getAttr("routeTag"));
+      final String stop_tag = getAttr("stopTag");
       while (parser.nextTag() == XmlPullParser.START_TAG) {
-        if (parseDirection(route_tag)) {
+        if (parseDirection(route_id, stop_tag)) {
         } else {
           skipToEndOfTag();
         }
@@ -77,24 +87,23 @@ public class PredictionsParser extends Parser {
    * 
    * @return true if we successfully parsed a <direction> tag.
    */
-  private boolean parseDirection(final String route_tag)
+  private boolean parseDirection(final int route_id, final String stop_tag)
       throws XmlPullParserException, IOException {
     if (XmlPullParser.START_TAG != parser.getEventType()
         || !"direction".equals(parser.getName())) {
       return false;
     }
     parser.require(XmlPullParser.START_TAG, null, "direction");
-    String direction_title = getAttr("title");
+    String direction_title = getSymbolAttr("title");
+    predictions.startRun();
     while (parser.nextTag() != XmlPullParser.END_TAG) {
       parser.require(XmlPullParser.START_TAG, null, "prediction");
-      long epochTime = Long.parseLong(getAttr("epochTime"), 10);
-      boolean isDeparture = Boolean.parseBoolean(getAttr("isDeparture"));
-      String dirTag = getAttr("dirTag");
-      String block = getAttr("block");
-      predictions.add(new Db.Prediction(route_tag, epochTime, isDeparture,
-          dirTag, block));
+      long epochTime = getLongAttr("epochTime");
+      boolean isDeparture = getBooleanAttr("isDeparture");
+      final int dir_id = predictions.symbolId(getAttr("dirTag"));
+      predictions.add(epochTime, isDeparture, route_id, dir_id, stop_tag);
       // Record the names of the direction tags too.
-      direction_tag2title.put(dirTag, direction_title);
+      direction_tag2title.put(predictions.symbol(dir_id), direction_title);
       parser.nextText();
     }
     parser.require(XmlPullParser.END_TAG, null, "direction");
@@ -0,0 +1,180 @@
+package info.yasskin.droidmuni;
+
+/**
+ * A token-bucket budget shared by every request we send to NextBus, which
+ * limits how much each client may download. One bucket counts requests and
+ * another counts bytes, and both refill steadily over a window.
+ *
+ * Requests draw from the budget through a lane. Lower-priority lanes leave a
+ * reserve in both buckets for the lanes above them, so when the budget runs
+ * low, background refreshes stop first and the prediction the user is looking
+ * at goes out last.
+ *
+ * Thread-safe.
+ */
+public class RequestBudget {
+  public enum Lane {
+    /** Predictions the user is waiting on. May use the whole budget. */
+    FOREGROUND(0.0),
+    /** Route data the user asked for, like a route's stops. */
+    USER(0.25),
+    /**
+     * Refreshes nobody is waiting on, and speculative requests like hedges.
+     * These are dropped rather than delayed when the budget is tight.
+     */
+    BACKGROUND(0.5);
+
+    Lane(double reserve_fraction) {
+      this.reserve_fraction = reserve_fraction;
+    }
+
+    /**
+     * The fraction of each bucket this lane must leave for higher lanes.
+     */
+    final double reserve_fraction;
+  }
+
+  private final long m_window_ms;
+  private final double m_max_requests;
+  private final double m_max_bytes;
+
+  // All guarded by this.
+  private double m_requests;
+  private double m_bytes;
+  private long m_last_refill_ms;
+
+  /**
+   * @param window_ms
+   *          How long an empty bucket takes to refill completely.
+   * @param max_requests
+   *          How many requests fit in one window.
+   * @param max_bytes
+   *          How many response bytes fit in one window.
+   */
+  public RequestBudget(long window_ms, long max_requests, long max_bytes) {
+    m_window_ms = window_ms;
+    m_max_requests = max_requests;
+    m_max_bytes = max_bytes;
+    m_requests = max_requests;
+    m_bytes = max_bytes;
+    m_last_refill_ms = now();
+  }
+
+  /**
+   * Overridden by tests.
+   */
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Takes one request from the budget for 'lane' without waiting.
+   *
+   * @return Whether the request may be sent.
+   */
+  public synchronized boolean tryAcquire(Lane lane) {
+    refill();
+    if (m_requests - 1 < m_max_requests * lane.reserve_fraction
+        || m_bytes <= m_max_bytes * lane.reserve_fraction) {
+      Stats.increment("budget.denied." + lane.name().toLowerCase());
+      publish();
+      return false;
+    }
+    m_requests -= 1;
+    Stats.increment("budget.granted." + lane.name().toLowerCase());
+    publish();
+    return true;
+  }
+
+  /**
+   * Takes one request from the budget for 'lane'. FOREGROUND and USER requests
+   * wait for the budget to refill, up to 'deadline'. BACKGROUND requests never
+   * wait.
+   *
+   * @return Whether the request may be sent.
+   */
+  public boolean acquire(Lane lane, Deadline deadline) {
+    while (!tryAcquire(lane)) {
+      if (lane == Lane.BACKGROUND) {
+        return false;
+      }
+      final long wait_ms =
+          Math.min(msUntilAvailable(lane), deadline.remainingMs());
+      if (wait_ms <= 0) {
+        return false;
+      }
+      try {
+        Thread.sleep(wait_ms);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gives back a request taken by tryAcquire() or acquire() that turned out
+   * not to be needed.
+   */
+  public synchronized void release() {
+    refill();
+    m_requests = Math.min(m_max_requests, m_requests + 1);
+    publish();
+  }
+
+  /**
+   * Charges 'bytes' of response body to the budget. We only know a
+   * response's size after reading it, so this can drive the bucket negative,
+   * which holds off later requests until it refills.
+   */
+  public synchronized void recordBytes(long bytes) {
+    refill();
+    m_bytes -= bytes;
+    publish();
+  }
+
+  /**
+   * @return How many milliseconds until 'lane' could get a request through,
+   *         assuming nobody else draws from the budget first.
+   */
+  private synchronized long msUntilAvailable(Lane lane) {
+    refill();
+    final double requests_needed =
+        m_max_requests * lane.reserve_fraction + 1 - m_requests;
+    final double bytes_needed =
+        m_max_bytes * lane.reserve_fraction - m_bytes;
+    final double windows_needed =
+        Math.max(requests_needed / m_max_requests, bytes_needed / m_max_bytes);
+    // Round up so we don't wake just before the token arrives.
+    return Math.max(1, (long) Math.ceil(windows_needed * m_window_ms));
+  }
+
+  private void refill() {
+    final long now = now();
+    final long elapsed_ms = now - m_last_refill_ms;
+    if (elapsed_ms <= 0) {
+      return;
+    }
+    m_last_refill_ms = now;
+    final double windows = (double) elapsed_ms / m_window_ms;
+    m_requests =
+        Math.min(m_max_requests, m_requests + windows * m_max_requests);
+    m_bytes = Math.min(m_max_bytes, m_bytes + windows * m_max_bytes);
+  }
+
+  private void publish() {
+    Stats.set("budget.requests.available", (long) m_requests);
+    Stats.set("budget.bytes.available", (long) m_bytes);
+  }
+
+  public synchronized double getAvailableRequests() {
+    refill();
+    return m_requests;
+  }
+
+  public synchronized double getAvailableBytes() {
+    refill();
+    return m_bytes;
+  }
+}
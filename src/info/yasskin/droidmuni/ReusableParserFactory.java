@@ -0,0 +1,30 @@
+package info.yasskin.droidmuni;
+
+/**
+ * Keeps one parser per thread and resets it for each document, instead of
+ * building a parser, and the XmlPullParser inside it, for every request.
+ * Prediction polling parses the same kind of document over and over on the
+ * same few threads, so this takes the setup off the hot path.
+ */
+abstract class ReusableParserFactory<ParserT extends Parser> implements
+    ParserFactory<ParserT> {
+  private final ThreadLocal<ParserT> m_parsers = new ThreadLocal<ParserT>();
+
+  /**
+   * Builds the parser for a thread that doesn't have one yet.
+   */
+  protected abstract ParserT create();
+
+  public ParserT newParser() {
+    ParserT parser = m_parsers.get();
+    if (parser == null) {
+      parser = create();
+      m_parsers.set(parser);
+      Stats.increment("parsers.created");
+    } else {
+      parser.reset();
+      Stats.increment("parsers.reused");
+    }
+    return parser;
+  }
+}
@@ -12,8 +12,49 @@ import org.xmlpull.v1.XmlPullParserException;
 import android.graphics.Color;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 class RouteConfigParser extends Parser {
+	/**
+	 * Receives a route's stops and directions as they're parsed, so they can be
+	 * stored without first building the whole route in memory. Stops come
+	 * before the directions that refer to them. If parsing fails partway
+	 * through, the sink will have seen only part of the route, and onEnd()
+	 * isn't called.
+	 */
+	interface Sink {
+		void onStart();
+
+		void onStop(Db.Stop stop);
+
+		void onDirectionStart(String tag, String title, String name,
+				boolean useForUI);
+
+		/**
+		 * Called once for each stop of the current direction, in order.
+		 */
+		void onDirectionStop(int stop_tag, int stop_id);
+
+		void onDirectionEnd();
+
+		void onEnd();
+	}
+
+	/**
+	 * Collects the route into getStops() and getDirections().
+	 */
+	RouteConfigParser() {
+		this.sink = new CollectingSink();
+	}
+
+	/**
+	 * Streams the route into 'sink' instead. getStops() and getDirections()
+	 * stay empty.
+	 */
+	RouteConfigParser(Sink sink) {
+		this.sink = sink;
+	}
+
 	public String getTag() {
 		return tag;
 	}
@@ -56,6 +97,64 @@ class RouteConfigParser extends Parser {
 	private int oppositeColor;
 	private final SparseArray<Db.Stop> stops = new SparseArray<Db.Stop>();
 	private final Map<String, Db.Direction> directions = new HashMap<String, Db.Direction>();
+	private final Sink sink;
+	/**
+	 * Maps the tags of the stops seen so far to their ids, so <direction>s can
+	 * refer to them. This is the only per-stop state kept while streaming.
+	 */
+	private final SparseIntArray stop_tag2id = new SparseIntArray();
+
+	@Override
+	void reset() {
+		super.reset();
+		tag = null;
+		routeCode = null;
+		title = null;
+		shortTitle = null;
+		color = 0;
+		oppositeColor = 0;
+		stops.clear();
+		directions.clear();
+		stop_tag2id.clear();
+	}
+
+	private class CollectingSink implements Sink {
+		private String direction_tag;
+		private String direction_title;
+		private String direction_name;
+		private boolean direction_use_for_ui;
+		private List<Db.Stop> direction_stops;
+
+		public void onStart() {
+		}
+
+		public void onStop(Db.Stop stop) {
+			stops.put(stop.tag, stop);
+		}
+
+		public void onDirectionStart(String tag, String title, String name,
+				boolean useForUI) {
+			direction_tag = tag;
+			direction_title = title;
+			direction_name = name;
+			direction_use_for_ui = useForUI;
+			direction_stops = new ArrayList<Db.Stop>();
+		}
+
+		public void onDirectionStop(int stop_tag, int stop_id) {
+			direction_stops.add(stops.get(stop_tag));
+		}
+
+		public void onDirectionEnd() {
+			directions.put(direction_tag, new Db.Direction(directions.size(),
+					direction_tag, direction_title, direction_name,
+					direction_use_for_ui, direction_stops));
+			direction_stops = null;
+		}
+
+		public void onEnd() {
+		}
+	}
 
 	private int parseColorDefault(String color, int defalt) {
 		if (color == null) {
@@ -83,7 +182,7 @@ class RouteConfigParser extends Parser {
 
 		parser.nextTag();
 		parser.require(XmlPullParser.START_TAG, null, "route");
-		this.tag = getAttr("tag");
+		this.tag = getSymbolAttr("tag");
 		this.routeCode = getAttr("routeCode");
 		this.title = getAttr("title");
 		this.shortTitle = getAttr("shortTitle");
@@ -91,6 +190,7 @@ class RouteConfigParser extends Parser {
 		this.oppositeColor = parseColorDefault(getAttr("oppositeColor"),
 				Color.WHITE);
 
+		sink.onStart();
 		while (true) {
 			parser.nextTag();
 			if (parser.getEventType() == XmlPullParser.END_TAG) {
@@ -112,29 +212,31 @@ class RouteConfigParser extends Parser {
 			}
 		}
 
+		sink.onEnd();
 		result_state = ResultState.SUCCESS;
 	}
 
 	private void parseStop() throws XmlPullParserException, IOException {
 		parser.require(XmlPullParser.START_TAG, null, "stop");
 
-                int tag = Integer.parseInt(getAttr("tag"), 10);
-                int id = Integer.parseInt(getAttr("stopId"), 10);
+		int tag = getIntAttr("tag");
+		int id = getIntAttr("stopId");
 		String title = getAttr("title");
-		double lat = Double.parseDouble(getAttr("lat"));
-		double lon = Double.parseDouble(getAttr("lon"));
-		stops.put(tag, new Db.Stop(id, tag, title, lat, lon));
+		double lat = (double) getE7Attr("lat") / AttributeDecoder.E7;
+		double lon = (double) getE7Attr("lon") / AttributeDecoder.E7;
+		stop_tag2id.put(tag, id);
+		sink.onStop(new Db.Stop(id, tag, title, lat, lon));
 		skipToEndOfTag();
 	}
 
 	private void parseDirection() throws XmlPullParserException, IOException {
 		parser.require(XmlPullParser.START_TAG, null, "direction");
 
-		final String tag = getAttr("tag");
-		final String title = getAttr("title");
-		final String name = getAttr("name");
-		final boolean useForUI = Boolean.parseBoolean(getAttr("useForUI"));
-		final List<Db.Stop> stops = new ArrayList<Db.Stop>();
+		final String tag = getSymbolAttr("tag");
+		final String title = getSymbolAttr("title");
+		final String name = getSymbolAttr("name");
+		final boolean useForUI = getBooleanAttr("useForUI");
+		sink.onDirectionStart(tag, title, name, useForUI);
 
 		final int original_depth = parser.getDepth();
 		while (true) {
@@ -150,23 +252,24 @@ class RouteConfigParser extends Parser {
 				continue;
 			}
 
-			Db.Stop stop;
+			int stop_tag;
+			int stop_id;
 			try {
-				int stop_id = Integer.parseInt(getAttr("tag"), 10);
-				stop = this.stops.get(stop_id);
+				stop_tag = getIntAttr("tag");
+				stop_id = stop_tag2id.get(stop_tag, -1);
 			} catch (NumberFormatException e) {
-				stop = null;
+				stop_tag = -1;
+				stop_id = -1;
 			}
-			if (stop == null) {
+			if (stop_id == -1) {
 				Log.w("DroidMuni", "Skipping unrecognized stop tag: "
 						+ getAttr("tag"));
 			} else {
-				stops.add(stop);
+				sink.onDirectionStop(stop_tag, stop_id);
 			}
 			skipToEndOfTag();
 		}
 
-		this.directions.put(tag, new Db.Direction(this.directions.size(), tag,
-				title, name, useForUI, stops));
+		sink.onDirectionEnd();
 	}
 }
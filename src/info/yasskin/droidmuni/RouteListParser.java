@@ -20,7 +20,14 @@ class RouteListParser extends Parser {
     return routes;
   }
 
-  private Map<String, Db.Route> routes = new HashMap<String, Db.Route>();
+  private final Map<String, Db.Route> routes =
+      new HashMap<String, Db.Route>();
+
+  @Override
+  void reset() {
+    super.reset();
+    routes.clear();
+  }
 
   @Override
   protected void parseBody() throws XmlPullParserException, IOException {
@@ -39,8 +46,8 @@ class RouteListParser extends Parser {
         continue;
       }
       parser.require(XmlPullParser.START_TAG, null, "route");
-      String tag = getAttr("tag");
-      String title = getAttr("title");
+      String tag = getSymbolAttr("tag");
+      String title = getSymbolAttr("title");
 
       Db.Route route = new Db.Route(-1, upstream_index, tag, title, 0);
       routes.put(route.tag, route);
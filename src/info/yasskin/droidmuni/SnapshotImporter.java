@@ -0,0 +1,164 @@
+package info.yasskin.droidmuni;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.content.res.AssetManager;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Fills an empty Db from the catalog snapshot packaged under
+ * assets/catalog-snapshot, so a fresh install can show routes, directions,
+ * and stops before it has talked to NextBus.
+ *
+ * The snapshot is the NextBus responses themselves: routeList.xml, plus
+ * routeConfig-N.xml for the route at position N of the list. Run
+ * "ant catalog-snapshot" (tools/fetch-catalog-snapshot.sh) to record it.
+ * "ant release" runs it and fails without it; a debug build without it just
+ * skips the import.
+ */
+final class SnapshotImporter {
+  static final String ASSET_DIRECTORY = "catalog-snapshot";
+
+  /**
+   * Where the snapshot's documents come from. Tests supply their own.
+   */
+  interface Source {
+    /**
+     * @throws FileNotFoundException
+     *           if the snapshot doesn't have 'name'.
+     */
+    InputStream open(String name) throws IOException;
+  }
+
+  private SnapshotImporter() {
+  }
+
+  static Source fromAssets(final AssetManager assets) {
+    return new Source() {
+      public InputStream open(String name) throws IOException {
+        return assets.open(ASSET_DIRECTORY + "/" + name);
+      }
+    };
+  }
+
+  /**
+   * @return true if the APK packages a snapshot. Only reads the APK's
+   *         directory, so it's cheap enough for the main thread.
+   */
+  static boolean isPackaged(AssetManager assets) {
+    try {
+      final String[] names = assets.list(ASSET_DIRECTORY);
+      return names != null && names.length > 0;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  static String routeConfigName(int upstream_index) {
+    return "routeConfig-" + upstream_index + ".xml";
+  }
+
+  /**
+   * Imports the snapshot into 'db' in one transaction, if 'db' has no routes
+   * yet. Everything is marked as updated at 'updated_ms', so passing a time
+   * a little over a day ago makes the usual background refreshes replace it
+   * without making anyone wait for them.
+   *
+   * @return true if the snapshot was imported.
+   */
+  public static boolean importIfEmpty(Db db, Source source, long updated_ms) {
+    if (db.hasRoutes()) {
+      return false;
+    }
+    final long start_ns = System.nanoTime();
+    final RouteListParser route_list = new RouteListParser();
+    if (!parse(source, "routeList.xml", route_list)) {
+      return false;
+    }
+    // setRoutes() consumes its argument, and we still need the list.
+    final Map<String, Db.Route> routes =
+        new HashMap<String, Db.Route>(route_list.getRoutes());
+
+    final SQLiteDatabase tables = db.getWritableDatabase();
+    int route_configs = 0;
+    tables.beginTransaction();
+    try {
+      if (db.hasRoutes()) {
+        // Someone else filled it first.
+        return false;
+      }
+      db.setRoutes(route_list.getRoutes());
+      db.touchRoutes(updated_ms);
+      for (Db.Route listed : routes.values()) {
+        final Db.Route route = db.getRoute(listed.tag);
+        final Db.RouteWriter writer = db.newRouteWriter(tables, route.id);
+        final boolean parsed;
+        try {
+          parsed =
+              parse(source, routeConfigName(listed.upstream_index),
+                  new RouteConfigParser(writer));
+        } finally {
+          writer.close();
+        }
+        if (!parsed) {
+          // Leave it for fillDbForRoute(). Whatever part of the route got
+          // written stays, but its last_direction_update_ms is still 0, so
+          // the first look at the route fetches it again.
+          continue;
+        }
+        ContentValues values = new ContentValues(1);
+        values.put("last_direction_update_ms", updated_ms);
+        tables.update("Routes", values, "_id = ?",
+            new String[] { route.id + "" });
+        route_configs++;
+      }
+      tables.setTransactionSuccessful();
+    } finally {
+      tables.endTransaction();
+    }
+    Stats.recordLatency("snapshot.import",
+        (System.nanoTime() - start_ns) / 1000000);
+    Stats.set("snapshot.routes", routes.size());
+    Stats.set("snapshot.route_configs", route_configs);
+    Log.i("DroidMuni", "Imported the catalog snapshot: " + routes.size()
+                       + " routes, " + route_configs + " with stops");
+    return true;
+  }
+
+  /**
+   * @return true if 'name' exists and 'parser' parsed it successfully.
+   */
+  private static boolean parse(Source source, String name, Parser parser) {
+    final InputStream input;
+    try {
+      input = source.open(name);
+    } catch (IOException e) {
+      // FileNotFoundException means this build doesn't have a snapshot.
+      if (!(e instanceof FileNotFoundException)) {
+        Log.w("DroidMuni", "Couldn't open snapshot document " + name, e);
+      }
+      return false;
+    }
+    try {
+      parser.parse(input);
+    } finally {
+      try {
+        input.close();
+      } catch (IOException e) {
+        // Nothing to do about it.
+      }
+    }
+    if (parser.getResult() != Parser.ResultState.SUCCESS) {
+      Log.w("DroidMuni", "Snapshot document " + name + " didn't parse: "
+                         + parser.getResult());
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,65 @@
+package info.yasskin.droidmuni;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Keeps the single-value read statements compiled against one database
+ * handle, so each is prepared once instead of on every call. Statements are
+ * compiled the first time their SQL is used; pass only constant SQL, or the
+ * cache grows without bound.
+ *
+ * SQLiteStatements can't be shared between threads, so every use holds this
+ * object's lock for the statement's bind-and-step.
+ */
+final class StatementCache {
+  private final SQLiteDatabase m_tables;
+  // Guarded by this.
+  private final Map<String, SQLiteStatement> m_statements =
+      new HashMap<String, SQLiteStatement>();
+
+  StatementCache(SQLiteDatabase tables) {
+    m_tables = tables;
+  }
+
+  /**
+   * @return The handle these statements were compiled against.
+   */
+  public SQLiteDatabase getDatabase() {
+    return m_tables;
+  }
+
+  private SQLiteStatement statement(String sql, String[] args) {
+    SQLiteStatement statement = m_statements.get(sql);
+    if (statement == null) {
+      Stats.increment("statements.compiled");
+      statement = m_tables.compileStatement(sql);
+      m_statements.put(sql, statement);
+    }
+    statement.clearBindings();
+    for (int i = 0; i < args.length; i++) {
+      statement.bindString(i + 1, args[i]);
+    }
+    return statement;
+  }
+
+  /**
+   * @return The first column of the first row 'sql' returns.
+   * @throws SQLiteDoneException
+   *           if it returns no rows.
+   */
+  public synchronized long longForQuery(String sql, String... args) {
+    return statement(sql, args).simpleQueryForLong();
+  }
+
+  public synchronized void close() {
+    for (SQLiteStatement statement : m_statements.values()) {
+      statement.close();
+    }
+    m_statements.clear();
+  }
+}
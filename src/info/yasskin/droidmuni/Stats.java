@@ -0,0 +1,115 @@
+package info.yasskin.droidmuni;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+/**
+ * Process-wide named counters describing how the provider talks to NextBus.
+ * Names are dotted paths like "pool.hits" or "bytes.compressed.predictions".
+ * NextMuniProvider exposes a snapshot of these through STATS_URI so they can be
+ * inspected while debugging.
+ */
+final class Stats {
+  private static final ConcurrentMap<String, AtomicLong> s_counters =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private static final ConcurrentMap<String, LatencyHistogram> s_histograms =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+
+  private Stats() {
+  }
+
+  private static AtomicLong counter(String name) {
+    AtomicLong counter = s_counters.get(name);
+    if (counter == null) {
+      AtomicLong new_counter = new AtomicLong();
+      counter = s_counters.putIfAbsent(name, new_counter);
+      if (counter == null) {
+        counter = new_counter;
+      }
+    }
+    return counter;
+  }
+
+  public static void increment(String name) {
+    counter(name).incrementAndGet();
+  }
+
+  public static void add(String name, long delta) {
+    counter(name).addAndGet(delta);
+  }
+
+  /**
+   * Overwrites the named value. Use this for gauges, like a current state,
+   * rather than for counts.
+   */
+  public static void set(String name, long value) {
+    counter(name).set(value);
+  }
+
+  public static long get(String name) {
+    AtomicLong counter = s_counters.get(name);
+    return counter == null ? 0 : counter.get();
+  }
+
+  /**
+   * @return The named histogram, which is created empty if it doesn't exist
+   *         yet.
+   */
+  public static LatencyHistogram histogram(String name) {
+    LatencyHistogram histogram = s_histograms.get(name);
+    if (histogram == null) {
+      LatencyHistogram new_histogram = new LatencyHistogram();
+      histogram = s_histograms.putIfAbsent(name, new_histogram);
+      if (histogram == null) {
+        histogram = new_histogram;
+      }
+    }
+    return histogram;
+  }
+
+  public static void recordLatency(String name, long latency_ms) {
+    histogram(name).record(latency_ms);
+  }
+
+  /**
+   * @return A cursor with columns _id, name, and value, sorted by name.
+   *         Histograms contribute one row per non-empty bucket, named like
+   *         "latency.predictions.le_400ms", plus their p50 and p95.
+   */
+  public static Cursor toCursor() {
+    Map<String, Long> sorted = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : s_counters.entrySet()) {
+      sorted.put(entry.getKey(), entry.getValue().get());
+    }
+    for (Map.Entry<String, LatencyHistogram> entry : s_histograms.entrySet()) {
+      final String name = entry.getKey();
+      final LatencyHistogram histogram = entry.getValue();
+      for (int i = 0; i < LatencyHistogram.bucketCount(); i++) {
+        long count = histogram.count(i);
+        if (count == 0) {
+          continue;
+        }
+        long bound = LatencyHistogram.upperBoundMs(i);
+        String suffix =
+            bound == Long.MAX_VALUE ? ".le_inf" : ".le_" + bound + "ms";
+        sorted.put(name + suffix, count);
+      }
+      sorted.put(name + ".p50", histogram.percentileMs(0.50));
+      sorted.put(name + ".p95", histogram.percentileMs(0.95));
+    }
+    MatrixCursor result =
+        new MatrixCursor(new String[] { "_id", "name", "value" },
+            sorted.size());
+    int id = 0;
+    for (Map.Entry<String, Long> entry : sorted.entrySet()) {
+      result.addRow(new Object[] { id++, entry.getKey(), entry.getValue() });
+    }
+    return result;
+  }
+}
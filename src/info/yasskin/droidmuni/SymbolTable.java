@@ -0,0 +1,86 @@
+package info.yasskin.droidmuni;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Canonicalizes the small set of strings that NextBus documents repeat over
+ * and over: route tags like "38", direction tags like "38___O_F00", and
+ * direction titles. Each distinct string gets one canonical instance and a
+ * small int id, so parsed results share their strings instead of each
+ * holding a copy, and equal symbols compare equal by reference.
+ *
+ * The table never forgets a symbol, so it has a fixed capacity. Once it's
+ * full, new strings are passed through uncanonicalized and get no id.
+ *
+ * Thread-safe, and lookups of known symbols don't lock.
+ */
+final class SymbolTable {
+  /**
+   * Returned by id() for strings that don't fit in the table.
+   */
+  public static final int NO_ID = -1;
+
+  private final ConcurrentMap<String, Integer> m_ids =
+      new ConcurrentHashMap<String, Integer>();
+  /**
+   * m_symbols[i] is written before i is published through m_ids, so anyone
+   * who got i from m_ids sees it.
+   */
+  private final String[] m_symbols;
+  private int m_size = 0; // Guarded by this.
+
+  public SymbolTable(int capacity) {
+    m_symbols = new String[capacity];
+  }
+
+  /**
+   * @return The canonical instance equal to 'value', or 'value' itself if the
+   *         table is full. null stays null.
+   */
+  public String intern(String value) {
+    if (value == null) {
+      return null;
+    }
+    final int id = id(value);
+    return id == NO_ID ? value : m_symbols[id];
+  }
+
+  /**
+   * @return The id of 'value', adding it if it's new, or NO_ID if the table
+   *         is full.
+   */
+  public int id(String value) {
+    Integer id = m_ids.get(value);
+    if (id != null) {
+      // Don't count hits: this runs for every attribute the parsers
+      // canonicalize, and the counter would cost more than the lookup.
+      return id;
+    }
+    synchronized (this) {
+      id = m_ids.get(value);
+      if (id != null) {
+        return id;
+      }
+      if (m_size == m_symbols.length) {
+        Stats.increment("symbols.overflows");
+        return NO_ID;
+      }
+      m_symbols[m_size] = value;
+      m_ids.put(value, m_size);
+      Stats.set("symbols.size", m_size + 1);
+      return m_size++;
+    }
+  }
+
+  /**
+   * @return The symbol whose id is 'id'.
+   */
+  public String symbol(int id) {
+    return m_symbols[id];
+  }
+
+  public synchronized int size() {
+    return m_size;
+  }
+}
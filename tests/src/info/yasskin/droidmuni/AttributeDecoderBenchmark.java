@@ -0,0 +1,74 @@
+package info.yasskin.droidmuni;
+
+import java.util.Locale;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+/**
+ * Times decoding the attributes of a synthetic route catalog's stops, with
+ * AttributeDecoder against the java.lang parsers the route parsers used to
+ * call. Results are logged under "DroidMuni" as
+ * "AttributeDecoderBenchmark <name> <ns/stop>" lines.
+ */
+public class AttributeDecoderBenchmark extends TestCase {
+  private static final int STOPS = 4000;
+  private static final int ITERATIONS = 20;
+
+  private static final String[] TAGS = new String[STOPS];
+  private static final String[] LATS = new String[STOPS];
+  private static final String[] LONS = new String[STOPS];
+  static {
+    for (int i = 0; i < STOPS; i++) {
+      TAGS[i] = Integer.toString(3000 + i);
+      // Spread over San Francisco, with NextBus's 7 significant digits.
+      LATS[i] = String.format(Locale.US, "%.4f", 37.70 + (i % 1000) * 0.0001);
+      LONS[i] = String.format(Locale.US, "%.4f", -122.51 + (i % 1700) * 0.0001);
+    }
+  }
+
+  private static long decode() {
+    long sum = 0;
+    for (int i = 0; i < STOPS; i++) {
+      sum += AttributeDecoder.decodeInt(TAGS[i]);
+      sum += AttributeDecoder.decodeE7(LATS[i]);
+      sum += AttributeDecoder.decodeE7(LONS[i]);
+    }
+    return sum;
+  }
+
+  private static long parse() {
+    long sum = 0;
+    for (int i = 0; i < STOPS; i++) {
+      sum += Integer.parseInt(TAGS[i], 10);
+      sum += Math.round(Double.parseDouble(LATS[i]) * AttributeDecoder.E7);
+      sum += Math.round(Double.parseDouble(LONS[i]) * AttributeDecoder.E7);
+    }
+    return sum;
+  }
+
+  private static void report(String name, long elapsed_ns) {
+    Log.i("DroidMuni", "AttributeDecoderBenchmark " + name + " "
+                       + elapsed_ns / (ITERATIONS * STOPS));
+  }
+
+  public void testBenchmark() {
+    assertEquals(parse(), decode());
+    for (int i = 0; i < ITERATIONS; i++) {
+      decode();
+      parse();
+    }
+
+    long start_ns = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      decode();
+    }
+    report("decoder", System.nanoTime() - start_ns);
+
+    start_ns = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      parse();
+    }
+    report("java_lang", System.nanoTime() - start_ns);
+  }
+}
@@ -0,0 +1,89 @@
+package info.yasskin.droidmuni;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks AttributeDecoder against the java.lang parsers it replaces, over the
+ * forms NextBus sends and some it doesn't.
+ */
+public class AttributeDecoderTest extends TestCase {
+  static final String[] INTEGERS =
+      { "0", "7", "-7", "4015", "16294", "-0", "2147483647", "-2147483648",
+       "1300000000000", "9223372036854775807", "-9223372036854775808",
+       "+12", "007" };
+  static final String[] NOT_INTEGERS =
+      { "", "-", "1.5", "12a", " 12", "99999999999999999999" };
+  static final String[] COORDINATES =
+      { "37.7954", "-122.3967", "-122.5071", "37.79540", "37.7954049",
+       "37.79540499", "37.79540450", "-122.39670051", "0", "-0.0", "180",
+       "-180.0000000", "1.", ".5", "-.5", "37.7954e0", "+37.7954",
+       "-37.00000005", "-0.00000005", "-37.00000006", "-37.000000051",
+       "37.00000005", "0.00000005", "-179.99999999" };
+  static final String[] NOT_COORDINATES =
+      { "", "-", ".", "lat", "NaN", "250", "-250", "180.0000001",
+       "-180.00000001", "999.5", "1.8e3" };
+
+  public void testIntegersMatchJavaLang() {
+    for (String value : INTEGERS) {
+      assertEquals(value, Long.parseLong(value, 10),
+          AttributeDecoder.decodeLong(value));
+    }
+    assertEquals(-2147483648, AttributeDecoder.decodeInt("-2147483648"));
+    assertEquals(4015, AttributeDecoder.decodeInt("4015"));
+  }
+
+  public void testBadIntegersThrow() {
+    for (String value : NOT_INTEGERS) {
+      try {
+        AttributeDecoder.decodeLong(value);
+        fail("Decoded " + value);
+      } catch (NumberFormatException e) {
+        // Expected.
+      }
+    }
+    try {
+      AttributeDecoder.decodeInt("2147483648");
+      fail("Decoded an int that doesn't fit");
+    } catch (NumberFormatException e) {
+      // Expected.
+    }
+    try {
+      AttributeDecoder.decodeInt(null);
+      fail("Decoded null");
+    } catch (NumberFormatException e) {
+      // Expected.
+    }
+  }
+
+  public void testCoordinatesMatchParseDouble() {
+    for (String value : COORDINATES) {
+      final long expected = Math.round(Double.parseDouble(value) * 1e7);
+      assertEquals(value, expected, AttributeDecoder.decodeE7(value));
+    }
+    // Seven places convert back to exactly what parseDouble gives.
+    assertEquals(37.7954,
+        (double) AttributeDecoder.decodeE7("37.7954") / AttributeDecoder.E7);
+    assertEquals(-122.3967,
+        (double) AttributeDecoder.decodeE7("-122.3967") / AttributeDecoder.E7);
+  }
+
+  public void testBadCoordinatesThrow() {
+    for (String value : NOT_COORDINATES) {
+      try {
+        AttributeDecoder.decodeE7(value);
+        fail("Decoded " + value);
+      } catch (NumberFormatException e) {
+        // Expected.
+      }
+    }
+  }
+
+  public void testBooleansMatchParseBoolean() {
+    String[] values = { "true", "TRUE", "True", "false", "", "yes", "tru", "1" };
+    for (String value : values) {
+      assertEquals(value, Boolean.parseBoolean(value),
+          AttributeDecoder.decodeBoolean(value));
+    }
+    assertFalse(AttributeDecoder.decodeBoolean(null));
+  }
+}
@@ -0,0 +1,211 @@
+package info.yasskin.droidmuni;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Checks that BinaryCatalog answers every Catalog query exactly as the Db it
+ * was built from does.
+ */
+public class BinaryCatalogTest extends AndroidTestCase {
+  private Db m_db;
+  private File m_file;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Context context =
+        new RenamingDelegatingContext(getContext(), "binarycatalogtest.");
+    m_db = new Db(context);
+    m_db.eraseEverything();
+    m_file = new File(getContext().getCacheDir(), "binarycatalogtest.bin");
+    m_file.delete();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    m_db.close();
+    m_file.delete();
+    super.tearDown();
+  }
+
+  /**
+   * Fills 'db' with 'route_count' routes of 'stops_per_route' stops each.
+   * Each route has inbound and outbound directions and a third direction
+   * that isn't for the UI. Consecutive routes share a stop.
+   */
+  static void populate(Db db, int route_count, int stops_per_route) {
+    Map<String, Db.Route> routes = new HashMap<String, Db.Route>();
+    for (int r = 0; r < route_count; r++) {
+      routes.put("r" + r, new Db.Route(-1, r, "r" + r, r + "-Route " + r, 0));
+    }
+    db.setRoutes(routes);
+    for (int r = 0; r < route_count; r++) {
+      final Db.Route route = db.getRoute("r" + r);
+      final SQLiteDatabase tables = db.getWritableDatabase();
+      tables.beginTransaction();
+      final Db.RouteWriter writer = db.newRouteWriter(tables, route.id);
+      try {
+        writer.onStart();
+        final int first_tag = r * (stops_per_route - 1);
+        for (int s = 0; s < stops_per_route; s++) {
+          final int tag = first_tag + s;
+          final String title = "Stop " + tag + " & Ave " + s;
+          writer.onStop(new Db.Stop(10000 + tag, tag, title,
+              37.7 + tag * 0.0001234, -122.5 + tag * 0.0004321));
+        }
+        final String[] names = { "Inbound", "Outbound", "Short" };
+        for (int d = 0; d < names.length; d++) {
+          writer.onDirectionStart("r" + r + "_" + d, names[d] + " to " + d,
+              names[d], d < 2);
+          for (int s = 0; s < stops_per_route; s++) {
+            final int tag =
+                first_tag + (d == 1 ? stops_per_route - 1 - s : s);
+            writer.onDirectionStop(tag, 10000 + tag);
+          }
+          writer.onDirectionEnd();
+        }
+        writer.onEnd();
+        ContentValues values = new ContentValues(1);
+        values.put("last_direction_update_ms", 1300000000000L + r);
+        tables.update("Routes", values, "_id = ?",
+            new String[] { route.id + "" });
+        tables.setTransactionSuccessful();
+      } finally {
+        writer.close();
+        tables.endTransaction();
+      }
+    }
+  }
+
+  static void assertSameRows(Cursor expected, Cursor actual) {
+    if (expected == null || actual == null) {
+      assertNull(expected);
+      assertNull(actual);
+      return;
+    }
+    try {
+      assertEquals(expected.getCount(), actual.getCount());
+      assertEquals(expected.getColumnCount(), actual.getColumnCount());
+      expected.moveToFirst();
+      actual.moveToFirst();
+      while (!expected.isAfterLast()) {
+        for (int column = 0; column < expected.getColumnCount(); column++) {
+          final String name = expected.getColumnName(column);
+          final int actual_column = actual.getColumnIndexOrThrow(name);
+          if (name.equals("lat") || name.equals("lon")) {
+            // Stored to 7 decimal places.
+            assertEquals(name, expected.getDouble(column),
+                actual.getDouble(actual_column), 0.6e-7);
+          } else {
+            assertEquals(name, expected.getString(column),
+                actual.getString(actual_column));
+          }
+        }
+        expected.moveToNext();
+        actual.moveToNext();
+      }
+    } finally {
+      expected.close();
+      actual.close();
+    }
+  }
+
+  public void testMatchesDb() throws IOException {
+    populate(m_db, 5, 12);
+    BinaryCatalog catalog =
+        BinaryCatalog.build(CatalogSnapshot.build(m_db), m_file);
+    assertEquals(m_db.getLastModifiedMs(), catalog.getGeneration());
+    assertTrue(catalog.hasRoutes());
+    final long now = System.currentTimeMillis();
+    assertTrue(catalog.routesNewerThan(now - 60 * 1000));
+    assertFalse(catalog.routesNewerThan(now + 60 * 1000));
+
+    assertSameRows(m_db.queryRoutes(), catalog.queryRoutes());
+    for (int r = 0; r < 5; r++) {
+      final String tag = "r" + r;
+      Db.Route expected = m_db.getRoute(tag);
+      Db.Route actual = catalog.getRoute(tag);
+      assertEquals(expected.id, actual.id);
+      assertEquals(expected.upstream_index, actual.upstream_index);
+      assertEquals(expected.tag, actual.tag);
+      assertEquals(expected.description, actual.description);
+      assertEquals(expected.directions_updated_ms,
+          actual.directions_updated_ms);
+      assertSameRows(m_db.queryDirections(tag), catalog.queryDirections(tag));
+      for (int d = 0; d < 4; d++) {
+        assertSameRows(m_db.queryStops(tag, tag + "_" + d),
+            catalog.queryStops(tag, tag + "_" + d));
+      }
+    }
+    assertNull(catalog.getRoute("nonexistent"));
+    assertNull(catalog.queryDirections("nonexistent"));
+    for (int id = 9999; id < 10060; id++) {
+      assertEquals(m_db.getStopTag(id + ""), catalog.getStopTag(id + ""));
+    }
+    assertEquals(-1, catalog.getStopTag("not a number"));
+  }
+
+  public void testStopTitlesStayOutOfTheSymbolTable() throws IOException {
+    populate(m_db, 5, 12);
+    final int stop_count = 5 * 11 + 1;
+    BinaryCatalog catalog =
+        BinaryCatalog.build(CatalogSnapshot.build(m_db), m_file);
+    final int symbols = Globals.SYMBOLS.size();
+    for (int r = 0; r < 5; r++) {
+      for (int d = 0; d < 3; d++) {
+        catalog.queryStops("r" + r, "r" + r + "_" + d).close();
+      }
+    }
+    catalog.toSnapshot();
+    assertTrue(Globals.SYMBOLS.size() - symbols < stop_count);
+  }
+
+  public void testEmptyDb() throws IOException {
+    BinaryCatalog catalog =
+        BinaryCatalog.build(CatalogSnapshot.build(m_db), m_file);
+    assertFalse(catalog.hasRoutes());
+    assertFalse(catalog.routesNewerThan(0));
+    assertNull(catalog.queryRoutes());
+    assertNull(catalog.getRoute("r0"));
+    assertEquals(-1, catalog.getStopTag("10000"));
+  }
+
+  public void testRejectsOtherVersions() throws IOException {
+    BinaryCatalog.build(CatalogSnapshot.build(m_db), m_file);
+    RandomAccessFile file = new RandomAccessFile(m_file, "rw");
+    try {
+      file.seek(4);
+      file.writeInt(BinaryCatalog.VERSION + 1);
+    } finally {
+      file.close();
+    }
+    try {
+      BinaryCatalog.open(m_file);
+      fail("Opened a catalog of the wrong version");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  public void testOpenCatalogOutlivesItsFile() throws IOException {
+    populate(m_db, 1, 3);
+    BinaryCatalog catalog =
+        BinaryCatalog.build(CatalogSnapshot.build(m_db), m_file);
+    m_file.delete();
+    // The mapping still reads the deleted file, which is why the provider
+    // drops its reference when it erases Db instead of checking the file.
+    assertTrue(catalog.hasRoutes());
+    assertEquals(3, catalog.queryStops("r0", "r0_0").getCount());
+  }
+}
@@ -0,0 +1,147 @@
+package info.yasskin.droidmuni;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+/**
+ * Compares Db, BinaryCatalog, and CatalogSnapshot as Catalogs, on a catalog
+ * the size of sf-muni's: cold-open or build time, up to the first answered
+ * query, the copy's size, and the latency of each read NextMuniProvider
+ * makes. Results are logged under "DroidMuni" as one JSON object per line,
+ * like
+ *
+ * <pre>
+ * {"catalog":"binary","metric":"queryStops_us","value":85.2}
+ * </pre>
+ */
+public class CatalogBenchmark extends AndroidTestCase {
+  private static final int ROUTES = 80;
+  private static final int STOPS_PER_ROUTE = 60;
+  private static final int ITERATIONS = 200;
+
+  private Context m_context;
+  private File m_file;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_context = new RenamingDelegatingContext(getContext(), "catalogbench.");
+    m_file = new File(getContext().getCacheDir(), "catalogbench.bin");
+    Db db = new Db(m_context);
+    try {
+      db.eraseEverything();
+      BinaryCatalogTest.populate(db, ROUTES, STOPS_PER_ROUTE);
+      BinaryCatalog.build(CatalogSnapshot.build(db), m_file);
+    } finally {
+      db.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    new Db(m_context).eraseEverything();
+    m_file.delete();
+    super.tearDown();
+  }
+
+  private static void report(String catalog, String metric, double value) {
+    Log.i("DroidMuni", String.format(Locale.US, "CatalogBenchmark"
+        + " {\"catalog\":\"%s\",\"metric\":\"%s\",\"value\":%.1f}",
+        catalog, metric, value));
+  }
+
+  private static double microsPerOp(long start_ns) {
+    return (System.nanoTime() - start_ns) / 1000.0 / ITERATIONS;
+  }
+
+  private static void close(Cursor cursor) {
+    assertNotNull(cursor);
+    cursor.getCount(); // Runs the query.
+    cursor.close();
+  }
+
+  private static void measureQueries(String name, Catalog catalog) {
+    long start_ns = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      assertNotNull(catalog.getRoute("r" + i % ROUTES));
+    }
+    report(name, "getRoute_us", microsPerOp(start_ns));
+
+    start_ns = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      close(catalog.queryDirections("r" + i % ROUTES));
+    }
+    report(name, "queryDirections_us", microsPerOp(start_ns));
+
+    start_ns = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      final String route = "r" + i % ROUTES;
+      close(catalog.queryStops(route, route + "_0"));
+    }
+    report(name, "queryStops_us", microsPerOp(start_ns));
+
+    start_ns = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      assertTrue(catalog.getStopTag((10000 + i) + "") != -1);
+    }
+    report(name, "getStopTag_us", microsPerOp(start_ns));
+
+    start_ns = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      assertTrue(catalog.hasRoutes());
+      catalog.routesNewerThan(0);
+    }
+    report(name, "hasRoutes+routesNewerThan_us", microsPerOp(start_ns));
+  }
+
+  public void testDb() {
+    final long start_ns = System.nanoTime();
+    Db db = new Db(m_context);
+    try {
+      close(db.queryStops("r0", "r0_0"));
+      report("db", "cold_open_us", (System.nanoTime() - start_ns) / 1000.0);
+      measureQueries("db", db);
+    } finally {
+      db.close();
+    }
+  }
+
+  public void testBinary() throws IOException {
+    final long start_ns = System.nanoTime();
+    BinaryCatalog catalog = BinaryCatalog.open(m_file);
+    close(catalog.queryStops("r0", "r0_0"));
+    report("binary", "cold_open_us", (System.nanoTime() - start_ns) / 1000.0);
+    report("binary", "file_bytes", m_file.length());
+    measureQueries("binary", catalog);
+  }
+
+  public void testMemoryFromFile() throws IOException {
+    final long start_ns = System.nanoTime();
+    CatalogSnapshot catalog = BinaryCatalog.open(m_file).toSnapshot();
+    close(catalog.queryStops("r0", "r0_0"));
+    report("memory_from_file", "cold_open_us",
+        (System.nanoTime() - start_ns) / 1000.0);
+    measureQueries("memory_from_file", catalog);
+  }
+
+  public void testMemory() {
+    Db db = new Db(m_context);
+    try {
+      final long start_ns = System.nanoTime();
+      CatalogSnapshot catalog = CatalogSnapshot.build(db);
+      close(catalog.queryStops("r0", "r0_0"));
+      report("memory", "cold_open_us", (System.nanoTime() - start_ns) / 1000.0);
+      report("memory", "approximate_bytes", catalog.getApproximateBytes());
+      measureQueries("memory", catalog);
+    } finally {
+      db.close();
+    }
+  }
+}
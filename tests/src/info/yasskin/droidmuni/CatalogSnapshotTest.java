@@ -0,0 +1,143 @@
+package info.yasskin.droidmuni;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Checks that CatalogSnapshot answers every Catalog query exactly as the Db
+ * it was built from does, and keeps answering that way after Db changes.
+ */
+public class CatalogSnapshotTest extends AndroidTestCase {
+  private Db m_db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Context context =
+        new RenamingDelegatingContext(getContext(), "catalogsnapshottest.");
+    m_db = new Db(context);
+    m_db.eraseEverything();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    m_db.close();
+    super.tearDown();
+  }
+
+  public void testMatchesDb() {
+    BinaryCatalogTest.populate(m_db, 5, 12);
+    assertMatchesDb(CatalogSnapshot.build(m_db));
+  }
+
+  public void testLoadedFromFileMatchesDb() throws IOException {
+    BinaryCatalogTest.populate(m_db, 5, 12);
+    File file =
+        new File(getContext().getCacheDir(), "catalogsnapshottest.bin");
+    try {
+      final int symbols = Globals.SYMBOLS.size();
+      final CatalogSnapshot loaded =
+          BinaryCatalog.build(CatalogSnapshot.build(m_db), file).toSnapshot();
+      // At most each route's tag and description and each direction's tag
+      // and title. The 56 stop titles stay out.
+      assertTrue(Globals.SYMBOLS.size() - symbols <= 5 * 2 + 5 * 3 * 2);
+      assertMatchesDb(loaded);
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Checks 'catalog' against m_db, filled by populate(m_db, 5, 12).
+   */
+  private void assertMatchesDb(CatalogSnapshot catalog) {
+    assertEquals(m_db.getLastModifiedMs(), catalog.getGeneration());
+    assertEquals(5, catalog.getRouteCount());
+    assertTrue(catalog.hasRoutes());
+    final long now = System.currentTimeMillis();
+    assertTrue(catalog.routesNewerThan(now - 60 * 1000));
+    assertFalse(catalog.routesNewerThan(now + 60 * 1000));
+
+    BinaryCatalogTest.assertSameRows(m_db.queryRoutes(),
+        catalog.queryRoutes());
+    for (int r = 0; r < 5; r++) {
+      final String tag = "r" + r;
+      Db.Route expected = m_db.getRoute(tag);
+      Db.Route actual = catalog.getRoute(tag);
+      assertEquals(expected.id, actual.id);
+      assertEquals(expected.upstream_index, actual.upstream_index);
+      assertEquals(expected.tag, actual.tag);
+      assertEquals(expected.description, actual.description);
+      assertEquals(expected.directions_updated_ms,
+          actual.directions_updated_ms);
+      BinaryCatalogTest.assertSameRows(m_db.queryDirections(tag),
+          catalog.queryDirections(tag));
+      for (int d = 0; d < 4; d++) {
+        BinaryCatalogTest.assertSameRows(m_db.queryStops(tag, tag + "_" + d),
+            catalog.queryStops(tag, tag + "_" + d));
+      }
+    }
+    assertNull(catalog.getRoute("nonexistent"));
+    assertNull(catalog.queryDirections("nonexistent"));
+    assertNull(catalog.queryStops("nonexistent", "r0_0"));
+    for (int id = 9999; id < 10060; id++) {
+      assertEquals(m_db.getStopTag(id + ""), catalog.getStopTag(id + ""));
+    }
+    assertEquals(-1, catalog.getStopTag("not a number"));
+  }
+
+  public void testEmptyDb() {
+    CatalogSnapshot catalog = CatalogSnapshot.build(m_db);
+    assertFalse(catalog.hasRoutes());
+    assertFalse(catalog.routesNewerThan(0));
+    assertFalse(catalog.routesNewerThan(Long.MIN_VALUE));
+    assertNull(catalog.queryRoutes());
+    assertNull(catalog.getRoute("r0"));
+    assertEquals(-1, catalog.getStopTag("10000"));
+  }
+
+  public void testUnchangedByLaterWrites() {
+    BinaryCatalogTest.populate(m_db, 2, 4);
+    CatalogSnapshot catalog = CatalogSnapshot.build(m_db);
+    final long generation = catalog.getGeneration();
+    m_db.eraseEverything();
+
+    assertEquals(generation, catalog.getGeneration());
+    assertNotNull(catalog.getRoute("r1"));
+    assertEquals(4, catalog.queryStops("r1", "r1_0").getCount());
+    assertFalse(CatalogSnapshot.build(m_db).hasRoutes());
+  }
+
+  public void testTouchesMatchDb() {
+    BinaryCatalogTest.populate(m_db, 3, 4);
+    CatalogSnapshot catalog = CatalogSnapshot.build(m_db);
+    final long later = catalog.getGeneration() + 1000;
+    m_db.touchRoute(m_db.getRoute("r1").id, later);
+    catalog = catalog.withRouteTouched("r1", later);
+    assertEquals(m_db.getLastModifiedMs(), catalog.getGeneration());
+    assertEquals(later, catalog.getRoute("r1").directions_updated_ms);
+    assertEquals(m_db.getRoute("r0").directions_updated_ms,
+        catalog.getRoute("r0").directions_updated_ms);
+    assertEquals(4, catalog.queryStops("r1", "r1_0").getCount());
+
+    m_db.touchRoutes(later + 1000);
+    catalog = catalog.withRoutesTouched(later + 1000);
+    assertEquals(m_db.getLastModifiedMs(), catalog.getGeneration());
+    assertTrue(catalog.routesNewerThan(later + 1000));
+    assertFalse(catalog.routesNewerThan(later + 1001));
+  }
+
+  public void testFootprintGrowsWithCatalog() {
+    BinaryCatalogTest.populate(m_db, 2, 10);
+    final long small = CatalogSnapshot.build(m_db).getApproximateBytes();
+    m_db.eraseEverything();
+    BinaryCatalogTest.populate(m_db, 20, 10);
+    final long large = CatalogSnapshot.build(m_db).getApproximateBytes();
+    assertTrue(small > 0);
+    assertTrue(small + " vs " + large, large > 5 * small);
+  }
+}
@@ -0,0 +1,216 @@
+package info.yasskin.droidmuni;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+/**
+ * Checks that catalog reads keep their usual latency while another thread
+ * holds a route refresh's write transaction open, as fillDbForRoute() does
+ * for a whole fetch and parse. Only meaningful in WAL mode; with a rollback
+ * journal the reads wait for the write, so the test just checks the mode.
+ * Logs the latencies under "DroidMuni" as one JSON object, like
+ *
+ * <pre>
+ * {"wal":true,"idle_median_ms":0.41,"busy_median_ms":0.44,"busy_max_ms":2.10}
+ * </pre>
+ */
+public class DbConcurrencyTest extends AndroidTestCase {
+  private static final int ROUTES = 20;
+  private static final int STOPS_PER_ROUTE = 40;
+  private static final int REFRESH_STOPS = 3000;
+  private static final int READS = 50;
+
+  private Db m_db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_db =
+        new Db(new RenamingDelegatingContext(getContext(),
+            "dbconcurrencytest."));
+    m_db.eraseEverything();
+    BinaryCatalogTest.populate(m_db, ROUTES, STOPS_PER_ROUTE);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    m_db.close();
+    super.tearDown();
+  }
+
+  /**
+   * @return How long one round of the provider's catalog reads takes, in
+   *         nanoseconds.
+   */
+  private long timeReads() {
+    final long start_ns = System.nanoTime();
+    assertNotNull(m_db.getRoute("r5"));
+    assertTrue(m_db.hasRoutes());
+    Cursor stops = m_db.queryStops("r5", "r5_0");
+    try {
+      assertEquals(STOPS_PER_ROUTE, stops.getCount());
+    } finally {
+      stops.close();
+    }
+    return System.nanoTime() - start_ns;
+  }
+
+  private static double medianMs(long[] ns) {
+    long[] sorted = ns.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2] / 1e6;
+  }
+
+  private static double maxMs(long[] ns) {
+    long max = 0;
+    for (long n : ns) {
+      max = Math.max(max, n);
+    }
+    return max / 1e6;
+  }
+
+  /**
+   * Rewrites route r0 with REFRESH_STOPS stops, then holds the transaction
+   * open until 'reads_done'.
+   */
+  private Thread startRefresh(final CountDownLatch writing,
+      final CountDownLatch reads_done, final Throwable[] failure) {
+    Thread refresh = new Thread("refresh") {
+      @Override
+      public void run() {
+        final SQLiteDatabase tables = m_db.getWritableDatabase();
+        tables.beginTransaction();
+        try {
+          final Db.RouteWriter writer =
+              m_db.newRouteWriter(tables, m_db.getRoute("r0").id);
+          try {
+            writer.onStart();
+            for (int tag = 0; tag < REFRESH_STOPS; tag++) {
+              writer.onStop(new Db.Stop(50000 + tag, 40000 + tag,
+                  "Refreshed " + tag, 37.7 + tag * 1e-5, -122.5));
+            }
+            writer.onDirectionStart("r0_0", "Inbound to 0", "Inbound", true);
+            for (int tag = 0; tag < REFRESH_STOPS; tag++) {
+              writer.onDirectionStop(40000 + tag, 50000 + tag);
+            }
+            writer.onDirectionEnd();
+            writer.onEnd();
+          } finally {
+            writer.close();
+          }
+          writing.countDown();
+          reads_done.await(30, TimeUnit.SECONDS);
+          tables.setTransactionSuccessful();
+        } catch (Throwable e) {
+          failure[0] = e;
+        } finally {
+          tables.endTransaction();
+          writing.countDown();
+        }
+      }
+    };
+    refresh.start();
+    return refresh;
+  }
+
+  public void testConsistentReadDoesntHoldOffWriters() {
+    if (!m_db.isWriteAheadLoggingEnabled()) {
+      return;
+    }
+    final long[] seen =
+        m_db.readConsistently(new Db.ConsistentRead<long[]>() {
+          public long[] read(SQLiteDatabase tables) {
+            final long before =
+                DatabaseUtils.longForQuery(tables, Db.LAST_MODIFIED_SQL, null);
+            Thread writer = new Thread("writer") {
+              @Override
+              public void run() {
+                m_db.touchRoutes(before + 1000);
+              }
+            };
+            writer.start();
+            try {
+              writer.join(30000);
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            return new long[] { before,
+                               DatabaseUtils.longForQuery(tables,
+                                   Db.LAST_MODIFIED_SQL, null),
+                               writer.isAlive() ? 1 : 0 };
+          }
+        });
+    // The write committed while the read was open, and the read didn't see
+    // it.
+    assertEquals(0, seen[2]);
+    assertEquals(seen[0], seen[1]);
+    assertEquals(seen[0] + 1000, m_db.getLastModifiedMs());
+  }
+
+  public void testReadsDontWaitForRefresh() throws Exception {
+    final boolean wal = m_db.isWriteAheadLoggingEnabled();
+    if (!wal) {
+      assertTrue(Build.VERSION.SDK_INT < 11);
+      Log.i("DroidMuni", "{\"wal\":false}");
+      return;
+    }
+
+    long[] idle = new long[READS];
+    for (int i = 0; i < READS; i++) {
+      idle[i] = timeReads();
+    }
+
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch reads_done = new CountDownLatch(1);
+    final Throwable[] failure = new Throwable[1];
+    Thread refresh = startRefresh(writing, reads_done, failure);
+    long[] busy = new long[READS];
+    try {
+      assertTrue(writing.await(30, TimeUnit.SECONDS));
+      for (int i = 0; i < READS; i++) {
+        busy[i] = timeReads();
+      }
+      // The refresh isn't committed, so readers still see the old route.
+      Cursor old_stops = m_db.queryStops("r0", "r0_0");
+      try {
+        assertEquals(STOPS_PER_ROUTE, old_stops.getCount());
+      } finally {
+        old_stops.close();
+      }
+    } finally {
+      reads_done.countDown();
+      refresh.join();
+    }
+    assertNull(failure[0]);
+    Cursor new_stops = m_db.queryStops("r0", "r0_0");
+    try {
+      assertEquals(REFRESH_STOPS, new_stops.getCount());
+    } finally {
+      new_stops.close();
+    }
+    m_db.checkpoint();
+
+    final double idle_median_ms = medianMs(idle);
+    final double busy_median_ms = medianMs(busy);
+    final double busy_max_ms = maxMs(busy);
+    Log.i("DroidMuni", String.format(Locale.US,
+        "{\"wal\":true,\"idle_median_ms\":%.2f,\"busy_median_ms\":%.2f,"
+            + "\"busy_max_ms\":%.2f}", idle_median_ms, busy_median_ms,
+        busy_max_ms));
+    // Generous bounds for noisy devices: blocking behind the refresh would
+    // take the whole 30 second wait.
+    assertTrue(busy_median_ms + " vs " + idle_median_ms,
+        busy_median_ms <= idle_median_ms * 4 + 5);
+    assertTrue(busy_max_ms + "ms", busy_max_ms < 1000);
+  }
+}
@@ -0,0 +1,86 @@
+package info.yasskin.droidmuni;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Checks that the provider's queries use Db's indexes: no full scans of the
+ * catalog tables and no temporary sorts.
+ */
+public class DbQueryPlanTest extends AndroidTestCase {
+  private Db m_db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Context context =
+        new RenamingDelegatingContext(getContext(), "dbqueryplantest.");
+    m_db = new Db(context);
+    m_db.eraseEverything();
+    // Give the planner something to look at.
+    BinaryCatalogTest.populate(m_db, 5, 10);
+    m_db.getWritableDatabase().execSQL("ANALYZE");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    m_db.close();
+    super.tearDown();
+  }
+
+  /**
+   * @return The detail column of each step of 'sql''s query plan.
+   */
+  private List<String> plan(String sql, String... args) {
+    Cursor steps =
+        m_db.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+    try {
+      List<String> result = new ArrayList<String>();
+      final int detail = steps.getColumnIndexOrThrow("detail");
+      for (steps.moveToFirst(); !steps.isAfterLast(); steps.moveToNext()) {
+        result.add(steps.getString(detail));
+      }
+      return result;
+    } finally {
+      steps.close();
+    }
+  }
+
+  private void assertNoScans(String sql, String... args) {
+    for (String step : plan(sql, args)) {
+      assertFalse(sql + ": " + step, step.startsWith("SCAN"));
+      assertFalse(sql + ": " + step, step.contains("TEMP B-TREE"));
+    }
+  }
+
+  public void testLookupsSearch() {
+    assertNoScans(Db.ROUTE_BY_TAG_SQL, "r1");
+    assertNoScans(Db.STOP_TAG_SQL, "10003");
+    assertNoScans(Db.DIRECTIONS_SQL, "r1");
+    assertNoScans(Db.STOPS_SQL, "r1", "r1_0");
+  }
+
+  public void testRoutesReadInOrderFromIndex() {
+    for (String step : plan(Db.ROUTES_SQL)) {
+      assertFalse(step, step.contains("TEMP B-TREE"));
+      if (step.startsWith("SCAN")) {
+        assertTrue(step, step.contains("RoutesByUpstreamIndex"));
+      }
+    }
+  }
+
+  public void testFavoritesSearchStopsByTag() {
+    for (String step : plan(Db.FAVORITES_SQL)) {
+      assertFalse(step, step.contains("TEMP B-TREE"));
+      // Reading every favorite is the point, but not every stop.
+      if (step.startsWith("SCAN")) {
+        assertTrue(step, step.contains("Favorites"));
+      }
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package info.yasskin.droidmuni;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Checks that Db.onUpgrade() keeps the cached catalog when it can migrate it,
+ * and that migrating ends with the same schema as a fresh install.
+ */
+public class DbUpgradeTest extends AndroidTestCase {
+  private static final long ROUTES_UPDATED_MS = 1300000000000L;
+  private static final long DIRECTIONS_UPDATED_MS = 1300000012345L;
+
+  private Context m_context;
+  private Db m_db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_context = new RenamingDelegatingContext(getContext(), "dbupgradetest.");
+    m_context.deleteDatabase("NextMUNIDb");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (m_db != null) {
+      m_db.close();
+    }
+    m_context.deleteDatabase("NextMUNIDb");
+    super.tearDown();
+  }
+
+  private SQLiteDatabase openRaw() {
+    return m_context.openOrCreateDatabase("NextMUNIDb", 0, null);
+  }
+
+  /**
+   * Writes a version 3 database, the last release before favorites, holding
+   * route "N" with one direction of two stops.
+   */
+  private void writeVersion3() {
+    SQLiteDatabase db = openRaw();
+    try {
+      db.execSQL("CREATE TABLE RoutesUpdated (last_update INTEGER)");
+      db.execSQL("CREATE TABLE Routes ("
+                 + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                 + "tag TEXT UNIQUE," + "upstream_index INTEGER,"
+                 + "description TEXT,"
+                 + "last_direction_update_ms INTEGER DEFAULT 0)");
+      db.execSQL("CREATE TABLE Directions ("
+                 + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                 + "route_id INTEGER REFERENCES Routes(_id)," + "tag TEXT,"
+                 + "title TEXT," + "name TEXT,"
+                 + "use_for_ui INTEGER," + "UNIQUE(route_id, tag))");
+      db.execSQL("CREATE TABLE Stops (" + "_id INTEGER PRIMARY KEY,"
+                 + "tag INTEGER," + "title TEXT," + "latitude DOUBLE,"
+                 + "longitude DOUBLE)");
+      db.execSQL("CREATE TABLE DirectionStops ("
+                 + "direction INTEGER REFERENCES Directions(_id),"
+                 + "stop INTEGER REFERENCES Stops(_id),"
+                 + "stop_order INTEGER," + "UNIQUE(direction, stop_order))");
+
+      db.execSQL("INSERT INTO RoutesUpdated VALUES (" + ROUTES_UPDATED_MS
+                 + ")");
+      db.execSQL("INSERT INTO Routes VALUES"
+                 + " (1, 'N', 7, 'N-Judah', " + DIRECTIONS_UPDATED_MS + ")");
+      db.execSQL("INSERT INTO Directions VALUES"
+                 + " (1, 1, 'N__OB1', 'Outbound to Ocean Beach', 'Outbound',"
+                 + " 1)");
+      db.execSQL("INSERT INTO Stops VALUES"
+                 + " (5240, 15240, 'Judah St & 9th Ave', 37.76, -122.46)");
+      db.execSQL("INSERT INTO Stops VALUES"
+                 + " (5241, 15241, 'Judah St & 19th Ave', 37.76, -122.47)");
+      db.execSQL("INSERT INTO DirectionStops VALUES (1, 5240, 0)");
+      db.execSQL("INSERT INTO DirectionStops VALUES (1, 5241, 1)");
+      db.setVersion(3);
+    } finally {
+      db.close();
+    }
+  }
+
+  public void testVersion3KeepsCatalog() {
+    writeVersion3();
+    m_db = new Db(m_context);
+
+    assertEquals(Db.VERSION, m_db.getReadableDatabase().getVersion());
+    assertTrue(m_db.hasRoutes());
+    assertTrue(m_db.routesNewerThan(ROUTES_UPDATED_MS));
+    assertFalse(m_db.routesNewerThan(ROUTES_UPDATED_MS + 1));
+    assertEquals(DIRECTIONS_UPDATED_MS, m_db.getLastModifiedMs());
+
+    Db.Route route = m_db.getRoute("N");
+    assertNotNull(route);
+    assertEquals(7, route.upstream_index);
+    assertEquals("N-Judah", route.description);
+    assertEquals(DIRECTIONS_UPDATED_MS, route.directions_updated_ms);
+
+    Cursor stops = m_db.queryStops("N", "N__OB1");
+    assertNotNull(stops);
+    try {
+      assertEquals(2, stops.getCount());
+      stops.moveToFirst();
+      assertEquals("Judah St & 9th Ave",
+          stops.getString(stops.getColumnIndexOrThrow("title")));
+      assertEquals(15240,
+          stops.getInt(stops.getColumnIndexOrThrow("stop_tag")));
+    } finally {
+      stops.close();
+    }
+    assertEquals(15241, m_db.getStopTag("5241"));
+  }
+
+  public void testVersion3GetsFavorites() {
+    writeVersion3();
+    m_db = new Db(m_context);
+
+    m_db.addFavorite("N", 15240);
+    Cursor favorites = m_db.queryFavorites();
+    try {
+      assertEquals(1, favorites.getCount());
+      favorites.moveToFirst();
+      assertEquals("Judah St & 9th Ave",
+          favorites.getString(favorites.getColumnIndexOrThrow("title")));
+    } finally {
+      favorites.close();
+    }
+  }
+
+  public void testMigratedSchemaMatchesFreshSchema() {
+    writeVersion3();
+    m_db = new Db(m_context);
+    final Map<String, String> migrated = schema(m_db);
+    m_db.close();
+
+    m_context.deleteDatabase("NextMUNIDb");
+    m_db = new Db(m_context);
+    assertEquals(schema(m_db), migrated);
+  }
+
+  public void testTooOldVersionIsRebuilt() {
+    SQLiteDatabase old = openRaw();
+    try {
+      old.execSQL("CREATE TABLE RoutesUpdated (last_update INTEGER)");
+      old.execSQL("INSERT INTO RoutesUpdated VALUES (" + ROUTES_UPDATED_MS
+                  + ")");
+      old.execSQL("CREATE TABLE Routes (tag TEXT)");
+      old.execSQL("INSERT INTO Routes VALUES ('N')");
+      old.setVersion(Db.OLDEST_MIGRATABLE_VERSION - 1);
+    } finally {
+      old.close();
+    }
+    m_db = new Db(m_context);
+
+    assertEquals(Db.VERSION, m_db.getReadableDatabase().getVersion());
+    assertFalse(m_db.hasRoutes());
+    assertFalse(m_db.routesNewerThan(0));
+    assertNull(m_db.queryRoutes());
+  }
+
+  /**
+   * @return Each table's and index's name, mapped to the SQL that created it.
+   */
+  private static Map<String, String> schema(Db db) {
+    Cursor entries =
+        db.getReadableDatabase().rawQuery(
+            "SELECT name, sql FROM sqlite_master WHERE sql IS NOT NULL", null);
+    try {
+      Map<String, String> result = new HashMap<String, String>();
+      for (entries.moveToFirst(); !entries.isAfterLast(); entries.moveToNext()) {
+        result.put(entries.getString(0), entries.getString(1));
+      }
+      return result;
+    } finally {
+      entries.close();
+    }
+  }
+}
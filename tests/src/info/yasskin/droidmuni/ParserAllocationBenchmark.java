@@ -0,0 +1,88 @@
+package info.yasskin.droidmuni;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Compares how much a prediction poll allocates when it builds a new
+ * PredictionsParser for every document against reusing one per thread. The
+ * numbers go to the log under "DroidMuni" so runs can be compared.
+ */
+public class ParserAllocationBenchmark extends TestCase {
+  private static final int ITERATIONS = 200;
+  private static final byte[] PREDICTIONS =
+      ("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+       + "<body copyright=\"All data copyright San Francisco Muni 2011.\">\n"
+       + "<predictions agencyTitle=\"San Francisco Muni\""
+       + " routeTitle=\"71-Haight-Noriega\" routeTag=\"71\""
+       + " stopTitle=\"Noriega St &amp; 48th Ave\" stopTag=\"6294\">\n"
+       + "  <direction title=\"Inbound to Ferry Plaza\">\n"
+       + "  <prediction epochTime=\"1300000000000\" seconds=\"300\""
+       + " minutes=\"5\" isDeparture=\"false\" dirTag=\"71_IB1\""
+       + " block=\"7101\" />\n"
+       + "  <prediction epochTime=\"1300000900000\" seconds=\"1200\""
+       + " minutes=\"20\" isDeparture=\"false\" dirTag=\"71_IB1\""
+       + " block=\"7102\" />\n"
+       + "  </direction>\n"
+       + "</predictions>\n"
+       + "</body>\n").getBytes();
+
+  private static final ParserFactory<PredictionsParser> REUSABLE =
+      new ReusableParserFactory<PredictionsParser>() {
+        @Override
+        protected PredictionsParser create() {
+          return new PredictionsParser();
+        }
+      };
+
+  private static final ParserFactory<PredictionsParser> FRESH =
+      new ParserFactory<PredictionsParser>() {
+        public PredictionsParser newParser() {
+          return new PredictionsParser();
+        }
+      };
+
+  /**
+   * @return The bytes allocated per document.
+   */
+  private static long measure(String name,
+      ParserFactory<PredictionsParser> parsers) {
+    // Warm up, so class loading and the reusable parser's first instance
+    // aren't counted.
+    for (int i = 0; i < 10; i++) {
+      parse(parsers);
+    }
+    Debug.resetThreadAllocCount();
+    Debug.resetThreadAllocSize();
+    Debug.startAllocCounting();
+    final long start_ns = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      parse(parsers);
+    }
+    final long elapsed_ns = System.nanoTime() - start_ns;
+    Debug.stopAllocCounting();
+    final long bytes_per_doc = Debug.getThreadAllocSize() / ITERATIONS;
+    final long objects_per_doc = Debug.getThreadAllocCount() / ITERATIONS;
+    Log.i("DroidMuni", "ParserAllocationBenchmark " + name + ": "
+                       + bytes_per_doc + " bytes/doc, " + objects_per_doc
+                       + " objects/doc, " + elapsed_ns / ITERATIONS
+                       + " ns/doc");
+    return bytes_per_doc;
+  }
+
+  private static void parse(ParserFactory<PredictionsParser> parsers) {
+    PredictionsParser parser = parsers.newParser();
+    parser.parse(new ByteArrayInputStream(PREDICTIONS));
+    assertEquals(Parser.ResultState.SUCCESS, parser.getResult());
+    assertEquals(2, parser.getPredictions().size());
+  }
+
+  public void testReuseAllocatesLess() {
+    final long fresh = measure("fresh", FRESH);
+    final long reused = measure("reused", REUSABLE);
+    assertTrue("reused " + reused + " >= fresh " + fresh, reused < fresh);
+  }
+}
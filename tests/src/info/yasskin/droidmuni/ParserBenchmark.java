@@ -0,0 +1,134 @@
+package info.yasskin.droidmuni;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import android.content.Context;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Measures each parser's throughput on the documents in the test package's
+ * assets/corpus. Every document gets a result like
+ *
+ * <pre>
+ * {"parser":"RouteConfigParser","document":"routeConfig-large.xml",
+ *  "bytes":106402,"docs_per_sec":41.2,"mb_per_sec":4.18,
+ *  "alloc_bytes_per_doc":812344,"alloc_objects_per_doc":20127}
+ * </pre>
+ *
+ * which is logged under "DroidMuni" and appended as one line to
+ * parser-benchmark.jsonl in the test package's files directory, so runs can
+ * be pulled off the device and compared.
+ */
+public class ParserBenchmark extends InstrumentationTestCase {
+  private static final String RESULTS_FILE = "parser-benchmark.jsonl";
+  /** Each document is parsed for at least this long. */
+  private static final long MIN_RUN_NS = 2000L * 1000 * 1000;
+  private static final int MIN_ITERATIONS = 20;
+
+  private Context m_test_context;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_test_context = getInstrumentation().getContext();
+  }
+
+  private byte[] readAsset(String name) throws IOException {
+    InputStream input = m_test_context.getAssets().open("corpus/" + name);
+    try {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = input.read(buffer)) != -1) {
+        output.write(buffer, 0, count);
+      }
+      return output.toByteArray();
+    } finally {
+      input.close();
+    }
+  }
+
+  private static void parseOnce(Parser parser, byte[] document) {
+    parser.reset();
+    parser.parse(new ByteArrayInputStream(document));
+    assertEquals(Parser.ResultState.SUCCESS, parser.getResult());
+  }
+
+  private void run(Parser parser, String document_name) throws IOException {
+    final byte[] document = readAsset(document_name);
+    // Warm up, and find out how many iterations fill MIN_RUN_NS.
+    int iterations = 0;
+    final long warmup_start_ns = System.nanoTime();
+    while (iterations < MIN_ITERATIONS
+           || System.nanoTime() - warmup_start_ns < MIN_RUN_NS / 4) {
+      parseOnce(parser, document);
+      iterations++;
+    }
+    final long warmup_ns = System.nanoTime() - warmup_start_ns;
+    iterations = (int) Math.max(MIN_ITERATIONS, iterations * MIN_RUN_NS
+                                                / Math.max(1, warmup_ns));
+
+    final long start_ns = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      parseOnce(parser, document);
+    }
+    final long elapsed_ns = System.nanoTime() - start_ns;
+
+    // Allocation counting slows the VM down, so it gets its own pass.
+    final int alloc_iterations = MIN_ITERATIONS;
+    Debug.resetThreadAllocCount();
+    Debug.resetThreadAllocSize();
+    Debug.startAllocCounting();
+    for (int i = 0; i < alloc_iterations; i++) {
+      parseOnce(parser, document);
+    }
+    Debug.stopAllocCounting();
+
+    final double seconds = elapsed_ns / 1e9;
+    final double docs_per_sec = iterations / seconds;
+    final double mb_per_sec = docs_per_sec * document.length / (1024 * 1024);
+    final long alloc_bytes = Debug.getThreadAllocSize() / alloc_iterations;
+    final long alloc_objects = Debug.getThreadAllocCount() / alloc_iterations;
+    report(String.format(Locale.US, "{\"parser\":\"%s\",\"document\":\"%s\","
+        + "\"bytes\":%d,\"docs_per_sec\":%.1f,\"mb_per_sec\":%.3f,"
+        + "\"alloc_bytes_per_doc\":%d,\"alloc_objects_per_doc\":%d}",
+        parser.getClass().getSimpleName(), document_name, document.length,
+        docs_per_sec, mb_per_sec, alloc_bytes, alloc_objects));
+  }
+
+  /**
+   * @param line
+   *          One JSON object.
+   */
+  private void report(String line) throws IOException {
+    Log.i("DroidMuni", "ParserBenchmark " + line);
+    FileOutputStream output =
+        m_test_context.openFileOutput(RESULTS_FILE, Context.MODE_APPEND);
+    try {
+      output.write((line + "\n").getBytes("UTF-8"));
+    } finally {
+      output.close();
+    }
+  }
+
+  public void testRouteList() throws Exception {
+    run(new RouteListParser(), "routeList.xml");
+  }
+
+  public void testRouteConfig() throws Exception {
+    run(new RouteConfigParser(), "routeConfig-small.xml");
+    run(new RouteConfigParser(), "routeConfig-large.xml");
+  }
+
+  public void testPredictions() throws Exception {
+    run(new PredictionsParser(), "predictions-single-route.xml");
+    run(new PredictionsParser(), "predictions-busy-stop.xml");
+  }
+}
@@ -0,0 +1,95 @@
+package info.yasskin.droidmuni;
+
+import junit.framework.TestCase;
+
+public class PredictionBufferTest extends TestCase {
+  private static String describe(PredictionBuffer buffer, int i) {
+    return buffer.predictedTime(i) + " " + buffer.routeTag(i) + " "
+           + buffer.directionTag(i);
+  }
+
+  public void testMergesRunsByTimeThenTags() {
+    PredictionBuffer buffer = new PredictionBuffer(2);
+    buffer.startRun();
+    buffer.add(100, false, "38", "38_OB", "6648");
+    buffer.add(300, false, "38", "38_OB", "6648");
+    buffer.startRun();
+    buffer.add(100, false, "38", "38_IB", "6648");
+    buffer.add(200, true, "38", "38_IB", "6648");
+    buffer.startRun();
+    buffer.add(100, false, "1", "1_OB", "6648");
+    assertEquals(3, buffer.runCount());
+
+    int[] order = buffer.mergeOrder();
+    assertEquals(5, order.length);
+    assertEquals("100 1 1_OB", describe(buffer, order[0]));
+    assertEquals("100 38 38_IB", describe(buffer, order[1]));
+    assertEquals("100 38 38_OB", describe(buffer, order[2]));
+    assertEquals("200 38 38_IB", describe(buffer, order[3]));
+    assertTrue(buffer.isDeparture(order[3]));
+    assertEquals("300 38 38_OB", describe(buffer, order[4]));
+  }
+
+  public void testUnsortedInputStartsNewRun() {
+    PredictionBuffer buffer = new PredictionBuffer();
+    buffer.add(300, false, "38", "38_OB", "6648");
+    buffer.add(100, false, "38", "38_OB", "6648");
+    assertEquals(2, buffer.runCount());
+    PredictionBuffer sorted = buffer.sortedCopy();
+    assertEquals(1, sorted.runCount());
+    assertEquals(100, sorted.predictedTime(0));
+    assertEquals(300, sorted.predictedTime(1));
+  }
+
+  public void testAddRunsKeepsRunsAndTags() {
+    PredictionBuffer first = new PredictionBuffer();
+    first.add(200, false, "38", "38_OB", "6648");
+    PredictionBuffer second = new PredictionBuffer();
+    second.add(100, false, "N", "N__OB1", "5205");
+    second.add(400, false, "N", "N__OB1", "5205");
+
+    PredictionBuffer merged = new PredictionBuffer();
+    merged.addRuns(first);
+    merged.addRuns(second);
+    assertEquals(2, merged.runCount());
+    int[] order = merged.mergeOrder();
+    assertEquals("5205", merged.stopTag(order[0]));
+    assertEquals("6648", merged.stopTag(order[1]));
+    assertEquals(400, merged.predictedTime(order[2]));
+  }
+
+  public void testAddsLookedUpIds() {
+    PredictionBuffer buffer = new PredictionBuffer();
+    final int route = buffer.symbolId("38");
+    assertEquals("38", buffer.symbol(route));
+    buffer.add(300, false, route, buffer.symbolId("38_OB"), "6648");
+    buffer.add(100, true, route, buffer.symbolId(null), "6648");
+
+    PredictionBuffer sorted = buffer.sortedCopy();
+    assertEquals("100 38 null", describe(sorted, 0));
+    assertEquals("300 38 38_OB", describe(sorted, 1));
+    assertEquals("6648", sorted.stopTag(1));
+  }
+
+  public void testStopTagsStayOutOfTheSymbolTable() {
+    PredictionBuffer buffer = new PredictionBuffer();
+    final int route = buffer.symbolId("38");
+    final int direction = buffer.symbolId("38_OB");
+    final int symbols = Globals.SYMBOLS.size();
+    buffer.add(100, false, route, direction, "predictionbuffertest-stop");
+    buffer.add(200, false, "38", "38_OB", "predictionbuffertest-stop2");
+    assertEquals(symbols, Globals.SYMBOLS.size());
+    assertEquals("predictionbuffertest-stop2",
+        buffer.sortedCopy().stopTag(1));
+  }
+
+  public void testResetKeepsNothing() {
+    PredictionBuffer buffer = new PredictionBuffer();
+    buffer.add(100, false, "38", null, "6648");
+    assertNull(buffer.directionTag(0));
+    buffer.reset();
+    assertEquals(0, buffer.size());
+    assertEquals(0, buffer.runCount());
+    assertEquals(0, buffer.mergeOrder().length);
+  }
+}
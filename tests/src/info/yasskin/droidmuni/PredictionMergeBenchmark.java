@@ -0,0 +1,132 @@
+package info.yasskin.droidmuni;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.util.Log;
+
+/**
+ * Times ordering the predictions for a big transfer point, where a dozen
+ * routes each report a few directions, using the PredictionBuffer's k-way
+ * merge against boxing each prediction and calling Collections.sort(), which
+ * is what PredictionCache used to do. Results are logged under "DroidMuni"
+ * as "PredictionMergeBenchmark <name> <ns/op>" lines.
+ */
+public class PredictionMergeBenchmark extends TestCase {
+  private static final int ROUTES = 12;
+  private static final int DIRECTIONS = 3;
+  private static final int PREDICTIONS_PER_DIRECTION = 5;
+  private static final int ITERATIONS = 2000;
+
+  private static final String[] ROUTE_TAGS = new String[ROUTES];
+  private static final String[][] DIRECTION_TAGS =
+      new String[ROUTES][DIRECTIONS];
+  static {
+    for (int route = 0; route < ROUTES; route++) {
+      ROUTE_TAGS[route] = "r" + route;
+      for (int direction = 0; direction < DIRECTIONS; direction++) {
+        DIRECTION_TAGS[route][direction] = "r" + route + "_" + direction;
+      }
+    }
+  }
+
+  /**
+   * The per-prediction object the buffer replaced.
+   */
+  private static final class Boxed implements Comparable<Boxed> {
+    Boxed(long predicted_time, String route_tag, String direction_tag) {
+      this.predicted_time = predicted_time;
+      this.route_tag = route_tag;
+      this.direction_tag = direction_tag;
+    }
+
+    final long predicted_time;
+    final String route_tag;
+    final String direction_tag;
+
+    public int compareTo(Boxed another) {
+      if (predicted_time != another.predicted_time) {
+        return predicted_time < another.predicted_time ? -1 : 1;
+      }
+      int cmp = route_tag.compareTo(another.route_tag);
+      if (cmp != 0) {
+        return cmp;
+      }
+      return direction_tag.compareTo(another.direction_tag);
+    }
+  }
+
+  private static long time(int route, int direction, int prediction) {
+    // Interleave the directions so the merge has real work to do.
+    return 1300000000000L + prediction * 600000L + route * 7000L + direction
+           * 1000L;
+  }
+
+  private static void fill(PredictionBuffer buffer) {
+    buffer.reset();
+    for (int route = 0; route < ROUTES; route++) {
+      for (int direction = 0; direction < DIRECTIONS; direction++) {
+        buffer.startRun();
+        for (int p = 0; p < PREDICTIONS_PER_DIRECTION; p++) {
+          buffer.add(time(route, direction, p), false, ROUTE_TAGS[route],
+              DIRECTION_TAGS[route][direction], "6648");
+        }
+      }
+    }
+  }
+
+  private static List<Boxed> fillBoxed() {
+    List<Boxed> result = new ArrayList<Boxed>();
+    for (int route = 0; route < ROUTES; route++) {
+      for (int direction = 0; direction < DIRECTIONS; direction++) {
+        for (int p = 0; p < PREDICTIONS_PER_DIRECTION; p++) {
+          result.add(new Boxed(time(route, direction, p), ROUTE_TAGS[route],
+              DIRECTION_TAGS[route][direction]));
+        }
+      }
+    }
+    return result;
+  }
+
+  private static void report(String name, long elapsed_ns) {
+    Log.i("DroidMuni", "PredictionMergeBenchmark " + name + " "
+                       + elapsed_ns / ITERATIONS);
+  }
+
+  public void testMergeMatchesSort() {
+    PredictionBuffer buffer = new PredictionBuffer();
+    fill(buffer);
+    List<Boxed> boxed = fillBoxed();
+    Collections.sort(boxed);
+    int[] order = buffer.mergeOrder();
+    assertEquals(boxed.size(), order.length);
+    for (int i = 0; i < order.length; i++) {
+      assertEquals(boxed.get(i).predicted_time, buffer.predictedTime(order[i]));
+      assertEquals(boxed.get(i).direction_tag, buffer.directionTag(order[i]));
+    }
+  }
+
+  public void testBenchmark() {
+    PredictionBuffer buffer = new PredictionBuffer();
+    for (int i = 0; i < ITERATIONS / 10; i++) {
+      fill(buffer);
+      buffer.mergeOrder();
+      Collections.sort(fillBoxed());
+    }
+
+    long start_ns = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      fill(buffer);
+      buffer.mergeOrder();
+    }
+    report("buffer_merge", System.nanoTime() - start_ns);
+
+    start_ns = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      Collections.sort(fillBoxed());
+    }
+    report("boxed_sort", System.nanoTime() - start_ns);
+  }
+}
@@ -0,0 +1,88 @@
+package info.yasskin.droidmuni;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class RouteConfigParserTest extends TestCase {
+  private static final String ROUTE_CONFIG =
+      "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+          + "<body copyright=\"All data copyright San Francisco Muni 2011.\">\n"
+          + "<route tag=\"71\" title=\"71-Haight-Noriega\" color=\"667744\""
+          + " oppositeColor=\"ffffff\">\n"
+          + "<stop tag=\"4015\" title=\"Clay St &amp; Drumm St\""
+          + " lat=\"37.7954\" lon=\"-122.3967\" stopId=\"14015\"/>\n"
+          + "<stop tag=\"6294\" title=\"Noriega St &amp; 48th Ave\""
+          + " lat=\"37.7533\" lon=\"-122.5071\" stopId=\"16294\"/>\n"
+          + "<direction tag=\"71_OB\" title=\"Outbound to 48th Avenue\""
+          + " name=\"Outbound\" useForUI=\"true\">\n"
+          + "  <stop tag=\"4015\" />\n"
+          + "  <stop tag=\"9999\" />\n"
+          + "  <stop tag=\"6294\" />\n"
+          + "</direction>\n"
+          + "<path><point lat=\"37.7954\" lon=\"-122.3967\"/></path>\n"
+          + "</route>\n"
+          + "</body>\n";
+
+  private static class RecordingSink implements RouteConfigParser.Sink {
+    final List<String> events = new ArrayList<String>();
+
+    public void onStart() {
+      events.add("start");
+    }
+
+    public void onStop(Db.Stop stop) {
+      events.add("stop " + stop.id + " " + stop.tag + " " + stop.title);
+    }
+
+    public void onDirectionStart(String tag, String title, String name,
+        boolean useForUI) {
+      events.add("direction " + tag + " " + name + " " + useForUI);
+    }
+
+    public void onDirectionStop(int stop_tag, int stop_id) {
+      events.add("direction stop " + stop_tag + " " + stop_id);
+    }
+
+    public void onDirectionEnd() {
+      events.add("direction end");
+    }
+
+    public void onEnd() {
+      events.add("end");
+    }
+  }
+
+  public void testStreamsToSink() {
+    RecordingSink sink = new RecordingSink();
+    RouteConfigParser parser = new RouteConfigParser(sink);
+    parser.parse(new ByteArrayInputStream(ROUTE_CONFIG.getBytes()));
+    assertEquals(Parser.ResultState.SUCCESS, parser.getResult());
+    List<String> expected = new ArrayList<String>();
+    expected.add("start");
+    expected.add("stop 14015 4015 Clay St & Drumm St");
+    expected.add("stop 16294 6294 Noriega St & 48th Ave");
+    expected.add("direction 71_OB Outbound true");
+    expected.add("direction stop 4015 14015");
+    // The unknown stop tag is skipped.
+    expected.add("direction stop 6294 16294");
+    expected.add("direction end");
+    expected.add("end");
+    assertEquals(expected, sink.events);
+    assertEquals(0, parser.getStops().size());
+    assertTrue(parser.getDirections().isEmpty());
+  }
+
+  public void testCollectsByDefault() {
+    RouteConfigParser parser = new RouteConfigParser();
+    parser.parse(new ByteArrayInputStream(ROUTE_CONFIG.getBytes()));
+    assertEquals(Parser.ResultState.SUCCESS, parser.getResult());
+    assertEquals(2, parser.getStops().size());
+    Db.Direction outbound = parser.getDirections().get("71_OB");
+    assertEquals(2, outbound.stops.size());
+    assertEquals(14015, outbound.stops.get(0).id);
+    assertEquals(16294, outbound.stops.get(1).id);
+  }
+}
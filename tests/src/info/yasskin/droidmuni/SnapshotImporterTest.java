@@ -0,0 +1,95 @@
+package info.yasskin.droidmuni;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+public class SnapshotImporterTest extends AndroidTestCase {
+  private static final String HEADER =
+      "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n"
+          + "<body copyright=\"All data copyright San Francisco Muni 2011.\">\n";
+  private static final String ROUTE_LIST =
+      HEADER + "<route tag=\"39\" title=\"39-Coit\"/>\n"
+          + "<route tag=\"71\" title=\"71-Haight-Noriega\"/>\n" + "</body>\n";
+  private static final String ROUTE_71 =
+      HEADER
+          + "<route tag=\"71\" title=\"71-Haight-Noriega\" color=\"667744\""
+          + " oppositeColor=\"ffffff\">\n"
+          + "<stop tag=\"4015\" title=\"Clay St &amp; Drumm St\""
+          + " lat=\"37.7954\" lon=\"-122.3967\" stopId=\"14015\"/>\n"
+          + "<stop tag=\"6294\" title=\"Noriega St &amp; 48th Ave\""
+          + " lat=\"37.7533\" lon=\"-122.5071\" stopId=\"16294\"/>\n"
+          + "<direction tag=\"71_OB\" title=\"Outbound to 48th Avenue\""
+          + " name=\"Outbound\" useForUI=\"true\">\n"
+          + "  <stop tag=\"4015\" />\n" + "  <stop tag=\"6294\" />\n"
+          + "</direction>\n" + "</route>\n" + "</body>\n";
+
+  private Db m_db;
+  private final Map<String, String> m_documents =
+      new HashMap<String, String>();
+  private final SnapshotImporter.Source m_source =
+      new SnapshotImporter.Source() {
+        public InputStream open(String name) throws IOException {
+          String document = m_documents.get(name);
+          if (document == null) {
+            throw new FileNotFoundException(name);
+          }
+          return new ByteArrayInputStream(document.getBytes("UTF-8"));
+        }
+      };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_db =
+        new Db(new RenamingDelegatingContext(getContext(),
+            "snapshotimportertest."));
+    m_db.eraseEverything();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    m_db.close();
+    super.tearDown();
+  }
+
+  public void testImportsRoutesAndStops() {
+    m_documents.put("routeList.xml", ROUTE_LIST);
+    // The 39 is missing from the snapshot, and the 71 is second in the list.
+    m_documents.put(SnapshotImporter.routeConfigName(1), ROUTE_71);
+    final long updated_ms = 1300000000000L;
+    assertTrue(SnapshotImporter.importIfEmpty(m_db, m_source, updated_ms));
+
+    assertTrue(m_db.hasRoutes());
+    assertTrue(m_db.routesNewerThan(updated_ms));
+    assertFalse(m_db.routesNewerThan(updated_ms + 1));
+    assertEquals(updated_ms, m_db.getRoute("71").directions_updated_ms);
+    assertEquals(0, m_db.getRoute("39").directions_updated_ms);
+    Cursor stops = m_db.queryStops("71", "71_OB");
+    try {
+      assertEquals(2, stops.getCount());
+      stops.moveToFirst();
+      assertEquals(14015, stops.getInt(stops.getColumnIndexOrThrow("_id")));
+    } finally {
+      stops.close();
+    }
+  }
+
+  public void testLeavesFilledDbAlone() {
+    m_documents.put("routeList.xml", ROUTE_LIST);
+    assertTrue(SnapshotImporter.importIfEmpty(m_db, m_source, 0));
+    assertFalse(SnapshotImporter.importIfEmpty(m_db, m_source, 0));
+  }
+
+  public void testMissingSnapshotImportsNothing() {
+    assertFalse(SnapshotImporter.importIfEmpty(m_db, m_source, 0));
+    assertFalse(m_db.hasRoutes());
+  }
+}
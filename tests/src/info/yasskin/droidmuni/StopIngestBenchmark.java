@@ -0,0 +1,186 @@
+package info.yasskin.droidmuni;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+/**
+ * Times Db.StopUpserter, which RouteWriter writes each route's stops through,
+ * on one 100-stop route and on a whole sf-muni-sized system, both into an
+ * empty table and again with nothing changed, which is what the daily refresh
+ * mostly sees. The per-stop query-then-write that it replaced runs alongside
+ * for comparison. Results are logged
+ * under "DroidMuni" as one JSON object per line, like
+ *
+ * <pre>
+ * {"case":"route_100","method":"bulk","pass":"fresh","ms":41.0}
+ * </pre>
+ */
+public class StopIngestBenchmark extends AndroidTestCase {
+  private static final int SYSTEM_ROUTES = 80;
+  private static final int STOPS_PER_ROUTE = 60;
+
+  private Db m_db;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_db =
+        new Db(new RenamingDelegatingContext(getContext(), "stopingestbench."));
+    m_db.eraseEverything();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    m_db.eraseEverything();
+    m_db.close();
+    super.tearDown();
+  }
+
+  /**
+   * Routes overlap by 10 stops, as lines sharing a trunk do.
+   */
+  private static List<Db.Stop> routeStops(int route, int count) {
+    List<Db.Stop> result = new ArrayList<Db.Stop>(count);
+    final int first = route * (count - 10);
+    for (int i = first; i < first + count; i++) {
+      result.add(new Db.Stop(10000 + i, i, "Stop " + i, 37.7 + i * 1e-5,
+          -122.5 + i * 1e-5));
+    }
+    return result;
+  }
+
+  /**
+   * Writes 'stops' the way RouteWriter does, in one transaction.
+   */
+  private static void addStops(SQLiteDatabase tables, List<Db.Stop> stops) {
+    tables.beginTransaction();
+    final Db.StopUpserter upserter = new Db.StopUpserter(tables);
+    try {
+      for (Db.Stop stop : stops) {
+        upserter.put(stop);
+      }
+      tables.setTransactionSuccessful();
+    } finally {
+      upserter.close();
+      tables.endTransaction();
+    }
+  }
+
+  /**
+   * The approach StopUpserter replaced: a transaction, a SELECT, and then an
+   * INSERT or UPDATE through ContentValues, for each stop.
+   */
+  private static void addStopsOneByOne(SQLiteDatabase tables,
+      List<Db.Stop> stops) {
+    for (Db.Stop stop : stops) {
+      tables.beginTransaction();
+      try {
+        Cursor existing =
+            tables.query("Stops", new String[] { "tag", "title", "latitude",
+                                                "longitude" }, "_id == ?",
+                new String[] { stop.id + "" }, null, null, null);
+        try {
+          ContentValues values = new ContentValues(5);
+          values.put("tag", stop.tag);
+          values.put("title", stop.title);
+          values.put("latitude", stop.lat);
+          values.put("longitude", stop.lon);
+          if (existing.getCount() == 0) {
+            values.put("_id", stop.id);
+            tables.insertOrThrow("Stops", null, values);
+          } else {
+            existing.moveToFirst();
+            if (existing.getInt(0) != stop.tag
+                || !stop.title.equals(existing.getString(1))
+                || existing.getDouble(2) != stop.lat
+                || existing.getDouble(3) != stop.lon) {
+              tables.update("Stops", values, "_id == ?",
+                  new String[] { stop.id + "" });
+            }
+          }
+        } finally {
+          existing.close();
+        }
+        tables.setTransactionSuccessful();
+      } finally {
+        tables.endTransaction();
+      }
+    }
+  }
+
+  private static void report(String test_case, String method, String pass,
+      long start_ns) {
+    Log.i("DroidMuni", String.format(Locale.US, "StopIngestBenchmark"
+        + " {\"case\":\"%s\",\"method\":\"%s\",\"pass\":\"%s\",\"ms\":%.1f}",
+        test_case, method, pass, (System.nanoTime() - start_ns) / 1e6));
+  }
+
+  private void ingest(String test_case, int routes, int stops_per_route,
+      boolean bulk) {
+    m_db.getWritableDatabase().delete("Stops", null, null);
+    List<List<Db.Stop>> stops = new ArrayList<List<Db.Stop>>();
+    for (int r = 0; r < routes; r++) {
+      stops.add(routeStops(r, stops_per_route));
+    }
+    final String method = bulk ? "bulk" : "per_stop";
+    for (String pass : new String[] { "fresh", "unchanged" }) {
+      final long start_ns = System.nanoTime();
+      for (List<Db.Stop> route : stops) {
+        if (bulk) {
+          addStops(m_db.getWritableDatabase(), route);
+        } else {
+          addStopsOneByOne(m_db.getWritableDatabase(), route);
+        }
+      }
+      report(test_case, method, pass, start_ns);
+    }
+    assertEquals(routes * (stops_per_route - 10) + 10,
+        DatabaseUtils.queryNumEntries(m_db.getReadableDatabase(), "Stops"));
+  }
+
+  public void testRoute() {
+    ingest("route_100", 1, 100, false);
+    ingest("route_100", 1, 100, true);
+  }
+
+  public void testSystem() {
+    ingest("system", SYSTEM_ROUTES, STOPS_PER_ROUTE, false);
+    ingest("system", SYSTEM_ROUTES, STOPS_PER_ROUTE, true);
+  }
+
+  public void testBulkUpdatesChangedStops() {
+    List<Db.Stop> stops = new ArrayList<Db.Stop>();
+    stops.add(new Db.Stop(14015, 4015, "Clay St & Drumm St", 37.7954,
+        -122.3967));
+    stops.add(new Db.Stop(16294, 6294, null, 37.7533, -122.5071));
+    addStops(m_db.getWritableDatabase(), stops);
+
+    stops.clear();
+    stops.add(new Db.Stop(14015, 4015, "Clay & Drumm", 37.7954, -122.3967));
+    stops.add(new Db.Stop(16294, 6294, "Noriega St & 48th Ave", 37.7533,
+        -122.5071));
+    addStops(m_db.getWritableDatabase(), stops);
+
+    Cursor titles =
+        m_db.getReadableDatabase().rawQuery(
+            "SELECT title FROM Stops ORDER BY _id", null);
+    try {
+      assertEquals(2, titles.getCount());
+      titles.moveToFirst();
+      assertEquals("Clay & Drumm", titles.getString(0));
+      titles.moveToNext();
+      assertEquals("Noriega St & 48th Ave", titles.getString(0));
+    } finally {
+      titles.close();
+    }
+  }
+}
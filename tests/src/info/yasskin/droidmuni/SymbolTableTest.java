@@ -0,0 +1,32 @@
+package info.yasskin.droidmuni;
+
+import junit.framework.TestCase;
+
+public class SymbolTableTest extends TestCase {
+  public void testInternReturnsCanonicalInstance() {
+    SymbolTable symbols = new SymbolTable(10);
+    String first = new String("38___O_F00");
+    String second = new String("38___O_F00");
+    assertSame(first, symbols.intern(first));
+    assertSame(first, symbols.intern(second));
+    assertNull(symbols.intern(null));
+  }
+
+  public void testIdsAreDenseAndStable() {
+    SymbolTable symbols = new SymbolTable(10);
+    assertEquals(0, symbols.id("38"));
+    assertEquals(1, symbols.id("N"));
+    assertEquals(0, symbols.id(new String("38")));
+    assertEquals("N", symbols.symbol(1));
+    assertEquals(2, symbols.size());
+  }
+
+  public void testFullTablePassesStringsThrough() {
+    SymbolTable symbols = new SymbolTable(1);
+    symbols.intern("38");
+    String overflow = new String("N");
+    assertSame(overflow, symbols.intern(overflow));
+    assertEquals(SymbolTable.NO_ID, symbols.id("N"));
+    assertEquals(0, symbols.id("38"));
+  }
+}
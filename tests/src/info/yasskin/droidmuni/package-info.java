@@ -0,0 +1,7 @@
+/**
+ * Tests and benchmarks for the package-private classes behind the provider,
+ * like Db and the parsers. They live in the application's own package so they
+ * can reach those classes. Tests that only need public classes go in
+ * info.yasskin.droidmuni.test with the rest.
+ */
+package info.yasskin.droidmuni;
@@ -0,0 +1,59 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.BatchingScheduler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class BatchingSchedulerTest extends TestCase {
+  private static Runnable countDown(final CountDownLatch latch,
+      final AtomicInteger runs) {
+    return new Runnable() {
+      public void run() {
+        runs.incrementAndGet();
+        latch.countDown();
+      }
+    };
+  }
+
+  public void testHoldsFetchesUntilForegroundRequest() throws Exception {
+    BatchingScheduler batcher = new BatchingScheduler(60000);
+    CountDownLatch latch = new CountDownLatch(2);
+    AtomicInteger runs = new AtomicInteger();
+    batcher.defer("a", countDown(latch, runs));
+    batcher.defer("b", countDown(latch, runs));
+    assertEquals(2, batcher.pendingCount());
+    assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+
+    batcher.onForegroundRequest();
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(0, batcher.pendingCount());
+    assertEquals(2, runs.get());
+  }
+
+  public void testSameKeyRunsOnce() throws Exception {
+    BatchingScheduler batcher = new BatchingScheduler(60000);
+    CountDownLatch latch = new CountDownLatch(1);
+    AtomicInteger runs = new AtomicInteger();
+    batcher.defer("routeList", countDown(latch, runs));
+    batcher.defer("routeList", countDown(latch, runs));
+    assertEquals(1, batcher.pendingCount());
+    batcher.onForegroundRequest();
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    Thread.sleep(100);
+    assertEquals(1, runs.get());
+  }
+
+  public void testReleasesAfterMaxDelay() throws Exception {
+    BatchingScheduler batcher = new BatchingScheduler(50);
+    CountDownLatch latch = new CountDownLatch(2);
+    AtomicInteger runs = new AtomicInteger();
+    batcher.defer("a", countDown(latch, runs));
+    batcher.defer("b", countDown(latch, runs));
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertEquals(0, batcher.pendingCount());
+  }
+}
@@ -0,0 +1,92 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.CircuitBreaker;
+import junit.framework.TestCase;
+
+public class CircuitBreakerTest extends TestCase {
+  private static class TestBreaker extends CircuitBreaker {
+    public TestBreaker() {
+      super("test", 3, 30000);
+    }
+
+    public long fake_now = 10000 * 1000;
+
+    protected long now() {
+      return fake_now;
+    }
+  }
+
+  private TestBreaker m_breaker;
+
+  public void setUp() {
+    m_breaker = new TestBreaker();
+  }
+
+  private void failRequests(int times) {
+    for (int i = 0; i < times; i++) {
+      assertTrue(m_breaker.allowRequest());
+      m_breaker.recordFailure();
+    }
+  }
+
+  public void testOpensAfterConsecutiveFailures() {
+    failRequests(2);
+    assertEquals(CircuitBreaker.State.CLOSED, m_breaker.getState());
+    failRequests(1);
+    assertEquals(CircuitBreaker.State.OPEN, m_breaker.getState());
+    assertFalse(m_breaker.allowRequest());
+  }
+
+  public void testSuccessResetsTheFailureCount() {
+    failRequests(2);
+    assertTrue(m_breaker.allowRequest());
+    m_breaker.recordSuccess();
+    failRequests(2);
+    assertEquals(CircuitBreaker.State.CLOSED, m_breaker.getState());
+  }
+
+  public void testLetsOneTrialThroughAfterCoolingDown() {
+    failRequests(3);
+    m_breaker.fake_now += 29999;
+    assertFalse(m_breaker.allowRequest());
+    m_breaker.fake_now += 1;
+    assertTrue(m_breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, m_breaker.getState());
+    // Everyone else waits for the trial's outcome.
+    assertFalse(m_breaker.allowRequest());
+
+    m_breaker.recordSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, m_breaker.getState());
+    assertTrue(m_breaker.allowRequest());
+  }
+
+  public void testFailedTrialReopens() {
+    failRequests(3);
+    m_breaker.fake_now += 30000;
+    assertTrue(m_breaker.allowRequest());
+    m_breaker.recordFailure();
+    assertEquals(CircuitBreaker.State.OPEN, m_breaker.getState());
+    // The cool-down starts over.
+    m_breaker.fake_now += 29999;
+    assertFalse(m_breaker.allowRequest());
+  }
+
+  public void testUnsentRequestsDontCount() {
+    failRequests(2);
+    assertTrue(m_breaker.allowRequest());
+    m_breaker.recordNotSent();
+    assertEquals(CircuitBreaker.State.CLOSED, m_breaker.getState());
+    failRequests(1);
+    assertEquals(CircuitBreaker.State.OPEN, m_breaker.getState());
+  }
+
+  public void testUnsentTrialLetsAnotherThrough() {
+    failRequests(3);
+    m_breaker.fake_now += 30000;
+    assertTrue(m_breaker.allowRequest());
+    m_breaker.recordNotSent();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, m_breaker.getState());
+    assertTrue(m_breaker.allowRequest());
+    assertFalse(m_breaker.allowRequest());
+  }
+}
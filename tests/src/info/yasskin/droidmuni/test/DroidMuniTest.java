@@ -105,7 +105,8 @@ public class DroidMuniTest extends ActivityUnitTestCase<DroidMuni> {
         then(queries.is("stops"));
 
         oneOf(nextmuni_provider).query(
-            Uri.parse(URL_PREFIX + "/predictions/1235"), null, null, null, null);
+            Uri.parse(URL_PREFIX + "/predictions/1235?route=24"), null, null,
+            null, null);
         will(returnValue(new CursorLiteral("_id", "route_tag", "direction_tag",
             "direction_title", "stop_id", "predicted_time", "mock_result").row(
             0, 24, "24I", "Inbound to Downtown", 1235, 3000, "").row(0, 24,
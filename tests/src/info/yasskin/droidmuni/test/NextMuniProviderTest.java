@@ -0,0 +1,60 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.NextMuniProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+public class NextMuniProviderTest extends AndroidTestCase {
+  private RenamingDelegatingContext m_context;
+  private NextMuniProvider m_provider;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m_context =
+        new RenamingDelegatingContext(getContext(), "nextmuniprovidertest.");
+    m_context.deleteDatabase("NextMUNIDb");
+    m_provider = new NextMuniProvider();
+    m_provider.attachInfo(m_context, null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    m_context.deleteDatabase("NextMUNIDb");
+    super.tearDown();
+  }
+
+  public void testEveryUriHasAType() {
+    assertNotNull(m_provider.getType(NextMuniProvider.ROUTES_URI));
+    assertNotNull(m_provider.getType(NextMuniProvider.FAVORITES_URI));
+    assertNotNull(m_provider
+        .getType(NextMuniProvider.FAVORITE_PREDICTIONS_URI));
+    assertNotNull(m_provider.getType(NextMuniProvider.STATS_URI));
+    assertNotNull(m_provider.getType(NextMuniProvider.CACHE_URI));
+  }
+
+  public void testFavoritesSurviveErasingTheCache() {
+    ContentValues values = new ContentValues();
+    values.put("route_tag", "N");
+    values.put("stop_tag", 15240);
+    m_provider.insert(NextMuniProvider.FAVORITES_URI, values);
+
+    m_provider.delete(NextMuniProvider.CACHE_URI, null, null);
+
+    Cursor favorites =
+        m_provider.query(NextMuniProvider.FAVORITES_URI, null, null, null,
+            null);
+    try {
+      assertEquals(1, favorites.getCount());
+      favorites.moveToFirst();
+      assertEquals("N",
+          favorites.getString(favorites.getColumnIndexOrThrow("route_tag")));
+      assertEquals(15240,
+          favorites.getInt(favorites.getColumnIndexOrThrow("stop_tag")));
+    } finally {
+      favorites.close();
+    }
+  }
+}
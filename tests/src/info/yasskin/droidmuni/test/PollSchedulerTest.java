@@ -0,0 +1,73 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.PollScheduler;
+import junit.framework.TestCase;
+
+public class PollSchedulerTest extends TestCase {
+  private static final long MIN = 20 * 1000;
+  private static final long MAX = 300 * 1000;
+  private static final long FIXED = 120 * 1000;
+  private static final long NOW = 10000 * 1000;
+
+  private PollScheduler m_scheduler;
+
+  public void setUp() {
+    m_scheduler = new PollScheduler(MIN, MAX, FIXED);
+  }
+
+  public void testFirstPollIsTreatedAsAChange() {
+    // Half of half the time to the bus.
+    assertEquals(150 * 1000,
+        m_scheduler.nextDelayMs(new long[] { NOW + 600 * 1000 }, NOW));
+  }
+
+  public void testNothingComingWaitsTheMaximum() {
+    assertEquals(MAX, m_scheduler.nextDelayMs(new long[0], NOW));
+    assertEquals(MAX, m_scheduler.nextDelayMs(new long[0], NOW + MAX));
+  }
+
+  public void testImminentArrivalPollsAtTheMinimum() {
+    assertEquals(MIN,
+        m_scheduler.nextDelayMs(new long[] { NOW + 10 * 1000 }, NOW));
+  }
+
+  public void testStablePredictionsBackOff() {
+    final long arrival = NOW + 480 * 1000;
+    long now = NOW;
+    long first = m_scheduler.nextDelayMs(new long[] { arrival }, now);
+    now += first;
+    long second = m_scheduler.nextDelayMs(new long[] { arrival }, now);
+    assertTrue(second > first);
+    now += second;
+    long third = m_scheduler.nextDelayMs(new long[] { arrival }, now);
+    // Never wait past the arrival we're tracking.
+    assertTrue(now + third <= arrival);
+  }
+
+  public void testMovingPredictionsPollSooner() {
+    PollScheduler unchanged = new PollScheduler(MIN, MAX, FIXED);
+    unchanged.nextDelayMs(new long[] { NOW + 600 * 1000 }, NOW);
+    long stable_delay =
+        unchanged.nextDelayMs(new long[] { NOW + 600 * 1000 }, NOW);
+
+    m_scheduler.nextDelayMs(new long[] { NOW + 600 * 1000 }, NOW);
+    // The bus slipped by two minutes.
+    long moved_delay =
+        m_scheduler.nextDelayMs(new long[] { NOW + 720 * 1000 }, NOW);
+    assertTrue(moved_delay < stable_delay);
+  }
+
+  public void testResetForgetsHistory() {
+    final long[] arrivals = { NOW + 600 * 1000 };
+    m_scheduler.nextDelayMs(arrivals, NOW);
+    m_scheduler.reset();
+    assertEquals(150 * 1000, m_scheduler.nextDelayMs(arrivals, NOW));
+  }
+
+  public void testCountsPollsSaved() {
+    m_scheduler.nextDelayMs(new long[0], NOW);
+    m_scheduler.nextDelayMs(new long[0], NOW + MAX);
+    // 600 seconds at the fixed 120 second interval would have been 5 polls.
+    assertEquals(3, m_scheduler.getPollsSaved());
+  }
+}
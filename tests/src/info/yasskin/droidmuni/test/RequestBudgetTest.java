@@ -0,0 +1,77 @@
+package info.yasskin.droidmuni.test;
+
+import info.yasskin.droidmuni.RequestBudget;
+import info.yasskin.droidmuni.RequestBudget.Lane;
+import junit.framework.TestCase;
+
+public class RequestBudgetTest extends TestCase {
+  private static class TestBudget extends RequestBudget {
+    public TestBudget() {
+      super(20000, 8, 1000);
+    }
+
+    public long fake_now = 10000 * 1000;
+
+    protected long now() {
+      return fake_now;
+    }
+  }
+
+  private TestBudget m_budget;
+
+  public void setUp() {
+    m_budget = new TestBudget();
+  }
+
+  private int acquireAll(Lane lane) {
+    int granted = 0;
+    while (m_budget.tryAcquire(lane)) {
+      granted++;
+    }
+    return granted;
+  }
+
+  public void testLowerLanesLeaveAReserve() {
+    // BACKGROUND must leave half of the 8 requests.
+    assertEquals(4, acquireAll(Lane.BACKGROUND));
+    // USER must leave a quarter.
+    assertEquals(2, acquireAll(Lane.USER));
+    assertEquals(2, acquireAll(Lane.FOREGROUND));
+    assertEquals(0, m_budget.getAvailableRequests(), 0.001);
+  }
+
+  public void testRefillsOverTheWindow() {
+    acquireAll(Lane.FOREGROUND);
+    m_budget.fake_now += 10000;
+    assertEquals(4, m_budget.getAvailableRequests(), 0.001);
+    m_budget.fake_now += 60000;
+    // Never more than one window's worth.
+    assertEquals(8, m_budget.getAvailableRequests(), 0.001);
+  }
+
+  public void testReleaseGivesARequestBack() {
+    assertEquals(4, acquireAll(Lane.BACKGROUND));
+    m_budget.release();
+    assertEquals(5, m_budget.getAvailableRequests(), 0.001);
+    assertTrue(m_budget.tryAcquire(Lane.BACKGROUND));
+
+    // Never more than one window's worth.
+    m_budget.fake_now += 60000;
+    m_budget.release();
+    assertEquals(8, m_budget.getAvailableRequests(), 0.001);
+  }
+
+  public void testBytesHoldOffLaterRequests() {
+    m_budget.recordBytes(600);
+    assertFalse(m_budget.tryAcquire(Lane.BACKGROUND));
+    assertTrue(m_budget.tryAcquire(Lane.FOREGROUND));
+
+    m_budget.recordBytes(1000);
+    assertEquals(-600, m_budget.getAvailableBytes(), 0.001);
+    assertFalse(m_budget.tryAcquire(Lane.FOREGROUND));
+
+    // 600 bytes take 12 seconds to come back.
+    m_budget.fake_now += 12001;
+    assertTrue(m_budget.tryAcquire(Lane.FOREGROUND));
+  }
+}
@@ -0,0 +1,45 @@
+#!/bin/sh
+# Records the sf-muni catalog snapshot that SnapshotImporter installs on first
+# launch: routeList.xml, plus routeConfig-N.xml for the Nth route in the list.
+#
+# Usage: tools/fetch-catalog-snapshot.sh [output directory]
+# The default output directory is assets/catalog-snapshot. "ant
+# catalog-snapshot" and "ant release" run this with the default.
+
+set -e
+
+AGENCY=sf-muni
+FEED="http://webservices.nextbus.com/service/publicXMLFeed"
+OUT="${1:-$(dirname "$0")/../assets/catalog-snapshot}"
+# NextBus asks clients to keep under about 2MB per 20 seconds.
+DELAY_SECONDS=1
+
+TMP="$OUT.tmp"
+rm -rf "$TMP"
+mkdir -p "$TMP"
+
+curl --fail --silent --show-error --compressed \
+    "$FEED?command=routeList&a=$AGENCY" > "$TMP/routeList.xml"
+
+index=0
+# Route tags may contain spaces ("K OWL"), so read them a line at a time.
+grep -o '<route [^>]*tag="[^"]*"' "$TMP/routeList.xml" \
+    | sed 's/.*tag="\([^"]*\)"/\1/' \
+    | while IFS= read -r tag; do
+  encoded=$(printf '%s' "$tag" | sed 's/ /%20/g')
+  # terse leaves out the paths, which the parser skips anyway.
+  curl --fail --silent --show-error --compressed \
+      "$FEED?command=routeConfig&a=$AGENCY&r=$encoded&terse" \
+      > "$TMP/routeConfig-$index.xml"
+  if grep -q '<Error' "$TMP/routeConfig-$index.xml"; then
+    echo "NextBus returned an error for route $tag:" >&2
+    cat "$TMP/routeConfig-$index.xml" >&2
+    exit 1
+  fi
+  index=$((index + 1))
+  sleep $DELAY_SECONDS
+done
+
+rm -rf "$OUT"
+mv "$TMP" "$OUT"
+echo "Wrote $(ls "$OUT" | wc -l | tr -d ' ') documents to $OUT"